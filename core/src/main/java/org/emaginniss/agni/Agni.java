@@ -33,6 +33,7 @@ import org.jetbrains.annotations.NotNull;
 
 import java.lang.reflect.Method;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public abstract class Agni {
 
@@ -59,6 +60,14 @@ public abstract class Agni {
         node.send(payload, type, criteria, attachments, priority);
     }
 
+    public static boolean trySend(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority, long timeout) {
+        return node.trySend(payload, type, criteria, attachments, priority, timeout);
+    }
+
+    public static ScheduledDelivery sendAt(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority, long deliveryTime) {
+        return node.sendAt(payload, type, criteria, attachments, priority, deliveryTime);
+    }
+
     public static void broadcast(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority) {
         node.broadcast(payload, type, criteria, attachments, priority);
     }
@@ -67,10 +76,22 @@ public abstract class Agni {
         return node.request(payload, type, criteria, attachments, priority, timeout);
     }
 
+    public static CompletableFuture<PayloadAndAttachments> requestAsync(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority, Long timeout) {
+        return node.requestAsync(payload, type, criteria, attachments, priority, timeout);
+    }
+
     public static Map<Destination, PayloadAndAttachments> requestAll(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority, Long timeout) {
         return node.requestAll(payload, type, criteria, attachments, priority, timeout);
     }
 
+    public static CompletableFuture<Map<Destination, PayloadAndAttachments>> requestAllAsync(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority, Long timeout) {
+        return node.requestAllAsync(payload, type, criteria, attachments, priority, timeout);
+    }
+
+    public static void invalidate(@NotNull String type, Criteria criteria) {
+        node.invalidate(type, criteria);
+    }
+
     public static void register(@NotNull Object object) {
         node.register(object);
     }
@@ -34,6 +34,8 @@ import org.emaginniss.agni.attachments.FileAttachment;
 
 import java.io.File;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class AgniBuilder {
 
@@ -43,6 +45,8 @@ public class AgniBuilder {
     private Attachments attachments = new Attachments();
     private Priority priority;
     private Long timeout;
+    private long cacheTtl;
+    private int cacheMaxEntries;
 
     public AgniBuilder(Object payload) {
         this.payload = payload;
@@ -63,6 +67,15 @@ public class AgniBuilder {
         return this;
     }
 
+    /**
+     * Process this envelope strictly after every earlier envelope sent to the same destination with the same key.  When
+     * several replicas match, every envelope with the key is routed to the same one.
+     */
+    public AgniBuilder orderingKey(String key) {
+        criteria.add(Envelope.ORDERING_KEY, key);
+        return this;
+    }
+
     public AgniBuilder attachments(Attachments attachments) {
         this.attachments = attachments;
         return this;
@@ -93,6 +106,15 @@ public class AgniBuilder {
         return this;
     }
 
+    /**
+     * Serve this request from the node's near cache, keeping the response for ttl milliseconds
+     */
+    public AgniBuilder cacheable(long ttl, int maxEntries) {
+        this.cacheTtl = ttl;
+        this.cacheMaxEntries = maxEntries;
+        return this;
+    }
+
     public void send(Node node) {
         node.send(payload, type, criteria, attachments, priority);
     }
@@ -101,6 +123,30 @@ public class AgniBuilder {
         Agni.send(payload, type, criteria, attachments, priority);
     }
 
+    public boolean trySend(Node node, long timeout) {
+        return node.trySend(payload, type, criteria, attachments, priority, timeout);
+    }
+
+    public boolean trySend(long timeout) {
+        return Agni.trySend(payload, type, criteria, attachments, priority, timeout);
+    }
+
+    public ScheduledDelivery sendAt(Node node, long deliveryTime) {
+        return node.sendAt(payload, type, criteria, attachments, priority, deliveryTime);
+    }
+
+    public ScheduledDelivery sendAt(long deliveryTime) {
+        return Agni.sendAt(payload, type, criteria, attachments, priority, deliveryTime);
+    }
+
+    public ScheduledDelivery sendAfter(Node node, long delay, TimeUnit unit) {
+        return sendAt(node, System.currentTimeMillis() + unit.toMillis(delay));
+    }
+
+    public ScheduledDelivery sendAfter(long delay, TimeUnit unit) {
+        return sendAt(System.currentTimeMillis() + unit.toMillis(delay));
+    }
+
     public void broadcast(Node node) {
         node.broadcast(payload, type, criteria, attachments, priority);
     }
@@ -110,13 +156,33 @@ public class AgniBuilder {
     }
 
     public PayloadAndAttachments request(Node node) {
+        if (cacheTtl > 0) {
+            return node.getNearCache().request(payload, type, criteria, attachments, priority, timeout, cacheTtl, cacheMaxEntries);
+        }
         return node.request(payload, type, criteria, attachments, priority, timeout);
     }
 
     public PayloadAndAttachments request() {
+        if (cacheTtl > 0) {
+            return request(Agni.getNode());
+        }
         return Agni.request(payload, type, criteria, attachments, priority, timeout);
     }
 
+    public CompletableFuture<PayloadAndAttachments> requestAsync(Node node) {
+        if (cacheTtl > 0) {
+            return node.getNearCache().requestAsync(payload, type, criteria, attachments, priority, timeout, cacheTtl, cacheMaxEntries);
+        }
+        return node.requestAsync(payload, type, criteria, attachments, priority, timeout);
+    }
+
+    public CompletableFuture<PayloadAndAttachments> requestAsync() {
+        if (cacheTtl > 0) {
+            return requestAsync(Agni.getNode());
+        }
+        return Agni.requestAsync(payload, type, criteria, attachments, priority, timeout);
+    }
+
     public Map<Destination, PayloadAndAttachments> requestAll(Node node) {
         return node.requestAll(payload, type, criteria, attachments, priority, timeout);
     }
@@ -124,4 +190,12 @@ public class AgniBuilder {
     public Map<Destination, PayloadAndAttachments> requestAll() {
         return Agni.requestAll(payload, type, criteria, attachments, priority, timeout);
     }
+
+    public CompletableFuture<Map<Destination, PayloadAndAttachments>> requestAllAsync(Node node) {
+        return node.requestAllAsync(payload, type, criteria, attachments, priority, timeout);
+    }
+
+    public CompletableFuture<Map<Destination, PayloadAndAttachments>> requestAllAsync() {
+        return Agni.requestAllAsync(payload, type, criteria, attachments, priority, timeout);
+    }
 }
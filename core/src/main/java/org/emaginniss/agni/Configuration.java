@@ -62,6 +62,13 @@ public class Configuration {
         return defaultValue;
     }
 
+    public long getLong(String name, long defaultValue) {
+        if (object.getAsJsonPrimitive(name) != null) {
+            return object.getAsJsonPrimitive(name).getAsLong();
+        }
+        return defaultValue;
+    }
+
     public boolean getBoolean(String name, boolean defaultValue) {
         if (object.getAsJsonPrimitive(name) != null) {
             return object.getAsJsonPrimitive(name).getAsBoolean();
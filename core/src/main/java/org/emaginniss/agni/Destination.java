@@ -34,6 +34,7 @@ public class Destination {
     private String displayName;
     private String type;
     private Criteria criteria;
+    private String loadBalancer;
 
     public Destination(String uuid, String nodeUuid, String displayName, String type, Criteria criteria) {
         this.uuid = uuid;
@@ -63,6 +64,14 @@ public class Destination {
         return criteria;
     }
 
+    public String getLoadBalancer() {
+        return loadBalancer;
+    }
+
+    public void setLoadBalancer(String loadBalancer) {
+        this.loadBalancer = loadBalancer;
+    }
+
     public boolean matches(Criteria in) {
         for (String key : criteria.keySet()) {
             if (in == null || (!"*".equals(in.get(key)) && !criteria.get(key).equals(in.get(key)))) {
@@ -27,13 +27,24 @@
 
 package org.emaginniss.agni;
 
+import org.emaginniss.agni.attachments.Attachment;
 import org.emaginniss.agni.attachments.Attachments;
+import org.emaginniss.agni.attachments.ByteArrayAttachment;
 
 import java.io.Serializable;
+import java.util.Map;
 import java.util.UUID;
 
 public class Envelope implements Serializable {
 
+    private static final String CONTROL_PACKAGE = Envelope.class.getPackage().getName() + ".messages.";
+
+    /**
+     * Criteria key carrying the ordering key set by AgniBuilder.orderingKey().  Envelopes for the same destination and
+     * ordering key are processed one at a time in the order they reached the node.
+     */
+    public static final String ORDERING_KEY = "agni.orderingKey";
+
     private String uuid;
     private String destinationUuid;
     private String nodeUuid;
@@ -46,6 +57,10 @@ public class Envelope implements Serializable {
     private Priority priority;
     private boolean responseExpected;
     private Attachments attachments = new Attachments();
+    private transient Object localPayload;
+    private transient long estimatedSize = -1;
+    private transient long enqueuedAt;
+    private transient boolean handedOff;
 
     public Envelope() {
         this.uuid = UUID.randomUUID().toString();
@@ -93,6 +108,22 @@ public class Envelope implements Serializable {
         return payload;
     }
 
+    public void setPayload(String payload) {
+        this.payload = payload;
+    }
+
+    /**
+     * Return the live payload object carried by an envelope that is delivered on the node that created it
+     * @return The payload object or null if the envelope only carries the serialized payload
+     */
+    public Object getLocalPayload() {
+        return localPayload;
+    }
+
+    public void setLocalPayload(Object localPayload) {
+        this.localPayload = localPayload;
+    }
+
     public Criteria getCriteria() {
         return criteria;
     }
@@ -152,6 +183,32 @@ public class Envelope implements Serializable {
         this.responseExpected = responseExpected;
     }
 
+    /**
+     * Return the System.nanoTime() at which this envelope entered the local inbox, so processors can measure how long
+     * it waited
+     * @return The enqueue time or 0 if the envelope has not been enqueued on this node
+     */
+    public long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+
+    public void setEnqueuedAt(long enqueuedAt) {
+        this.enqueuedAt = enqueuedAt;
+    }
+
+    /**
+     * Return true once the node has handed this envelope to a subscription's bulkhead.  The bulkhead acknowledges it
+     * when the handler completes, so the processor must not.
+     * @return True if acknowledgement is left to the bulkhead
+     */
+    public boolean isHandedOff() {
+        return handedOff;
+    }
+
+    public void setHandedOff(boolean handedOff) {
+        this.handedOff = handedOff;
+    }
+
     public boolean hasVisited(String uuid) {
         for (String pathEl : path) {
             if (pathEl.equals(uuid)) {
@@ -160,4 +217,43 @@ public class Envelope implements Serializable {
         }
         return false;
     }
+
+    /**
+     * Return true for responses and the node's own routing messages.  Bounded boxes always admit these, since dropping
+     * them would strand callers or corrupt routing.
+     * @return True if this is control traffic
+     */
+    public boolean isControl() {
+        return responseToUuid != null || (className != null && className.startsWith(CONTROL_PACKAGE));
+    }
+
+    /**
+     * Return a rough estimate of the heap retained by this envelope: strings, criteria and in-memory attachments.  The
+     * estimate is taken on the first call and stays fixed so boxes can add and subtract it symmetrically.
+     * @return The estimated size in bytes
+     */
+    public long getEstimatedSize() {
+        if (estimatedSize < 0) {
+            long size = 128 + estimateString(uuid) + estimateString(destinationUuid) + estimateString(nodeUuid) + estimateString(responseToUuid) + estimateString(type) + estimateString(className) + estimateString(payload);
+            for (String pathEl : path) {
+                size += estimateString(pathEl);
+            }
+            if (criteria != null) {
+                for (Map.Entry<String, String> entry : criteria.entrySet()) {
+                    size += 40 + estimateString(entry.getKey()) + estimateString(entry.getValue());
+                }
+            }
+            if (attachments != null) {
+                for (Map.Entry<String, Attachment> entry : attachments.entrySet()) {
+                    size += 40 + estimateString(entry.getKey()) + (entry.getValue() instanceof ByteArrayAttachment ? 16 + entry.getValue().size() : 32);
+                }
+            }
+            estimatedSize = size;
+        }
+        return estimatedSize;
+    }
+
+    private static long estimateString(String in) {
+        return in == null ? 0 : 40 + 2L * in.length();
+    }
 }
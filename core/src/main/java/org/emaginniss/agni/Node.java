@@ -29,6 +29,7 @@ package org.emaginniss.agni;
 
 import org.emaginniss.agni.attachments.Attachments;
 import org.emaginniss.agni.impl.DestinationRegistration;
+import org.emaginniss.agni.impl.NearCache;
 import org.emaginniss.agni.impl.WhisperHandler;
 import org.emaginniss.agni.messageboxes.MessageBox;
 import org.emaginniss.agni.messages.StatsResponse;
@@ -42,6 +43,7 @@ import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public interface Node extends Closeable {
 
@@ -60,19 +62,55 @@ public interface Node extends Closeable {
 
     void send(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority);
 
+    /**
+     * Send unless the inbox is saturated
+     * @param timeout Milliseconds to wait for room when the inbox blocks producers
+     * @return False if the inbox rejected the envelope
+     */
+    boolean trySend(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority, long timeout);
+
+    /**
+     * Send once the delivery time has passed.  The recipient is picked now and picked again at delivery if it has gone.
+     * @param deliveryTime Milliseconds since the epoch
+     * @return A handle that can cancel the delivery
+     */
+    @NotNull
+    ScheduledDelivery sendAt(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority, long deliveryTime);
+
     void broadcast(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority);
 
     @Nullable
     PayloadAndAttachments request(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority, Long timeout);
 
+    /**
+     * Send a request without waiting for the response.  Failures, including a full inbox or no recipient, complete the
+     * future exceptionally rather than being thrown, and cancelling the future abandons the request.  A bounded inbox
+     * with the block overflow policy can still hold the caller for up to its blockTimeout while it waits for room.
+     */
+    @NotNull
+    CompletableFuture<PayloadAndAttachments> requestAsync(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority, Long timeout);
+
     @NotNull
     Map<Destination, PayloadAndAttachments> requestAll(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority, Long timeout);
 
+    /**
+     * Send a request to every matching destination without waiting for the responses, see requestAsync()
+     */
+    @NotNull
+    CompletableFuture<Map<Destination, PayloadAndAttachments>> requestAllAsync(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority, Long timeout);
+
     @NotNull
     MessageBox getInbox();
 
     void process(@NotNull Envelope envelope);
 
+    /**
+     * Called by a message box that discarded an envelope it had already accepted, so the node can retire it as if it
+     * had been processed and fail a caller waiting on it
+     * @param envelope The discarded envelope
+     */
+    void dropped(@NotNull Envelope envelope);
+
     @NotNull
     String getUuid();
 
@@ -99,6 +137,14 @@ public interface Node extends Closeable {
 
     WhisperHandler getWhisperHandler();
 
+    NearCache getNearCache();
+
+    /**
+     * Drop cached responses for a type on every node, typically called by a handler once the data behind it changed
+     * @param criteria Only drop responses to requests carrying all of these criteria, or everything when null
+     */
+    void invalidate(@NotNull String type, Criteria criteria);
+
     StatsResponse buildStatsResponse();
 
     boolean isShuttingDown();
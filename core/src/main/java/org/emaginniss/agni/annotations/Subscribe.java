@@ -44,4 +44,40 @@ public @interface Subscribe {
 
     String displayName() default "";
 
+    /**
+     * Name of the load balancer senders should use to choose between equally distant destinations of this type
+     */
+    String loadBalancer() default "";
+
+    /**
+     * Maximum number of envelopes this subscription handles at once, 0 for no limit.  Envelopes over the limit wait in a
+     * queue of their own instead of holding processor threads.
+     */
+    int maxConcurrency() default 0;
+
+    /**
+     * Name of a dedicated executor to run this subscription on.  Executors are configured under the node's executors
+     * map; an unconfigured name gets a pool of maxConcurrency threads.
+     */
+    String executor() default "";
+
+    /**
+     * Deliver envelopes in batches of up to this many, 0 to deliver them one at a time.  A batch handler takes List
+     * parameters and returns null or a List with one response per envelope.
+     */
+    int batchSize() default 0;
+
+    /**
+     * How long a partial batch may wait for more envelopes before it is delivered anyway
+     */
+    long maxBatchDelayMs() default 5;
+
+    /**
+     * Criteria key whose value orders this subscription's envelopes: envelopes with the same value are handled one at a
+     * time in arrival order.  Without it the key set by AgniBuilder.orderingKey() is used.  Only senders that have a
+     * subscription with the same orderingKey themselves pin each value to one replica, so across nodes prefer
+     * AgniBuilder.orderingKey().
+     */
+    String orderingKey() default "";
+
 }
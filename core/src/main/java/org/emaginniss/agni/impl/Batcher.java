@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015, Eric A Maginniss
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL ERIC A MAGINNISS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.emaginniss.agni.impl;
+
+import org.emaginniss.agni.Envelope;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects envelopes for a batch subscription.  A batch is flushed on the thread that fills it, or maxBatchDelay after
+ * its first envelope arrived, in which case the flush runs on the given executor so the scheduler thread never enters a
+ * handler.
+ */
+public class Batcher {
+
+    private final int batchSize;
+    private final long maxBatchDelay;
+    private final Consumer<List<Envelope>> flusher;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private List<Envelope> pending;
+    private ScheduledFuture<?> timer;
+
+    public Batcher(int batchSize, long maxBatchDelay, Consumer<List<Envelope>> flusher, ScheduledExecutorService scheduler, Executor executor) {
+        this.batchSize = batchSize;
+        this.maxBatchDelay = maxBatchDelay;
+        this.flusher = flusher;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.pending = new ArrayList<>(batchSize);
+    }
+
+    public void add(Envelope envelope) {
+        List<Envelope> batch = null;
+        synchronized (this) {
+            pending.add(envelope);
+            if (pending.size() >= batchSize) {
+                batch = take();
+            } else if (pending.size() == 1) {
+                timer = scheduler.schedule(this::expire, maxBatchDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (batch != null) {
+            flusher.accept(batch);
+        }
+    }
+
+    /**
+     * Flush whatever is pending on the calling thread
+     */
+    public void flush() {
+        List<Envelope> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = take();
+        }
+        flusher.accept(batch);
+    }
+
+    private void expire() {
+        final List<Envelope> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = take();
+        }
+        executor.execute(() -> flusher.accept(batch));
+    }
+
+    private List<Envelope> take() {
+        List<Envelope> out = pending;
+        pending = new ArrayList<>(batchSize);
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        return out;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public synchronized int getPending() {
+        return pending.size();
+    }
+}
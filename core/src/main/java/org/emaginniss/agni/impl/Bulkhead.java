@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2015, Eric A Maginniss
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL ERIC A MAGINNISS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.emaginniss.agni.impl;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * Limits how many invocations of one subscription run at once.  Work over the cap waits in the bulkhead's own queue
+ * rather than holding a processor thread, and whichever invocation finishes next picks it up.  With an executor the
+ * invocations run there, so a slow dependency only ever ties up that executor's threads.
+ */
+@Slf4j
+public class Bulkhead {
+
+    private final int maxConcurrency;
+    private final Executor executor;
+    private final LinkedList<Runnable> queue = new LinkedList<>();
+    private int running = 0;
+
+    public Bulkhead(int maxConcurrency, Executor executor) {
+        this.maxConcurrency = maxConcurrency;
+        this.executor = executor;
+    }
+
+    /**
+     * Run the task if the subscription is under its cap, otherwise queue it.  Without an executor the task runs on the
+     * calling thread, which then keeps draining the queue until it is empty.
+     * @param task The invocation to run
+     */
+    public void submit(Runnable task) {
+        synchronized (this) {
+            if (maxConcurrency > 0 && running >= maxConcurrency) {
+                queue.addLast(task);
+                return;
+            }
+            running++;
+        }
+        if (executor == null) {
+            drain(task);
+        } else {
+            try {
+                executor.execute(() -> drain(task));
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    running--;
+                }
+                throw e;
+            }
+        }
+    }
+
+    private void drain(Runnable task) {
+        while (task != null) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                log.error("Error while running bulkheaded invocation", t);
+            }
+            synchronized (this) {
+                task = queue.pollFirst();
+                if (task == null) {
+                    running--;
+                }
+            }
+        }
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+}
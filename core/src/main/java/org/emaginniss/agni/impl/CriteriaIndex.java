@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2015, Eric A Maginniss
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL ERIC A MAGINNISS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.emaginniss.agni.impl;
+
+import org.emaginniss.agni.Criteria;
+import org.emaginniss.agni.Destination;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverted index over the destinations registered for a single type.  Destinations are posted under each of their
+ * criteria key/value pairs, so a lookup only visits destinations that share at least one pair with the message (or
+ * every destination carrying a key the message wildcards with "*").  Matching follows
+ * {@link Destination#matches(Criteria)}.
+ * <p>
+ * Writers add and remove one destination at a time, touching only the postings for its own criteria, and must be
+ * serialized by the caller.  Readers never lock: every posting is a concurrent set, and a destination only matches
+ * once each of its pairs has been found, so a lookup that races a change sees that destination either before or after
+ * it.
+ */
+public class CriteriaIndex {
+
+    private final Set<Destination> unconstrained = ConcurrentHashMap.newKeySet();
+    private final Map<String, Set<Destination>> byKey = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Set<Destination>>> byKeyAndValue = new ConcurrentHashMap<>();
+    private volatile int size = 0;
+
+    public void add(@NotNull Destination destination) {
+        Criteria criteria = destination.getCriteria();
+        if (criteria == null || criteria.isEmpty()) {
+            unconstrained.add(destination);
+        } else {
+            for (Map.Entry<String, String> entry : criteria.entrySet()) {
+                byKeyAndValue.computeIfAbsent(entry.getKey(), k -> new ConcurrentHashMap<>()).computeIfAbsent(entry.getValue(), v -> ConcurrentHashMap.newKeySet()).add(destination);
+                byKey.computeIfAbsent(entry.getKey(), k -> ConcurrentHashMap.newKeySet()).add(destination);
+            }
+        }
+        size++;
+    }
+
+    public void remove(@NotNull Destination destination) {
+        Criteria criteria = destination.getCriteria();
+        if (criteria == null || criteria.isEmpty()) {
+            unconstrained.remove(destination);
+        } else {
+            for (Map.Entry<String, String> entry : criteria.entrySet()) {
+                Set<Destination> postings = byKey.get(entry.getKey());
+                postings.remove(destination);
+                if (postings.isEmpty()) {
+                    byKey.remove(entry.getKey());
+                }
+                Map<String, Set<Destination>> byValue = byKeyAndValue.get(entry.getKey());
+                postings = byValue.get(entry.getValue());
+                postings.remove(destination);
+                if (postings.isEmpty()) {
+                    byValue.remove(entry.getValue());
+                    if (byValue.isEmpty()) {
+                        byKeyAndValue.remove(entry.getKey());
+                    }
+                }
+            }
+        }
+        size--;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void findMatches(Criteria criteria, @NotNull Collection<Destination> out) {
+        out.addAll(unconstrained);
+        if (criteria == null || criteria.isEmpty() || byKey.isEmpty()) {
+            return;
+        }
+
+        Map<Destination, Integer> partialMatches = null;
+        for (Map.Entry<String, String> entry : criteria.entrySet()) {
+            Set<Destination> postings;
+            if ("*".equals(entry.getValue())) {
+                postings = byKey.get(entry.getKey());
+            } else {
+                Map<String, Set<Destination>> byValue = byKeyAndValue.get(entry.getKey());
+                postings = byValue == null ? null : byValue.get(entry.getValue());
+            }
+            if (postings == null) {
+                continue;
+            }
+            for (Destination destination : postings) {
+                int required = destination.getCriteria().size();
+                if (required == 1) {
+                    out.add(destination);
+                    continue;
+                }
+                if (partialMatches == null) {
+                    partialMatches = new HashMap<>();
+                }
+                Integer matched = partialMatches.get(destination);
+                matched = matched == null ? 1 : matched + 1;
+                if (matched == required) {
+                    out.add(destination);
+                }
+                partialMatches.put(destination, matched);
+            }
+        }
+    }
+}
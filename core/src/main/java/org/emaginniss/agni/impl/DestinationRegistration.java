@@ -37,75 +37,114 @@ import org.jetbrains.annotations.NotNull;
 
 import java.lang.reflect.Method;
 import java.util.*;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Readers never lock.  Each by-type value is a {@link CriteriaIndex} that writers update in place, so a topology change
+ * only costs the criteria of the destinations it adds or removes.  Writers are serialized on this object, which also
+ * guards the by-node index.
+ */
 public class DestinationRegistration {
 
     private Node node;
-    private Map<String, Destination> destinationLookupByUuid = new TreeMap<>();
-    private Map<String, Set<String>> destinationLookupByType = new TreeMap<>();
-    private Map<String, Set<String>> destinationLookupByNodeUuid = new TreeMap<>();
-    private ReadWriteLock destinationPathLookupLock = new ReentrantReadWriteLock(true);
-    private Lock destinationPathLookupReadLock = destinationPathLookupLock.readLock();
-    private Lock destinationPathLookupWriteLock = destinationPathLookupLock.writeLock();
+    private final Map<String, Destination> destinationLookupByUuid = new ConcurrentHashMap<>();
+    private final Map<String, CriteriaIndex> destinationLookupByType = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> destinationLookupByNodeUuid = new HashMap<>();
+    private final Map<String, Integer> criteriaKeyCounts = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong(0);
 
     public DestinationRegistration(Node node) {
         this.node = node;
     }
 
     public void register(Destination ld) {
-        try {
-            destinationPathLookupWriteLock.lock();
-            addDestinationInternal(ld);
-            rebuildCaches();
-            new AgniBuilder(new AddDestination(ld)).broadcast(node);
-        } finally {
-            destinationPathLookupWriteLock.unlock();
+        synchronized (this) {
+            if (addDestinationsInternal(Collections.singleton(ld))) {
+                generation.incrementAndGet();
+            }
         }
+        new AgniBuilder(new AddDestination(ld)).broadcast(node);
     }
 
-    private boolean addDestinationInternal(Destination destination) {
-        if (!destinationLookupByUuid.containsKey(destination.getUuid())) {
+    private boolean addDestinationsInternal(Collection<Destination> destinations) {
+        boolean added = false;
+        for (Destination destination : destinations) {
+            if (destinationLookupByUuid.containsKey(destination.getUuid())) {
+                continue;
+            }
             destinationLookupByUuid.put(destination.getUuid(), destination);
-            return true;
+            destinationLookupByType.computeIfAbsent(destination.getType(), t -> new CriteriaIndex()).add(destination);
+            if (destination.getCriteria() != null) {
+                for (String key : destination.getCriteria().keySet()) {
+                    criteriaKeyCounts.merge(key, 1, Integer::sum);
+                }
+            }
+            added = true;
+
+            if (!destinationLookupByNodeUuid.containsKey(destination.getNodeUuid())) {
+                destinationLookupByNodeUuid.put(destination.getNodeUuid(), new HashSet<String>());
+            }
+            destinationLookupByNodeUuid.get(destination.getNodeUuid()).add(destination.getUuid());
         }
-        return false;
+        return added;
     }
 
-    private void rebuildCaches() {
-        destinationLookupByType.clear();
-        destinationLookupByNodeUuid.clear();
-        for (Destination d : destinationLookupByUuid.values()) {
-            if (!destinationLookupByType.containsKey(d.getType())) {
-                destinationLookupByType.put(d.getType(), new HashSet<String>());
+    private boolean removeDestinationsInternal(Collection<String> destinationUuids) {
+        boolean removed = false;
+        Map<String, Set<String>> removedByNode = new HashMap<>();
+        for (String destinationUuid : destinationUuids) {
+            Destination destination = destinationLookupByUuid.get(destinationUuid);
+            if (destination != null) {
+                //Out of the index first, so anything routed to it can still be resolved by uuid
+                CriteriaIndex index = destinationLookupByType.get(destination.getType());
+                index.remove(destination);
+                if (index.isEmpty()) {
+                    destinationLookupByType.remove(destination.getType());
+                }
+                destinationLookupByUuid.remove(destinationUuid);
+                if (destination.getCriteria() != null) {
+                    for (String key : destination.getCriteria().keySet()) {
+                        criteriaKeyCounts.computeIfPresent(key, (k, count) -> count == 1 ? null : count - 1);
+                    }
+                }
+                removed = true;
+
+                if (!removedByNode.containsKey(destination.getNodeUuid())) {
+                    removedByNode.put(destination.getNodeUuid(), new HashSet<String>());
+                }
+                removedByNode.get(destination.getNodeUuid()).add(destinationUuid);
             }
-            destinationLookupByType.get(d.getType()).add(d.getUuid());
+        }
 
-            if (!destinationLookupByNodeUuid.containsKey(d.getNodeUuid())) {
-                destinationLookupByNodeUuid.put(d.getNodeUuid(), new HashSet<String>());
+        for (Map.Entry<String, Set<String>> entry : removedByNode.entrySet()) {
+            Set<String> remaining = destinationLookupByNodeUuid.get(entry.getKey());
+            remaining.removeAll(entry.getValue());
+            if (remaining.isEmpty()) {
+                destinationLookupByNodeUuid.remove(entry.getKey());
             }
-            destinationLookupByNodeUuid.get(d.getNodeUuid()).add(d.getUuid());
         }
+        return removed;
     }
 
     public void unsubscribe(Object object, Method method) {
-        try {
-            destinationPathLookupWriteLock.lock();
-            for (Iterator<String> destIter = destinationLookupByUuid.keySet().iterator(); destIter.hasNext(); ) {
-                Destination destination = destinationLookupByUuid.get(destIter.next());
-                if (destination instanceof LocalDestination) {
-                    LocalDestination ld = (LocalDestination) destination;
-                    if (ld.is(object, method)) {
-                        destIter.remove();
-                        new AgniBuilder(new RemoveDestination(ld.getUuid())).broadcast(node);
+        List<String> removed = new ArrayList<>();
+        synchronized (this) {
+            Set<String> localUuids = destinationLookupByNodeUuid.get(node.getUuid());
+            if (localUuids != null) {
+                for (String destinationUuid : localUuids) {
+                    Destination destination = destinationLookupByUuid.get(destinationUuid);
+                    if (destination instanceof LocalDestination && ((LocalDestination) destination).is(object, method)) {
+                        removed.add(destinationUuid);
                     }
                 }
             }
-            rebuildCaches();
-        } finally {
-            destinationPathLookupWriteLock.unlock();
+            if (removeDestinationsInternal(removed)) {
+                generation.incrementAndGet();
+            }
+        }
+        for (String destinationUuid : removed) {
+            new AgniBuilder(new RemoveDestination(destinationUuid)).broadcast(node);
         }
     }
 
@@ -114,18 +153,9 @@ public class DestinationRegistration {
         Set<Destination> out = new HashSet<>();
 
         for (String type : types) {
-            try {
-                destinationPathLookupReadLock.lock();
-                if (destinationLookupByType.containsKey(type)) {
-                    for (String destinationUuid : destinationLookupByType.get(type)) {
-                        Destination destination = destinationLookupByUuid.get(destinationUuid);
-                        if (destination.matches(criteria)) {
-                            out.add(destination);
-                        }
-                    }
-                }
-            } finally {
-                destinationPathLookupReadLock.unlock();
+            CriteriaIndex index = destinationLookupByType.get(type);
+            if (index != null) {
+                index.findMatches(criteria, out);
             }
             if (!findAll && out.size() > 0) {
                 break;
@@ -135,100 +165,98 @@ public class DestinationRegistration {
         return out;
     }
 
+    /**
+     * Return true if any registered destination has a criterion with this key
+     */
+    public boolean isCriteriaKey(String key) {
+        return criteriaKeyCounts.containsKey(key);
+    }
+
+    /**
+     * Return a counter that changes every time a destination is added or removed
+     * @return The current generation
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
     public LocalDestination getLocalDestination(String uuid) {
         return (LocalDestination) getDestination(uuid);
     }
 
-    public Destination getDestination(String uuid) {
-        try {
-            destinationPathLookupReadLock.lock();
-            return destinationLookupByUuid.get(uuid);
-        } finally {
-            destinationPathLookupReadLock.unlock();
+    public List<LocalDestination> getLocalDestinations() {
+        List<LocalDestination> out = new ArrayList<>();
+        for (Destination d : destinationLookupByUuid.values()) {
+            if (d instanceof LocalDestination) {
+                out.add((LocalDestination) d);
+            }
         }
+        return out;
+    }
+
+    public Destination getDestination(String uuid) {
+        return destinationLookupByUuid.get(uuid);
     }
 
     public void handle(SubscriptionInfo subscriptionInfo) {
-        try {
-            destinationPathLookupWriteLock.lock();
-            boolean changed = false;
-            for (Destination destination : subscriptionInfo.getDestinations()) {
-                changed = addDestinationInternal(destination) || changed;
-            }
-            if (changed) {
-                rebuildCaches();
+        synchronized (this) {
+            if (addDestinationsInternal(subscriptionInfo.getDestinations())) {
+                generation.incrementAndGet();
             }
-        } finally {
-            destinationPathLookupWriteLock.unlock();
         }
     }
 
     public Collection<Destination> getAll() {
-        try {
-            destinationPathLookupReadLock.lock();
-            return destinationLookupByUuid.values();
-        } finally {
-            destinationPathLookupReadLock.unlock();
-        }
+        return Collections.unmodifiableCollection(destinationLookupByUuid.values());
     }
 
     public void handle(AddDestination addDestination) {
-        try {
-            Destination destination = addDestination.getDestination();
-            destinationPathLookupWriteLock.lock();
-            if (addDestinationInternal(destination)) {
-                rebuildCaches();
-            }
-        } finally {
-            destinationPathLookupWriteLock.unlock();
+        synchronized (this) {
+            if (addDestinationsInternal(Collections.singleton(addDestination.getDestination()))) {
+                generation.incrementAndGet();
+            }
         }
     }
 
     public void handle(RemoveDestination removeDestination) {
-        try {
-            destinationPathLookupWriteLock.lock();
-            destinationLookupByUuid.remove(removeDestination.getDestinationUuid());
-            rebuildCaches();
-        } finally {
-            destinationPathLookupWriteLock.unlock();
+        synchronized (this) {
+            if (removeDestinationsInternal(Collections.singleton(removeDestination.getDestinationUuid()))) {
+                generation.incrementAndGet();
+            }
         }
     }
 
     public void handleLostNodes(Set<String> lostNodeUuids) {
-        try {
-            destinationPathLookupWriteLock.lock();
+        synchronized (this) {
             Set<String> destinationUuids = new HashSet<>();
             for (String nodeUuid : lostNodeUuids) {
                 if (!nodeUuid.equals(node.getUuid())) {
-                    if (destinationLookupByNodeUuid.containsKey(nodeUuid)) {
-                        destinationUuids.addAll(destinationLookupByNodeUuid.get(nodeUuid));
+                    Set<String> byNode = destinationLookupByNodeUuid.get(nodeUuid);
+                    if (byNode != null) {
+                        destinationUuids.addAll(byNode);
                     }
                 }
             }
-            for (String destinationUuid : destinationUuids) {
-                destinationLookupByUuid.remove(destinationUuid);
+            if (removeDestinationsInternal(destinationUuids)) {
+                generation.incrementAndGet();
             }
-            rebuildCaches();
-        } finally {
-            destinationPathLookupWriteLock.unlock();
         }
     }
 
     public StatsResponse.DestinationInfo[] getDestinationInfos() {
-        try {
-            destinationPathLookupReadLock.lock();
-            Set<StatsResponse.DestinationInfo> out = new TreeSet<>(new BeanComparator<>("displayName"));
-            for (Destination d : destinationLookupByUuid.values()) {
-                if (d instanceof LocalDestination) {
-                    LocalDestination ld = (LocalDestination) d;
-                    out.add(new StatsResponse.DestinationInfo(ld.getUuid(), ld.getDisplayName(), ld.getNodeUuid(), ld.getType(), ld.getCriteria(), true, ld.getTimesCalled(), ld.getTimesFailed(), ld.getTotalTimeSpent(), ld.getCurrent()));
-                } else {
-                    //out.add(new StatsResponse.DestinationInfo(d.getUuid(), d.getDisplayName(), d.getNodeUuid(), d.getType(), d.getCriteria()));
-                }
+        Set<StatsResponse.DestinationInfo> out = new TreeSet<>(new BeanComparator<>("displayName"));
+        for (Destination d : destinationLookupByUuid.values()) {
+            if (d instanceof LocalDestination) {
+                LocalDestination ld = (LocalDestination) d;
+                StatsResponse.DestinationInfo info = new StatsResponse.DestinationInfo(ld.getUuid(), ld.getDisplayName(), ld.getNodeUuid(), ld.getType(), ld.getCriteria(), true, ld.getTimesCalled(), ld.getTimesFailed(), ld.getTotalTimeSpent(), ld.getCurrent());
+                info.setServiceTime(new StatsResponse.LatencyInfo(ld.getServiceTime()));
+                info.setQueueDelay(new StatsResponse.LatencyInfo(ld.getQueueDelay()));
+                info.setRate(new StatsResponse.RateInfo(ld.getRate()));
+                out.add(info);
+            } else {
+                //out.add(new StatsResponse.DestinationInfo(d.getUuid(), d.getDisplayName(), d.getNodeUuid(), d.getType(), d.getCriteria()));
             }
-            return out.toArray(new StatsResponse.DestinationInfo[out.size()]);
-        } finally {
-            destinationPathLookupReadLock.unlock();
         }
+        return out.toArray(new StatsResponse.DestinationInfo[out.size()]);
     }
 }
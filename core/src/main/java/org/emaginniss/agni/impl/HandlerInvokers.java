@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2015, Eric A Maginniss
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL ERIC A MAGINNISS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.emaginniss.agni.impl;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Builds the fastest invoker a handler method allows.  Public methods of public classes with up to three reference
+ * parameters get a LambdaMetafactory-generated class that calls the method directly.  Anything the generated class could
+ * not link against, such as handlers declared in anonymous classes, goes through a MethodHandle, and reflection is only
+ * the last resort.
+ */
+@Slf4j
+public class HandlerInvokers {
+
+    public interface Call0 {
+        Object call(Object target);
+    }
+
+    public interface Call1 {
+        Object call(Object target, Object a);
+    }
+
+    public interface Call2 {
+        Object call(Object target, Object a, Object b);
+    }
+
+    public interface Call3 {
+        Object call(Object target, Object a, Object b, Object c);
+    }
+
+    public interface Run0 {
+        void run(Object target);
+    }
+
+    public interface Run1 {
+        void run(Object target, Object a);
+    }
+
+    public interface Run2 {
+        void run(Object target, Object a, Object b);
+    }
+
+    public interface Run3 {
+        void run(Object target, Object a, Object b, Object c);
+    }
+
+    private static final Class[] CALLS = {Call0.class, Call1.class, Call2.class, Call3.class};
+    private static final Class[] RUNS = {Run0.class, Run1.class, Run2.class, Run3.class};
+
+    private HandlerInvokers() {
+    }
+
+    public static HandlerInvoker create(Object target, Method method) {
+        method.setAccessible(true);
+        try {
+            if (canGenerate(method)) {
+                return generate(target, method);
+            }
+        } catch (Throwable t) {
+            log.debug("Unable to generate an invoker for " + method + ", using a method handle", t);
+        }
+        try {
+            MethodHandle handle = MethodHandles.lookup().unreflect(method).bindTo(target).asSpreader(Object[].class, method.getParameterCount()).asType(MethodType.methodType(Object.class, Object[].class));
+            return args -> (Object) handle.invokeExact(args);
+        } catch (Throwable t) {
+            log.debug("Unable to build a method handle for " + method + ", using reflection", t);
+        }
+        return args -> {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        };
+    }
+
+    private static boolean canGenerate(Method method) {
+        if (method.getParameterCount() > 3 || Modifier.isStatic(method.getModifiers()) || !Modifier.isPublic(method.getModifiers())) {
+            return false;
+        }
+        for (Class cl = method.getDeclaringClass(); cl != null; cl = cl.getEnclosingClass()) {
+            if (!Modifier.isPublic(cl.getModifiers())) {
+                return false;
+            }
+        }
+        for (Class paramType : method.getParameterTypes()) {
+            if (paramType.isPrimitive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static HandlerInvoker generate(Object target, Method method) throws Throwable {
+        int arity = method.getParameterCount();
+        boolean isVoid = method.getReturnType() == void.class;
+        if (!isVoid && method.getReturnType().isPrimitive()) {
+            //Boxing a primitive return is left to the method handle path
+            throw new IllegalArgumentException("Primitive return type");
+        }
+        Class functionalInterface = (isVoid ? RUNS : CALLS)[arity];
+        Method sam = functionalInterface.getMethods()[0];
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle implementation = lookup.unreflect(method);
+        CallSite site = LambdaMetafactory.metafactory(lookup, sam.getName(), MethodType.methodType(functionalInterface), MethodType.methodType(sam.getReturnType(), sam.getParameterTypes()), implementation, implementation.type());
+        Object function = site.getTarget().invoke();
+
+        if (arity == 0 && isVoid) {
+            Run0 run = (Run0) function;
+            return args -> {
+                run.run(target);
+                return null;
+            };
+        } else if (arity == 0) {
+            Call0 call = (Call0) function;
+            return args -> call.call(target);
+        } else if (arity == 1 && isVoid) {
+            Run1 run = (Run1) function;
+            return args -> {
+                run.run(target, args[0]);
+                return null;
+            };
+        } else if (arity == 1) {
+            Call1 call = (Call1) function;
+            return args -> call.call(target, args[0]);
+        } else if (arity == 2 && isVoid) {
+            Run2 run = (Run2) function;
+            return args -> {
+                run.run(target, args[0], args[1]);
+                return null;
+            };
+        } else if (arity == 2) {
+            Call2 call = (Call2) function;
+            return args -> call.call(target, args[0], args[1]);
+        } else if (isVoid) {
+            Run3 run = (Run3) function;
+            return args -> {
+                run.run(target, args[0], args[1], args[2]);
+                return null;
+            };
+        } else {
+            Call3 call = (Call3) function;
+            return args -> call.call(target, args[0], args[1], args[2]);
+        }
+    }
+}
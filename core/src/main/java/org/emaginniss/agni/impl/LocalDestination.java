@@ -32,75 +32,96 @@ import org.emaginniss.agni.Destination;
 import org.emaginniss.agni.Envelope;
 import org.emaginniss.agni.PayloadAndAttachments;
 import org.emaginniss.agni.attachments.Attachments;
+import org.emaginniss.agni.util.LatencyHistogram;
+import org.emaginniss.agni.util.RateMeter;
 
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class LocalDestination extends Destination {
 
-    private static transient double currentEPS = 0;
-    private static transient AtomicLong eventsSinceLastTimeCheck = new AtomicLong(0);
-    private static transient long lastTimeCheck;
-
-    static {
-        Thread t = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                currentEPS = 0;
-                while (true) {
-                    lastTimeCheck = System.currentTimeMillis();
-                    eventsSinceLastTimeCheck.set(0);
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                        return;
-                    }
-                    currentEPS = (eventsSinceLastTimeCheck.get() * 1000.0) / (double)(System.currentTimeMillis() - lastTimeCheck);
-                }
-            }
-        });
-        t.setDaemon(true);
-        t.start();
-    }
+    private static final int PAYLOAD = 0;
+    private static final int ATTACHMENTS = 1;
+    private static final int ENVELOPE = 2;
+    private static final int CRITERIA = 3;
 
     private transient Object object;
     private transient Method method;
+    private transient HandlerInvoker invoker;
+    private transient int[] bindings;
+    private transient int[] batchBindings;
     private transient AtomicLong timesCalled = new AtomicLong(0);
     private transient AtomicLong timesFailed = new AtomicLong(0);
     private transient AtomicLong totalTimeSpent = new AtomicLong(0);
+    private transient LatencyHistogram serviceTime = new LatencyHistogram();
+    private transient LatencyHistogram queueDelay = new LatencyHistogram();
+    private transient RateMeter rate = new RateMeter();
     private transient AtomicLong current = new AtomicLong(0);
+    private transient Bulkhead bulkhead;
+    private transient Batcher batcher;
+    private transient String orderingKey;
 
     public LocalDestination(String uuid, String nodeUuid, String displayName, String type, Criteria criteria, Object object, Method method) {
         super(uuid == null ? UUID.randomUUID().toString() : uuid, nodeUuid, displayName, type, criteria);
         this.object = object;
         this.method = method;
+        this.invoker = HandlerInvokers.create(object, method);
 
-        method.setAccessible(true);
+        //Work out once where each parameter comes from, rather than on every call
+        Class[] paramTypes = method.getParameterTypes();
+        Type[] genericTypes = method.getGenericParameterTypes();
+        bindings = new int[paramTypes.length];
+        batchBindings = new int[paramTypes.length];
+        for (int i = 0; i < paramTypes.length; i++) {
+            bindings[i] = bind(paramTypes[i]);
+            batchBindings[i] = bind(genericTypes[i] instanceof ParameterizedType ? ((ParameterizedType) genericTypes[i]).getActualTypeArguments()[0] : Object.class);
+        }
+    }
+
+    private static int bind(Type type) {
+        if (type == Attachments.class) {
+            return ATTACHMENTS;
+        } else if (type == Envelope.class) {
+            return ENVELOPE;
+        } else if (type == Criteria.class) {
+            return CRITERIA;
+        }
+        return PAYLOAD;
+    }
+
+    private static Object resolve(int binding, Envelope envelope, Object payload) {
+        switch (binding) {
+            case ATTACHMENTS:
+                return envelope.getAttachments();
+            case ENVELOPE:
+                return envelope;
+            case CRITERIA:
+                return envelope.getCriteria();
+            default:
+                return payload;
+        }
     }
 
     public PayloadAndAttachments invoke(Envelope envelope, Object payload) {
-        eventsSinceLastTimeCheck.incrementAndGet();
+        rate.mark();
         timesCalled.incrementAndGet();
         current.incrementAndGet();
-        long start = System.currentTimeMillis();
-        List<Object> paramArray = new ArrayList<>();
-        for (Class paramType : method.getParameterTypes()) {
-            if (paramType == Attachments.class) {
-                paramArray.add(envelope.getAttachments());
-            } else if (paramType == Envelope.class) {
-                paramArray.add(envelope);
-            } else if (paramType == Criteria.class) {
-                paramArray.add(envelope.getCriteria());
-            } else {
-                paramArray.add(payload);
-            }
+        long start = System.nanoTime();
+        if (envelope.getEnqueuedAt() != 0) {
+            queueDelay.record(start - envelope.getEnqueuedAt());
+        }
+        Object[] args = new Object[bindings.length];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = resolve(bindings[i], envelope, payload);
         }
         try {
-            Object response = method.invoke(object, paramArray.toArray(new Object[paramArray.size()]));
+            Object response = invoker.invoke(args);
 
             if (response == null) {
                 return null;
@@ -109,15 +130,74 @@ public class LocalDestination extends Destination {
             } else {
                 return new PayloadAndAttachments(response);
             }
-        } catch (InvocationTargetException e) {
+        } catch (Throwable t) {
             timesFailed.incrementAndGet();
-            return new PayloadAndAttachments(e.getCause());
-        } catch (Exception e) {
-            timesFailed.incrementAndGet();
-            return new PayloadAndAttachments(e);
+            return new PayloadAndAttachments(t);
+        } finally {
+            current.decrementAndGet();
+            long elapsed = System.nanoTime() - start;
+            serviceTime.record(elapsed);
+            totalTimeSpent.addAndGet(elapsed);
+        }
+    }
+
+    /**
+     * Invoke a batch handler once for a list of envelopes.  Every List parameter is filled element by element from the
+     * envelopes: List&lt;Envelope&gt;, List&lt;Attachments&gt; and List&lt;Criteria&gt; get those, any other List gets
+     * the payloads.  The handler returns null or one response per envelope; if it throws, every envelope gets the
+     * exception.
+     * @return One response per envelope, in order
+     */
+    public List<PayloadAndAttachments> invokeBatch(List<Envelope> envelopes, List<Object> payloads) {
+        int count = envelopes.size();
+        rate.mark(count);
+        timesCalled.addAndGet(count);
+        current.incrementAndGet();
+        long start = System.nanoTime();
+        for (Envelope envelope : envelopes) {
+            if (envelope.getEnqueuedAt() != 0) {
+                queueDelay.record(start - envelope.getEnqueuedAt());
+            }
+        }
+        Object[] args = new Object[batchBindings.length];
+        for (int p = 0; p < args.length; p++) {
+            List<Object> param = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                param.add(resolve(batchBindings[p], envelopes.get(i), payloads.get(i)));
+            }
+            args[p] = param;
+        }
+        List<PayloadAndAttachments> out = new ArrayList<>(count);
+        try {
+            Object response = invoker.invoke(args);
+
+            if (response == null) {
+                for (int i = 0; i < count; i++) {
+                    out.add(null);
+                }
+            } else if (response instanceof List && ((List) response).size() == count) {
+                for (Object r : (List) response) {
+                    out.add(r == null ? null : r instanceof PayloadAndAttachments ? (PayloadAndAttachments) r : new PayloadAndAttachments(r));
+                }
+            } else {
+                throw new RuntimeException("Batch handler " + getDisplayName() + " must return null or one response per envelope");
+            }
+        } catch (Throwable t) {
+            timesFailed.addAndGet(count);
+            fill(out, count, new PayloadAndAttachments(t));
         } finally {
             current.decrementAndGet();
-            totalTimeSpent.addAndGet(System.currentTimeMillis() - start);
+            long elapsed = System.nanoTime() - start;
+            serviceTime.record(elapsed);
+            totalTimeSpent.addAndGet(elapsed);
+        }
+        return out;
+    }
+
+    private static void fill(List<PayloadAndAttachments> out, int count, PayloadAndAttachments failure) {
+        out.clear();
+        for (int i = 0; i < count; i++) {
+            out.add(failure);
         }
     }
 
@@ -134,14 +214,70 @@ public class LocalDestination extends Destination {
     }
 
     public long getTotalTimeSpent() {
-        return totalTimeSpent.get();
+        return TimeUnit.NANOSECONDS.toMillis(totalTimeSpent.get());
+    }
+
+    /**
+     * Return the distribution of handler service times, one value per invocation
+     * @return A histogram in nanoseconds
+     */
+    public LatencyHistogram getServiceTime() {
+        return serviceTime;
+    }
+
+    /**
+     * Return the distribution of the time envelopes spent between the local inbox and the handler
+     * @return A histogram in nanoseconds
+     */
+    public LatencyHistogram getQueueDelay() {
+        return queueDelay;
     }
 
     public long getCurrent() {
         return current.get();
     }
 
-    public static double getCurrentEPS() {
-        return currentEPS;
+    /**
+     * Return the bulkhead limiting this subscription
+     * @return The bulkhead or null if the subscription is unlimited and runs on the processor threads
+     */
+    public Bulkhead getBulkhead() {
+        return bulkhead;
+    }
+
+    public void setBulkhead(Bulkhead bulkhead) {
+        this.bulkhead = bulkhead;
+    }
+
+    /**
+     * Return the batcher collecting envelopes for this subscription
+     * @return The batcher or null if the handler takes one envelope at a time
+     */
+    public Batcher getBatcher() {
+        return batcher;
+    }
+
+    public void setBatcher(Batcher batcher) {
+        this.batcher = batcher;
+    }
+
+    /**
+     * Return the criteria key that orders this subscription's envelopes
+     * @return The key name, or null to use the ordering key set by the sender
+     */
+    public String getOrderingKey() {
+        return orderingKey;
+    }
+
+    public void setOrderingKey(String orderingKey) {
+        this.orderingKey = orderingKey;
+    }
+
+    /**
+     * Return the rate at which envelopes reach this destination's handler
+     * @return A meter the node ticks once a second
+     */
+    public RateMeter getRate() {
+        return rate;
     }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2015, Eric A Maginniss
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL ERIC A MAGINNISS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.emaginniss.agni.impl;
+
+import org.emaginniss.agni.*;
+import org.emaginniss.agni.attachments.Attachments;
+import org.emaginniss.agni.messages.InvalidateCache;
+import org.emaginniss.agni.messages.StatsResponse;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches request responses on the calling node, keyed by type, criteria and serialized payload.  Each type keeps its
+ * own LRU holding at most the maxEntries last asked for, entries expire ttl milliseconds after they were stored and an
+ * InvalidateCache broadcast drops a type's entries on every node.  A cached response is shared by every caller that
+ * hits it, so it must be treated as read only.  Null responses are not cached, since a request that timed out looks
+ * the same.
+ */
+public class NearCache {
+
+    private final Node node;
+    private final Map<String, TypeCache> caches = new ConcurrentHashMap<>();
+
+    public NearCache(Node node) {
+        this.node = node;
+    }
+
+    public PayloadAndAttachments request(Object payload, String type, Criteria criteria, Attachments attachments, Priority priority, Long timeout, long ttl, int maxEntries) {
+        if (attachments != null && !attachments.isEmpty()) {
+            //Attachments are not part of the key, so these always reach the handler
+            return node.request(payload, type, criteria, attachments, priority, timeout);
+        }
+
+        Lookup lookup = new Lookup(payload, type, criteria);
+        Entry entry = lookup.cache.get(lookup.key);
+        if (entry != null) {
+            return entry.response;
+        }
+        long generation = lookup.cache.getGeneration();
+        PayloadAndAttachments response = node.request(payload, type, criteria, attachments, priority, timeout);
+        lookup.store(response, generation, ttl, maxEntries);
+        return response;
+    }
+
+    public CompletableFuture<PayloadAndAttachments> requestAsync(Object payload, String type, Criteria criteria, Attachments attachments, Priority priority, Long timeout, long ttl, int maxEntries) {
+        if (attachments != null && !attachments.isEmpty()) {
+            return node.requestAsync(payload, type, criteria, attachments, priority, timeout);
+        }
+
+        Lookup lookup = new Lookup(payload, type, criteria);
+        Entry entry = lookup.cache.get(lookup.key);
+        if (entry != null) {
+            return CompletableFuture.completedFuture(entry.response);
+        }
+        long generation = lookup.cache.getGeneration();
+        CompletableFuture<PayloadAndAttachments> request = node.requestAsync(payload, type, criteria, attachments, priority, timeout);
+        CompletableFuture<PayloadAndAttachments> out = request.thenApply(response -> {
+            lookup.store(response, generation, ttl, maxEntries);
+            return response;
+        });
+        out.whenComplete((r, t) -> {
+            if (out.isCancelled()) {
+                request.cancel(false);
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Drop the cached responses for a type on this node only, see Node.invalidate() to reach the whole cluster
+     * @param criteria Only drop responses to requests carrying all of these criteria, or everything when null or empty
+     */
+    public void invalidate(String type, Criteria criteria) {
+        TypeCache cache = caches.get(type);
+        if (cache != null) {
+            cache.invalidate(criteria);
+        }
+    }
+
+    public void handle(InvalidateCache invalidateCache) {
+        invalidate(invalidateCache.getType(), invalidateCache.getCriteria());
+    }
+
+    public Map<String, StatsResponse.CacheInfo> getCacheInfos() {
+        Map<String, StatsResponse.CacheInfo> out = new TreeMap<>();
+        for (Map.Entry<String, TypeCache> entry : caches.entrySet()) {
+            out.put(entry.getKey(), entry.getValue().getCacheInfo());
+        }
+        return out;
+    }
+
+    private class Lookup {
+        private final Criteria criteria;
+        private final String key;
+        private final TypeCache cache;
+
+        private Lookup(Object payload, String type, Criteria criteria) {
+            this.criteria = criteria == null ? new Criteria() : new Criteria(criteria);
+            this.key = this.criteria + "\n" + node.getSerializer().serialize(payload);
+            this.cache = caches.computeIfAbsent(type == null ? payload.getClass().getName() : type, t -> new TypeCache());
+        }
+
+        private void store(PayloadAndAttachments response, long generation, long ttl, int maxEntries) {
+            //A request that timed out also comes back null, so null is never taken as the answer
+            if (response != null) {
+                cache.put(key, new Entry(criteria, response, System.currentTimeMillis() + ttl), maxEntries, generation);
+            }
+        }
+    }
+
+    private static class Entry {
+        private final Criteria criteria;
+        private final PayloadAndAttachments response;
+        private final long expiresAt;
+
+        private Entry(Criteria criteria, PayloadAndAttachments response, long expiresAt) {
+            this.criteria = criteria;
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class TypeCache {
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private int maxEntries;
+        private long generation;
+        private long hits;
+        private long misses;
+        private long evictions;
+        private long invalidations;
+
+        private synchronized Entry get(String key) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+                entries.remove(key);
+                evictions++;
+                entry = null;
+            }
+            if (entry == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+            return entry;
+        }
+
+        private synchronized long getGeneration() {
+            return generation;
+        }
+
+        private synchronized void put(String key, Entry entry, int maxEntries, long generation) {
+            this.maxEntries = maxEntries;
+            if (generation != this.generation) {
+                //An invalidation arrived while the request was in flight, so the response may already be stale
+                return;
+            }
+            entries.put(key, entry);
+            Iterator<Entry> it = entries.values().iterator();
+            while (entries.size() > maxEntries && it.hasNext()) {
+                it.next();
+                it.remove();
+                evictions++;
+            }
+        }
+
+        private synchronized void invalidate(Criteria criteria) {
+            generation++;
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (criteria == null || entry.criteria.entrySet().containsAll(criteria.entrySet())) {
+                    it.remove();
+                    invalidations++;
+                }
+            }
+        }
+
+        private synchronized StatsResponse.CacheInfo getCacheInfo() {
+            return new StatsResponse.CacheInfo(entries.size(), maxEntries, hits, misses, evictions, invalidations);
+        }
+    }
+}
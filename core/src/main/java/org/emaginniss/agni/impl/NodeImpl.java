@@ -27,24 +27,35 @@
 
 package org.emaginniss.agni.impl;
 
+import com.google.gson.JsonObject;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.beanutils.BeanComparator;
 import org.emaginniss.agni.*;
 import org.emaginniss.agni.annotations.Subscribe;
 import org.emaginniss.agni.attachments.Attachments;
+import org.emaginniss.agni.copiers.PayloadCopier;
+import org.emaginniss.agni.loadbalancers.LoadBalancer;
 import org.emaginniss.agni.managers.ManagerFactory;
 import org.emaginniss.agni.messageboxes.MessageBox;
+import org.emaginniss.agni.messages.InvalidateCache;
 import org.emaginniss.agni.messages.StatsResponse;
 import org.emaginniss.agni.messages.StopRouting;
 import org.emaginniss.agni.pathfinders.PathFinder;
 import org.emaginniss.agni.serializers.Serializer;
+import org.emaginniss.agni.util.EnvelopeInputStream;
+import org.emaginniss.agni.util.EnvelopeOutputStream;
+import org.emaginniss.agni.util.RecordLog;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.IOException;
+import java.io.*;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 public class NodeImpl implements Node {
@@ -56,12 +67,31 @@ public class NodeImpl implements Node {
     private DestinationRegistration destinationRegistration = new DestinationRegistration(this);
     private ConnectionData connectionData;
     private WhisperHandler whisperHandler;
+    private NearCache nearCache;
     private PathFinder pathFinder;
     private Serializer serializer;
+    private PayloadCopier payloadCopier;
+    private RoutingCache routingCache;
+    private LoadBalancer loadBalancer;
+    private final Map<String, LoadBalancer> loadBalancersByType = new HashMap<>();
+    private final Map<String, LoadBalancer> loadBalancersByName = new ConcurrentHashMap<>();
     private MessageBox inbox;
+    private final Queue<Envelope> recovered = new ConcurrentLinkedQueue<>();
     private ManagerFactory managerFactory;
     private ThreadGroup threadGroup;
     private Set<ProcessorThread> processorThreads = new HashSet<>();
+    private List<ProcessorPool> processorPools = new ArrayList<>();
+    private ExecutorService handlerExecutor;
+    private Map<String, ExecutorService> executors = new HashMap<>();
+    private List<Batcher> batchers = new CopyOnWriteArrayList<>();
+    private OrderingGate orderingGate = new OrderingGate();
+    private final Set<String> orderingCriteria = ConcurrentHashMap.newKeySet();
+    private Configuration executorConfigurations;
+    private int defaultExecutorSize;
+    private ScheduledThreadPoolExecutor timeoutScheduler;
+    private long timerRetryDelay;
+    private TimingWheel timingWheel;
+    private RecordLog timerLog;
     private boolean shuttingDown = false;
 
     public NodeImpl() {
@@ -90,17 +120,83 @@ public class NodeImpl implements Node {
         log.debug("Creating serializer");
         serializer = Factory.instantiate(Serializer.class, configuration.getChild("serializer"), this);
 
+        if (configuration.has("localDelivery")) {
+            log.debug("Creating local delivery payload copier");
+            payloadCopier = Factory.instantiate(PayloadCopier.class, configuration.getChild("localDelivery"), this);
+        }
+
+        routingCache = new RoutingCache(configuration.getInt("routingCacheSize", 10000));
+
+        log.debug("Creating load balancers");
+        loadBalancer = Factory.instantiate(LoadBalancer.class, configuration.getChild("loadBalancer"), this);
+        Map<String, Configuration> loadBalancerConfigurations = configuration.getMap("loadBalancers");
+        for (String messageType : loadBalancerConfigurations.keySet()) {
+            loadBalancersByType.put(messageType, Factory.instantiate(LoadBalancer.class, loadBalancerConfigurations.get(messageType), this));
+        }
+
         log.debug("Creating manager factory");
         managerFactory = Factory.instantiate(ManagerFactory.class, configuration.getChild("managerFactory"), this);
 
-        int threadCount = configuration.getInt("threadCount", 10);
-        log.debug("Starting " + threadCount + " processor threads");
-        for (Priority p : Priority.values()) {
-            for (int i = 0; i < threadCount; i++) {
-                ProcessorThread pt = new ProcessorThread(threadGroup, displayName + " - ProcessorThread[" + i + "]", this, p);
+        executorConfigurations = configuration.getChild("executors");
+        defaultExecutorSize = configuration.getInt("threadCount", 10);
+
+        String executionMode = configuration.getString("executionMode", "threads");
+        if ("virtual".equals(executionMode)) {
+            int maxConcurrency = configuration.getInt("maxConcurrency", 1000);
+            log.debug("Starting dispatcher threads with " + maxConcurrency + " handlers per priority");
+            handlerExecutor = createHandlerExecutor();
+            for (Priority p : Priority.values()) {
+                ProcessorThread pt = new ProcessorThread(threadGroup, displayName + " - DispatcherThread[" + p + "]", this, p, handlerExecutor, new Semaphore(maxConcurrency));
                 pt.start();
                 processorThreads.add(pt);
             }
+        } else if ("threads".equals(executionMode)) {
+            int threadCount = configuration.getInt("threadCount", 10);
+            Configuration poolConfiguration = configuration.getChild("pools");
+            boolean adaptive = poolConfiguration.getBoolean("adaptive", false);
+            int minimum = adaptive ? poolConfiguration.getInt("minimum", 1) : threadCount;
+            int maximum = adaptive ? poolConfiguration.getInt("maximum", threadCount * 4) : threadCount;
+            log.debug("Starting " + threadCount + " processor threads" + (adaptive ? " with adaptive pools between " + minimum + " and " + maximum : ""));
+            for (Priority p : Priority.values()) {
+                processorPools.add(new ProcessorPool(threadGroup, displayName + " - ProcessorThread", this, p, threadCount, minimum, maximum, poolConfiguration.getLong("interval", 1000), poolConfiguration.getLong("sojournTarget", 50), poolConfiguration.getInt("shrinkAfter", 5)));
+            }
+        } else {
+            throw new RuntimeException("Unknown execution mode " + executionMode);
+        }
+
+        timeoutScheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(threadGroup, r, displayName + " - SchedulerThread");
+            t.setDaemon(true);
+            return t;
+        });
+        timeoutScheduler.setRemoveOnCancelPolicy(true);
+        long rateInterval = configuration.getLong("rateInterval", 1000);
+        timeoutScheduler.scheduleAtFixedRate(this::tickRates, rateInterval, rateInterval, TimeUnit.MILLISECONDS);
+        Configuration poolConfiguration = configuration.getChild("pools");
+        if (!processorPools.isEmpty() && poolConfiguration.getBoolean("adaptive", false)) {
+            long interval = poolConfiguration.getLong("interval", 1000);
+            timeoutScheduler.scheduleAtFixedRate(() -> {
+                for (ProcessorPool pool : processorPools) {
+                    try {
+                        //Only the envelopes a pool's threads may take should make it grow
+                        pool.adjust(inbox.getCurrentSize(pool.getPriority()));
+                    } catch (Throwable t) {
+                        log.error("Error while resizing processor pool", t);
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        log.debug("Creating timing wheel");
+        Configuration timerConfiguration = configuration.getChild("timers");
+        timingWheel = new TimingWheel(threadGroup, displayName + " - TimerThread", timerConfiguration.getLong("tick", 10), timerConfiguration.getInt("wheelSize", 512), timerConfiguration.getInt("levels", 4), timeoutScheduler);
+        timerRetryDelay = timerConfiguration.getLong("retryDelay", 100);
+        if (timerConfiguration.has("storageLocation")) {
+            try {
+                timerLog = new RecordLog(Paths.get(timerConfiguration.getString("storageLocation", null)).resolve("timers.wal"), timerConfiguration);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         }
 
         log.debug("Creating path finder");
@@ -108,10 +204,29 @@ public class NodeImpl implements Node {
 
         log.debug("Creating whisper handler");
         whisperHandler = new WhisperHandler(this);
+        nearCache = new NearCache(this);
 
         log.debug("Creating connection data");
         connectionData = new ConnectionData(configuration.getMap("connections"), this);
 
+        recovered.addAll(inbox.recover());
+        if (timerLog != null) {
+            for (byte[] value : timerLog.getRecovered().values()) {
+                try {
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+                    long deliveryTime = in.readLong();
+                    schedule(deliveryTime, new EnvelopeInputStream(in).read());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            log.info(timerLog.getRecovered().size() + " scheduled envelopes recovered");
+        }
+        if (!recovered.isEmpty()) {
+            log.info(recovered.size() + " envelopes recovered from the inbox will be delivered once their destinations are subscribed");
+            releaseRecovered();
+        }
+
         log.debug("Agni initialization completed in " + (new Date().getTime() - start) + "ms");
         Thread.currentThread().setName(threadName);
     }
@@ -138,16 +253,46 @@ public class NodeImpl implements Node {
                 if ("".equals(displayName)) {
                     displayName = null;
                 }
+                String loadBalancer = subscribe.loadBalancer();
+                if ("".equals(loadBalancer)) {
+                    loadBalancer = null;
+                }
+                Bulkhead bulkhead = null;
+                if (!"".equals(subscribe.executor())) {
+                    bulkhead = new Bulkhead(subscribe.maxConcurrency(), getExecutor(subscribe.executor(), subscribe.maxConcurrency()));
+                } else if (subscribe.maxConcurrency() > 0) {
+                    bulkhead = new Bulkhead(subscribe.maxConcurrency(), null);
+                }
+
+                String orderingKey = subscribe.orderingKey();
+                if ("".equals(orderingKey)) {
+                    orderingKey = null;
+                }
 
-                subscribe(object, method, type, criteria, displayName, null);
+                subscribe(object, method, type, criteria, displayName, null, loadBalancer, bulkhead, subscribe.batchSize(), subscribe.maxBatchDelayMs(), orderingKey);
             }
         }
     }
 
     @NotNull
     public String subscribe(@NotNull Object object, Method method, String type, Criteria criteria, String displayName, String uuid) {
+        return subscribe(object, method, type, criteria, displayName, uuid, null, null, 0, 0, null);
+    }
+
+    @NotNull
+    private String subscribe(@NotNull Object object, Method method, String type, Criteria criteria, String displayName, String uuid, String loadBalancer, Bulkhead bulkhead, int batchSize, long maxBatchDelay, String orderingKey) {
         if (type == null) {
-            for (Class paramType : method.getParameterTypes()) {
+            for (int i = 0; i < method.getParameterCount(); i++) {
+                Class paramType = method.getParameterTypes()[i];
+                if (batchSize > 0) {
+                    //Batch handlers take lists, the message type is the element type
+                    Type genericType = method.getGenericParameterTypes()[i];
+                    Type elementType = genericType instanceof ParameterizedType ? ((ParameterizedType) genericType).getActualTypeArguments()[0] : null;
+                    if (!(elementType instanceof Class)) {
+                        throw new RuntimeException("Unable to determine message type.  Batch handler parameters must be typed lists");
+                    }
+                    paramType = (Class) elementType;
+                }
                 if (paramType != Attachments.class && paramType != Envelope.class && paramType != Criteria.class) {
                     if (type != null) {
                         throw new RuntimeException("Unable to determine message type.  Multiple types found");
@@ -166,12 +311,85 @@ public class NodeImpl implements Node {
         }
 
         LocalDestination ld = new LocalDestination(uuid, this.uuid, displayName, type, criteria, object, method);
+        ld.setLoadBalancer(loadBalancer);
+        ld.setBulkhead(bulkhead);
+        ld.setOrderingKey(orderingKey);
+        if (orderingKey != null) {
+            orderingCriteria.add(orderingKey);
+        }
+        if (batchSize > 0) {
+            Batcher batcher = new Batcher(batchSize, maxBatchDelay, batch -> {
+                if (ld.getBulkhead() == null) {
+                    deliverBatch(ld, batch);
+                } else {
+                    ld.getBulkhead().submit(() -> deliverBatch(ld, batch));
+                }
+            }, timeoutScheduler, getExecutor("batches", 0));
+            ld.setBatcher(batcher);
+            batchers.add(batcher);
+        }
 
         destinationRegistration.register(ld);
+        if (!recovered.isEmpty()) {
+            releaseRecovered();
+        }
 
         return ld.getUuid();
     }
 
+    /**
+     * Return the named executor for bulkheaded subscriptions, creating it on first use.  Sizes come from the executors
+     * configuration and fall back to the subscription's maxConcurrency, then to threadCount.
+     */
+    private synchronized ExecutorService getExecutor(String name, int maxConcurrency) {
+        ExecutorService executor = executors.get(name);
+        if (executor == null) {
+            int threadCount = executorConfigurations.getChild(name).getInt("threadCount", maxConcurrency > 0 ? maxConcurrency : defaultExecutorSize);
+            log.debug("Creating executor " + name + " with " + threadCount + " threads");
+            AtomicInteger counter = new AtomicInteger(0);
+            executor = Executors.newFixedThreadPool(threadCount, r -> {
+                Thread t = new Thread(threadGroup, r, displayName + " - " + name + "[" + counter.getAndIncrement() + "]");
+                t.setDaemon(true);
+                return t;
+            });
+            executors.put(name, executor);
+        }
+        return executor;
+    }
+
+    /**
+     * Re-enqueue recovered envelopes that now have a destination.  The rest stay held until a later subscription.
+     */
+    private void releaseRecovered() {
+        for (Envelope envelope : recovered) {
+            if (reroute(envelope) && recovered.remove(envelope)) {
+                enqueue(envelope);
+                if (timerLog != null) {
+                    timerLog.remove(envelope.getUuid());
+                }
+            }
+        }
+    }
+
+    /**
+     * Point an envelope at a destination that is known now
+     * @return False if there is no destination for it
+     */
+    private boolean reroute(Envelope envelope) {
+        String[] types = envelope.getType().equals(envelope.getClassName()) ? getClassTypes(envelope.getClassName()) : new String[]{envelope.getType()};
+        Set<Destination> destinations = getDestinationPaths(types, envelope.getCriteria(), false);
+        if (destinations.isEmpty()) {
+            return false;
+        }
+        Destination destination = destinations.iterator().next();
+        if (envelope.getPayload() == null && !isLocalDelivery(destination)) {
+            envelope.setPayload(serializer.serialize(envelope.getLocalPayload()));
+        }
+        envelope.setDestinationUuid(destination.getUuid());
+        envelope.setNodeUuid(destination.getNodeUuid());
+        return true;
+    }
+
     public void unsubscribe(@NotNull Object object, Method method) {
         destinationRegistration.unsubscribe(object, method);
     }
@@ -193,49 +411,362 @@ public class NodeImpl implements Node {
         return destinations;
     }
 
+    /**
+     * Return the criteria that can affect which destinations match.  Ordering keys are high cardinality by design, so
+     * unless some destination actually matches on them they are left out rather than each value taking its own routing
+     * cache entry.
+     */
+    @NotNull
+    private Criteria getRoutingCriteria(@NotNull Criteria criteria) {
+        Criteria out = criteria;
+        for (String key : criteria.keySet()) {
+            if ((Envelope.ORDERING_KEY.equals(key) || orderingCriteria.contains(key)) && !destinationRegistration.isCriteriaKey(key)) {
+                if (out == criteria) {
+                    out = new Criteria(criteria);
+                }
+                out.remove(key);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Resolve the ordered destinations for an outgoing message.  Steady state traffic is answered from the routing
+     * cache, which is dropped whenever the destination registration or the path finder changes.
+     */
+    @NotNull
+    private Route resolveRoute(@NotNull Object payload, String type, @NotNull Criteria criteria) {
+        long generation = destinationRegistration.getGeneration() + pathFinder.getGeneration();
+        Object typeKey = type == null ? payload.getClass() : type;
+        criteria = getRoutingCriteria(criteria);
+
+        Route route = routingCache.get(generation, typeKey, criteria);
+        if (route == null) {
+            String[] types = type == null ? getClassTypes(payload) : new String[]{type};
+            Set<Destination> destinations = Collections.unmodifiableSet(getDestinationPaths(types, criteria, false));
+            List<Destination> nearest = new ArrayList<>();
+            int nearestDistance = -1;
+            for (Destination destination : destinations) {
+                int distance = pathFinder.getDistance(destination);
+                if (nearestDistance != -1 && distance != nearestDistance) {
+                    break;
+                }
+                nearestDistance = distance;
+                nearest.add(destination);
+            }
+            LoadBalancer lb = nearest.isEmpty() ? loadBalancer : getLoadBalancer(nearest.get(0));
+            route = routingCache.put(generation, typeKey, criteria, new Route(destinations, Collections.unmodifiableList(nearest), lb));
+        }
+        return route;
+    }
+
+    /**
+     * Node configuration for the message type wins, then the load balancer named by the subscriber, then the node
+     * default
+     */
+    @NotNull
+    private LoadBalancer getLoadBalancer(Destination destination) {
+        LoadBalancer lb = loadBalancersByType.get(destination.getType());
+        if (lb == null && destination.getLoadBalancer() != null) {
+            lb = loadBalancersByName.computeIfAbsent(destination.getLoadBalancer(), name -> {
+                JsonObject lbConfiguration = new JsonObject();
+                lbConfiguration.addProperty("type", name);
+                return Factory.instantiate(LoadBalancer.class, new Configuration(lbConfiguration), this);
+            });
+        }
+        return lb == null ? loadBalancer : lb;
+    }
+
     public void send(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority) {
+        enqueue(buildSendEnvelope(payload, type, criteria, attachments, priority));
+    }
+
+    public boolean trySend(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority, long timeout) {
+        Envelope envelope = buildSendEnvelope(payload, type, criteria, attachments, priority);
+        log.trace("Offering envelope " + envelope.getUuid());
+        try {
+            return offer(envelope, timeout);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Enqueue unless the inbox is still full after the timeout
+     * @return False if the inbox rejected the envelope
+     */
+    private boolean offer(Envelope envelope, long timeout) throws InterruptedException {
+        String orderingKey = getOrderingKey(envelope);
+        if (orderingKey != null && orderingGate.hold(orderingKey, envelope)) {
+            return true;
+        }
+        envelope.setEnqueuedAt(System.nanoTime());
+        boolean offered = false;
+        try {
+            offered = inbox.offer(envelope, timeout);
+        } finally {
+            if (!offered && orderingKey != null) {
+                completed(envelope);
+            }
+        }
+        return offered;
+    }
+
+    @NotNull
+    public ScheduledDelivery sendAt(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority, long deliveryTime) {
+        Envelope envelope = buildSendEnvelope(payload, type, criteria, attachments, priority);
+        if (timerLog != null) {
+            if (envelope.getPayload() == null) {
+                envelope.setPayload(serializer.serialize(envelope.getLocalPayload()));
+            }
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+                new DataOutputStream(baos).writeLong(deliveryTime);
+                new EnvelopeOutputStream(baos).write(envelope);
+                timerLog.put(envelope.getUuid(), baos.toByteArray());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return schedule(deliveryTime, envelope);
+    }
+
+    @NotNull
+    private ScheduledDelivery schedule(long deliveryTime, Envelope envelope) {
+        ScheduledEnvelope scheduled = new ScheduledEnvelope(deliveryTime, envelope);
+        scheduled.arm(deliveryTime);
+        return scheduled;
+    }
+
+    /**
+     * A scheduled envelope keeps its handle across retries, so it can still be cancelled while it waits for room
+     */
+    private class ScheduledEnvelope implements ScheduledDelivery {
+        private final long deliveryTime;
+        private final Envelope envelope;
+        private ScheduledDelivery timer;
+        private boolean cancelled = false;
+
+        private ScheduledEnvelope(long deliveryTime, Envelope envelope) {
+            this.deliveryTime = deliveryTime;
+            this.envelope = envelope;
+        }
+
+        private synchronized void arm(long time) {
+            if (!cancelled) {
+                timer = timingWheel.schedule(time, () -> deliverScheduled(this));
+            }
+        }
+
+        @Override
+        public long getDeliveryTime() {
+            return deliveryTime;
+        }
+
+        @Override
+        public synchronized boolean cancel() {
+            if (cancelled || !timer.cancel()) {
+                return false;
+            }
+            cancelled = true;
+            if (timerLog != null) {
+                timerLog.remove(envelope.getUuid());
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private void deliverScheduled(ScheduledEnvelope scheduled) {
+        if (shuttingDown) {
+            return;
+        }
+        Envelope envelope = scheduled.envelope;
+        if (destinationRegistration.getDestination(envelope.getDestinationUuid()) == null && !reroute(envelope)) {
+            if (timerLog == null) {
+                log.warn("Dropping scheduled envelope " + envelope.getUuid() + ", no destination for " + envelope.getType());
+            } else {
+                //Held like a recovered envelope until a destination is subscribed
+                recovered.add(envelope);
+            }
+            return;
+        }
+        //This runs on the scheduler thread that also expires requests, so it must never wait for room in the inbox
+        boolean delivered;
+        try {
+            delivered = offer(envelope, 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (RuntimeException e) {
+            log.error("Unable to enqueue scheduled envelope " + envelope.getUuid(), e);
+            delivered = false;
+        }
+        if (!delivered) {
+            scheduled.arm(System.currentTimeMillis() + timerRetryDelay);
+            return;
+        }
+        if (timerLog != null) {
+            timerLog.remove(envelope.getUuid());
+        }
+    }
+
+    @NotNull
+    private Envelope buildSendEnvelope(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority) {
         if (shuttingDown) {
             throw new RuntimeException("Node is shutting down");
         }
 
-        String[] types = type == null ? getClassTypes(payload) : new String[]{type};
+        String envelopeType = type == null ? payload.getClass().getName() : type;
         priority = priority == null ? Priority.MEDIUM : priority;
         criteria = criteria == null ? new Criteria() : criteria;
         attachments = attachments == null ? new Attachments() : attachments;
 
-        Set<Destination> destinations = getDestinationPaths(types, criteria, false);
-        if (destinations.size() == 0) {
+        Route route = resolveRoute(payload, type, criteria);
+        if (route.isEmpty()) {
             throw new NoRecipientException();
         }
 
-        Destination destination = destinations.iterator().next();
+        Destination destination = route.select(getRoutingOrderingKey(criteria));
 
-        Envelope envelope = new Envelope(types[0], payload.getClass().getName(), serializer.serialize(payload), priority, attachments, criteria, false);
+        Envelope envelope = new Envelope(envelopeType, payload.getClass().getName(), null, priority, attachments, criteria, false);
+        if (isLocalDelivery(destination)) {
+            envelope.setLocalPayload(payloadCopier.copy(payload));
+        } else {
+            envelope.setPayload(serializer.serialize(payload));
+        }
         envelope.setDestinationUuid(destination.getUuid());
         envelope.setNodeUuid(destination.getNodeUuid());
+        return envelope;
+    }
 
-        enqueue(envelope);
+    /**
+     * Return the ordering key an outgoing envelope is pinned to a replica by, so that envelopes with the same key are
+     * never in flight on two nodes at once
+     */
+    @Nullable
+    private String getRoutingOrderingKey(@NotNull Criteria criteria) {
+        String key = criteria.get(Envelope.ORDERING_KEY);
+        if (key != null) {
+            return key;
+        }
+        for (String name : orderingCriteria) {
+            String value = criteria.get(name);
+            if (value != null) {
+                return name + "=" + value;
+            }
+        }
+        return null;
+    }
+
+    private boolean isLocalDelivery(Destination destination) {
+        return payloadCopier != null && destination instanceof LocalDestination;
     }
 
     private void enqueue(Envelope envelope) {
+        String orderingKey = getOrderingKey(envelope);
+        if (orderingKey != null && orderingGate.hold(orderingKey, envelope)) {
+            log.trace("Holding envelope " + envelope.getUuid() + " behind ordering key " + orderingKey);
+            return;
+        }
+        try {
+            admit(envelope);
+        } catch (RuntimeException e) {
+            if (orderingKey != null) {
+                //Nothing is in flight for the key after all, so let the next one in
+                completed(envelope);
+            }
+            throw e;
+        }
+    }
+
+    private void admit(Envelope envelope) {
         log.trace("Enqueuing envelope " + envelope.getUuid());
+        envelope.setEnqueuedAt(System.nanoTime());
         inbox.enqueue(envelope);
     }
 
+    public void dropped(@NotNull Envelope envelope) {
+        log.debug("Envelope " + envelope.getUuid() + " was dropped by the inbox");
+        inbox.acknowledge(envelope);
+        completed(envelope);
+        fail(envelope, new RuntimeException("Message box is full"));
+    }
+
+    private void fail(Envelope envelope, Throwable t) {
+        ResultContainer result = waiting.get(envelope.getUuid());
+        if (result != null) {
+            result.fail(t);
+        }
+    }
+
+    /**
+     * Return the key that orders an envelope against the others for the same local destination
+     * @return The gate key or null if the envelope is not ordered
+     */
+    @Nullable
+    private String getOrderingKey(Envelope envelope) {
+        if (envelope.getResponseToUuid() != null || envelope.getCriteria() == null || envelope.getCriteria().isEmpty() || !uuid.equals(envelope.getNodeUuid())) {
+            return null;
+        }
+        Destination destination = destinationRegistration.getDestination(envelope.getDestinationUuid());
+        if (!(destination instanceof LocalDestination)) {
+            return null;
+        }
+        String keyName = ((LocalDestination) destination).getOrderingKey();
+        String key = envelope.getCriteria().get(keyName == null ? Envelope.ORDERING_KEY : keyName);
+        return key == null ? null : destination.getUuid() + ":" + key;
+    }
+
+    /**
+     * Called once an envelope for a local destination has been handled, to let the next one with its ordering key in
+     */
+    private void completed(Envelope envelope) {
+        String orderingKey = getOrderingKey(envelope);
+        if (orderingKey != null) {
+            Envelope next = orderingGate.release(orderingKey);
+            while (next != null) {
+                try {
+                    admit(next);
+                    return;
+                } catch (RuntimeException e) {
+                    log.error("Unable to enqueue held envelope " + next.getUuid(), e);
+                    fail(next, e);
+                    next = orderingGate.release(orderingKey);
+                }
+            }
+        }
+    }
+
     public void broadcast(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority) {
         if (shuttingDown) {
             throw new RuntimeException("Node is shutting down");
         }
 
-        String[] types = type == null ? getClassTypes(payload) : new String[]{type};
+        String envelopeType = type == null ? payload.getClass().getName() : type;
         priority = priority == null ? Priority.MEDIUM : priority;
         criteria = criteria == null ? new Criteria() : criteria;
         attachments = attachments == null ? new Attachments() : attachments;
 
-        Set<Destination> destinations = getDestinationPaths(types, criteria, false);
+        Set<Destination> destinations = resolveRoute(payload, type, criteria).getDestinations();
 
+        //Every envelope in the fan-out shares the same serialized body, criteria and attachments
+        String className = payload.getClass().getName();
+        String serialized = null;
         for (Destination destination : destinations) {
-            Envelope envelope = new Envelope(types[0], payload.getClass().getName(), serializer.serialize(payload), priority, attachments, criteria, false);
+            Envelope envelope = new Envelope(envelopeType, className, null, priority, attachments, criteria, false);
+            if (isLocalDelivery(destination)) {
+                envelope.setLocalPayload(payloadCopier.copy(payload));
+            } else {
+                if (serialized == null) {
+                    serialized = serializer.serialize(payload);
+                }
+                envelope.setPayload(serialized);
+            }
             envelope.setDestinationUuid(destination.getUuid());
             envelope.setNodeUuid(destination.getNodeUuid());
 
@@ -245,124 +776,215 @@ public class NodeImpl implements Node {
 
     @Nullable
     public PayloadAndAttachments request(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority, Long timeout) {
+        Envelope envelope = buildRequestEnvelope(payload, type, criteria, attachments, priority);
+
+        if (envelope.getNodeUuid().equals(getUuid())) {
+            //The caller is blocked anyway, so run the handler on this thread instead of tying up a processor thread
+            LocalDestination ld = destinationRegistration.getLocalDestination(envelope.getDestinationUuid());
+            if (ld == null) {
+                throw new RuntimeException("Unable to find destination for envelope");
+            }
+            if (ld.getBulkhead() != null || ld.getBatcher() != null || getOrderingKey(envelope) != null) {
+                //Bulkheaded, batched and ordered subscriptions only run within their own limits
+                return await(dispatch(envelope, timeout));
+            }
+            LoadBalancer lb = getLoadBalancer(ld);
+            long start = System.nanoTime();
+            lb.requestStarted(ld);
+            try {
+                return unwrapResponse(ld.invoke(envelope, payload));
+            } finally {
+                lb.requestCompleted(ld, System.nanoTime() - start);
+            }
+        }
+
+        return await(dispatch(envelope, timeout));
+    }
+
+    @NotNull
+    public CompletableFuture<PayloadAndAttachments> requestAsync(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority, Long timeout) {
+        Envelope envelope;
+        try {
+            envelope = buildRequestEnvelope(payload, type, criteria, attachments, priority);
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+        return dispatch(envelope, timeout);
+    }
+
+    @NotNull
+    private <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    /**
+     * Cancelling the future handed to the caller cancels the underlying result, which releases the waiting entries
+     * and the timeout.
+     */
+    @NotNull
+    private <T> CompletableFuture<T> cancellable(CompletableFuture<T> future, ResultContainer result) {
+        future.whenComplete((r, t) -> {
+            if (future.isCancelled()) {
+                result.cancel();
+            }
+        });
+        return future;
+    }
+
+    @NotNull
+    private Envelope buildRequestEnvelope(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority) {
         if (shuttingDown) {
             throw new RuntimeException("Node is shutting down");
         }
 
-        String[] types = type == null ? getClassTypes(payload) : new String[]{type};
+        String envelopeType = type == null ? payload.getClass().getName() : type;
         priority = priority == null ? Priority.HIGH : priority;
         criteria = criteria == null ? new Criteria() : criteria;
         attachments = attachments == null ? new Attachments() : attachments;
-        timeout = timeout == null ? 30000 : timeout;
 
-        Set<Destination> destinations = getDestinationPaths(types, criteria, false);
-        if (destinations.size() == 0) {
+        Route route = resolveRoute(payload, type, criteria);
+        if (route.isEmpty()) {
             throw new NoRecipientException();
         }
 
-        Destination destination = destinations.iterator().next();
+        Destination destination = route.select(getRoutingOrderingKey(criteria));
 
-        Envelope envelope = new Envelope(types[0], payload.getClass().getName(), serializer.serialize(payload), priority, attachments, criteria, true);
+        Envelope envelope = new Envelope(envelopeType, payload.getClass().getName(), serializer.serialize(payload), priority, attachments, criteria, true);
         envelope.setDestinationUuid(destination.getUuid());
         envelope.setNodeUuid(destination.getNodeUuid());
+        return envelope;
+    }
 
-        PayloadAndAttachments resp = null;
-        if (destination.getNodeUuid().equals(getUuid())) {
-            LocalDestination ld = destinationRegistration.getLocalDestination(envelope.getDestinationUuid());
-            if (ld == null) {
-                throw new RuntimeException("Unable to find destination for envelope");
-            }
-            resp = ld.invoke(envelope, payload);
-        } else {
-            final ResultContainer result = new ResultContainer(1);
+    @NotNull
+    private CompletableFuture<PayloadAndAttachments> dispatch(Envelope envelope, Long timeout) {
+        ResultContainer result = new ResultContainer(1);
+        CompletableFuture<Map<Destination, PayloadAndAttachments>> future = dispatch(Collections.singleton(envelope), result, timeout);
+
+        Destination destination = destinationRegistration.getDestination(envelope.getDestinationUuid());
+        if (destination != null) {
+            LoadBalancer lb = getLoadBalancer(destination);
+            long start = System.nanoTime();
+            lb.requestStarted(destination);
+            future = future.whenComplete((r, t) -> lb.requestCompleted(destination, System.nanoTime() - start));
+        }
+        return cancellable(future.thenApply(r -> r.isEmpty() ? null : unwrapResponse(r.values().iterator().next())), result);
+    }
 
-            synchronized (result) {
-                waiting.put(envelope.getUuid(), result);
+    @NotNull
+    private CompletableFuture<Map<Destination, PayloadAndAttachments>> dispatch(final Collection<Envelope> envelopes, final ResultContainer result, Long timeout) {
+        timeout = timeout == null ? 30000 : timeout;
 
-                enqueue(envelope);
+        for (Envelope e : envelopes) {
+            waiting.put(e.getUuid(), result);
+        }
 
-                try {
-                    result.wait(timeout);
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    waiting.remove(envelope.getUuid());
-                }
+        final ScheduledFuture<?> expiry = timeoutScheduler.schedule(result::complete, timeout, TimeUnit.MILLISECONDS);
+        Runnable release = () -> {
+            expiry.cancel(false);
+            for (Envelope e : envelopes) {
+                waiting.remove(e.getUuid());
             }
+        };
+        CompletableFuture<Map<Destination, PayloadAndAttachments>> future = result.getFuture().whenComplete((r, t) -> release.run());
+        future.whenComplete((r, t) -> {
+            if (future.isCancelled()) {
+                //Cancelling this stage directly never reaches the release above
+                result.cancel();
+                release.run();
+            }
+        });
 
-            if (result.getResult().size() > 0) {
-                resp = result.getResult().values().iterator().next();
+        try {
+            for (Envelope e : envelopes) {
+                enqueue(e);
             }
+        } catch (RuntimeException e) {
+            //Fail the request rather than the caller, which also releases the waiting entries and the timeout
+            result.fail(e);
         }
 
-        if (resp != null) {
-            if (resp.getPayload() instanceof Throwable) {
-                if (resp.getPayload() instanceof RuntimeException) {
-                    throw (RuntimeException) resp.getPayload();
-                } else {
-                    throw new RuntimeException((Throwable) resp.getPayload());
-                }
+        return future;
+    }
+
+    private PayloadAndAttachments unwrapResponse(PayloadAndAttachments resp) {
+        if (resp != null && resp.getPayload() instanceof Throwable) {
+            if (resp.getPayload() instanceof RuntimeException) {
+                throw (RuntimeException) resp.getPayload();
+            } else {
+                throw new RuntimeException((Throwable) resp.getPayload());
             }
-            return resp;
         }
+        return resp;
+    }
 
-        return null;
+    private <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
     }
 
     @NotNull
     public Map<Destination, PayloadAndAttachments> requestAll(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority, Long timeout) {
+        return await(requestAllAsync(payload, type, criteria, attachments, priority, timeout));
+    }
+
+    @NotNull
+    public CompletableFuture<Map<Destination, PayloadAndAttachments>> requestAllAsync(@NotNull Object payload, String type, Criteria criteria, Attachments attachments, Priority priority, Long timeout) {
         if (shuttingDown) {
-            throw new RuntimeException("Node is shutting down");
+            return failed(new RuntimeException("Node is shutting down"));
         }
 
-        String[] types = type == null ? getClassTypes(payload) : new String[]{type};
+        String envelopeType = type == null ? payload.getClass().getName() : type;
         priority = priority == null ? Priority.HIGH : priority;
         criteria = criteria == null ? new Criteria() : criteria;
         attachments = attachments == null ? new Attachments() : attachments;
-        timeout = timeout == null ? 30000 : timeout;
 
-        Set<Destination> destinations = getDestinationPaths(types, criteria, false);
+        Set<Destination> destinations = resolveRoute(payload, type, criteria).getDestinations();
         if (destinations.size() == 0) {
-            return new HashMap<>();
+            return CompletableFuture.completedFuture(new HashMap<>());
         }
 
         ResultContainer result = new ResultContainer(destinations.size());
-        Set<Envelope> envelopes = new HashSet<>();
+        List<Envelope> envelopes = new ArrayList<>(destinations.size());
+        String className = payload.getClass().getName();
+        String serialized = serializer.serialize(payload);
         for (Destination destination : destinations) {
-            Envelope envelope = new Envelope(types[0], payload.getClass().getName(), serializer.serialize(payload), priority, attachments, criteria, true);
+            Envelope envelope = new Envelope(envelopeType, className, serialized, priority, attachments, criteria, true);
             envelope.setDestinationUuid(destination.getUuid());
             envelope.setNodeUuid(destination.getNodeUuid());
 
-            waiting.put(envelope.getUuid(), result);
-
             envelopes.add(envelope);
         }
 
-        synchronized (result) {
-            for (Envelope e : envelopes) {
-                enqueue(e);
-            }
+        return dispatch(envelopes, result, timeout);
+    }
 
-            if (result.getResult().size() < destinations.size()) {
-                try {
-                    result.wait(timeout);
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    for (Envelope e : envelopes) {
-                        waiting.remove(e.getUuid());
-                    }
-                }
-            }
+    @NotNull
+    private String[] getClassTypes(String className) {
+        try {
+            return getClassTypes(Class.forName(className));
+        } catch (ClassNotFoundException e) {
+            return new String[]{className};
         }
-
-        return result.getResult();
     }
 
     @NotNull
     private String[] getClassTypes(Object payload) {
+        return getClassTypes(payload.getClass());
+    }
+
+    @NotNull
+    private String[] getClassTypes(Class clazz) {
         List<String> out = new ArrayList<>();
-        Class clazz = payload.getClass();
         while (clazz != null) {
             out.add(clazz.getName());
             clazz = clazz.getSuperclass();
@@ -381,24 +1003,53 @@ public class NodeImpl implements Node {
         envelope.setPath(path.toArray(new String[path.size()]));
 
         if (envelope.getNodeUuid().equals(uuid)) {
-            Object payload = envelope.getPayload() == null ? null : serializer.deserialize(envelope.getPayload(), envelope.getClassName());
+            Object payload = envelope.getLocalPayload();
+            if (payload == null && envelope.getPayload() != null) {
+                try {
+                    payload = serializer.deserialize(envelope.getPayload(), envelope.getClassName());
+                } catch (RuntimeException e) {
+                    completed(envelope);
+                    throw e;
+                }
+            }
 
             //This node is the final destination
             if (envelope.getResponseToUuid() == null) {
-                LocalDestination ld = destinationRegistration.getLocalDestination(envelope.getDestinationUuid());
-                if (ld == null) {
-                    throw new RuntimeException("Unable to find destination for envelope");
-                }
-                PayloadAndAttachments response = ld.invoke(envelope, payload);
-
-                if (envelope.isResponseExpected()) {
-                    Envelope out = new Envelope(response == null ? null : response.getPayload().getClass().getName(), response == null ? null : response.getPayload().getClass().getName(), response == null ? null : serializer.serialize(response.getPayload()), envelope.getPriority(), response == null ? null : response.getAttachments(), new Criteria(), false);
-                    out.setNodeUuid(envelope.getPath()[0]);
-                    out.setResponseToUuid(envelope.getUuid());
-                    out.setDestinationUuid(ld.getUuid());
-                    enqueue(out);
-                } else if (response != null && response.getPayload() instanceof Throwable) {
-                    throw new RuntimeException((Throwable) response.getPayload());
+                try {
+                    LocalDestination ld = destinationRegistration.getLocalDestination(envelope.getDestinationUuid());
+                    if (ld == null) {
+                        throw new RuntimeException("Unable to find destination for envelope");
+                    }
+                    if (ld.getBatcher() != null) {
+                        envelope.setLocalPayload(payload);
+                        envelope.setHandedOff(true);
+                        ld.getBatcher().add(envelope);
+                    } else if (ld.getBulkhead() == null) {
+                        deliver(ld, envelope, payload);
+                    } else {
+                        final Object localPayload = payload;
+                        envelope.setHandedOff(true);
+                        try {
+                            ld.getBulkhead().submit(() -> {
+                                try {
+                                    deliver(ld, envelope, localPayload);
+                                } finally {
+                                    try {
+                                        inbox.acknowledge(envelope);
+                                    } finally {
+                                        completed(envelope);
+                                    }
+                                }
+                            });
+                        } catch (RuntimeException e) {
+                            envelope.setHandedOff(false);
+                            throw e;
+                        }
+                    }
+                } finally {
+                    if (!envelope.isHandedOff()) {
+                        completed(envelope);
+                    }
                 }
             } else {
                 ResultContainer resultContainer = waiting.get(envelope.getResponseToUuid());
@@ -415,6 +1066,62 @@ public class NodeImpl implements Node {
         }
     }
 
+    private void deliver(LocalDestination ld, Envelope envelope, Object payload) {
+        PayloadAndAttachments response = ld.invoke(envelope, payload);
+        if (!respond(ld, envelope, response)) {
+            throw new RuntimeException((Throwable) response.getPayload());
+        }
+    }
+
+    /**
+     * Invoke a batch handler and answer each envelope in the batch as if it had been handled on its own
+     */
+    private void deliverBatch(LocalDestination ld, List<Envelope> batch) {
+        try {
+            List<Object> payloads = new ArrayList<>(batch.size());
+            for (Envelope envelope : batch) {
+                payloads.add(envelope.getLocalPayload());
+            }
+            List<PayloadAndAttachments> responses = ld.invokeBatch(batch, payloads);
+            Throwable failure = null;
+            for (int i = 0; i < batch.size(); i++) {
+                if (!respond(ld, batch.get(i), responses.get(i)) && failure == null) {
+                    failure = (Throwable) responses.get(i).getPayload();
+                }
+            }
+            if (failure != null) {
+                log.error("Error while processing batch of " + batch.size() + " envelopes for " + ld.getDisplayName(), failure);
+            }
+        } catch (Throwable t) {
+            log.error("Error while processing batch of " + batch.size() + " envelopes for " + ld.getDisplayName(), t);
+        } finally {
+            for (Envelope envelope : batch) {
+                try {
+                    inbox.acknowledge(envelope);
+                } catch (Throwable t) {
+                    log.error("Error while acknowledging envelope", t);
+                }
+                completed(envelope);
+            }
+        }
+    }
+
+    /**
+     * Send a handler's response back to the requester
+     * @return False if the handler failed and nobody is waiting for a response to report it to
+     */
+    private boolean respond(LocalDestination ld, Envelope envelope, PayloadAndAttachments response) {
+        if (envelope.isResponseExpected()) {
+            Envelope out = new Envelope(response == null ? null : response.getPayload().getClass().getName(), response == null ? null : response.getPayload().getClass().getName(), response == null ? null : serializer.serialize(response.getPayload()), envelope.getPriority(), response == null ? null : response.getAttachments(), new Criteria(), false);
+            out.setNodeUuid(envelope.getPath()[0]);
+            out.setResponseToUuid(envelope.getUuid());
+            out.setDestinationUuid(ld.getUuid());
+            enqueue(out);
+            return true;
+        }
+        return response == null || !(response.getPayload() instanceof Throwable);
+    }
+
     @NotNull
     public String getUuid() {
         return uuid;
@@ -434,6 +1141,28 @@ public class NodeImpl implements Node {
         return connectionData.getConnectedNodesUuids();
     }
 
+    /**
+     * Build the executor that runs handlers in virtual execution mode.  The node is built for Java 8, so virtual threads
+     * are looked up reflectively and a pool of daemon threads stands in for them on older runtimes.
+     */
+    private ExecutorService createHandlerExecutor() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, displayName + " - HandlerThread-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            log.warn("Virtual threads are not available on this JVM, handlers will run on a cached thread pool");
+        }
+        AtomicInteger counter = new AtomicInteger(0);
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(threadGroup, r, displayName + " - HandlerThread-" + counter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
     public ThreadGroup getThreadGroup() {
         return threadGroup;
     }
@@ -454,7 +1183,10 @@ public class NodeImpl implements Node {
         for (ProcessorThread pt : processorThreads) {
             pt.shutdown();
         }
-        for (ProcessorThread pt : processorThreads) {
+        for (ProcessorPool pool : processorPools) {
+            pool.shutdown();
+        }
+        for (ProcessorThread pt : getProcessorThreads()) {
             try {
                 pt.join(10);
             } catch (InterruptedException e) {
@@ -462,9 +1194,34 @@ public class NodeImpl implements Node {
             }
         }
 
+        for (Batcher batcher : batchers) {
+            batcher.flush();
+        }
+        if (handlerExecutor != null) {
+            handlerExecutor.shutdown();
+        }
+        synchronized (this) {
+            for (ExecutorService executor : executors.values()) {
+                executor.shutdown();
+            }
+        }
+
+        log.info("Releasing outstanding requests");
+        timingWheel.shutdown();
+        timeoutScheduler.shutdownNow();
+        for (ResultContainer result : new HashSet<>(waiting.values())) {
+            result.complete();
+        }
+
         log.info("Stopping connection data");
         connectionData.shutdown();
 
+        log.info("Shutting down inbox");
+        inbox.shutdown();
+        if (timerLog != null) {
+            timerLog.close();
+        }
+
         log.debug("Agni shutdown completed in " + (new Date().getTime() - start) + "ms");
         Thread.currentThread().setName(threadName);
     }
@@ -482,6 +1239,14 @@ public class NodeImpl implements Node {
         return pathFinder;
     }
 
+    public RoutingCache getRoutingCache() {
+        return routingCache;
+    }
+
+    public int getPendingRequestCount() {
+        return waiting.size();
+    }
+
     public Serializer getSerializer() {
         return serializer;
     }
@@ -490,27 +1255,78 @@ public class NodeImpl implements Node {
         return whisperHandler;
     }
 
+    public NearCache getNearCache() {
+        return nearCache;
+    }
+
+    public void invalidate(@NotNull String type, Criteria criteria) {
+        //Drop the local entries right away so the next request on this node already misses
+        nearCache.invalidate(type, criteria);
+        new AgniBuilder(new InvalidateCache(type, criteria)).priority(Priority.HIGHEST).broadcast(this);
+    }
+
     public StatsResponse buildStatsResponse() {
         StatsResponse resp = new StatsResponse(uuid, displayName, System.currentTimeMillis() - startupTime, inbox.getMaximumSize(), inbox.getCurrentSize(), inbox.getCurrentMemorySize());
+        resp.setMessageBoxMaximumBytes(inbox.getMaximumBytes());
+        resp.setMessageBoxCurrentBytes(inbox.getCurrentBytes());
         connectionData.populate(resp);
         resp.setDestinationInfos(destinationRegistration.getDestinationInfos());
+        Map<String, StatsResponse.RateInfo> typeRates = new TreeMap<>();
+        for (LocalDestination ld : destinationRegistration.getLocalDestinations()) {
+            StatsResponse.RateInfo rate = new StatsResponse.RateInfo(ld.getRate());
+            typeRates.merge(ld.getType(), rate, StatsResponse.RateInfo::plus);
+        }
+        resp.setTypeRates(typeRates);
+        resp.setCaches(nearCache.getCacheInfos());
+        resp.setCurrentEPS(getCurrentEPS());
         resp.setKnownPaths(pathFinder.getKnownPaths());
         Set<StatsResponse.ProcessorThreadInfo> ptis = new TreeSet<>(new BeanComparator<>("name"));
         for (ProcessorThread pt : processorThreads) {
-            StatsResponse.ProcessorThreadInfo pti = new StatsResponse.ProcessorThreadInfo(pt.getName(), pt.isWaiting());
-            if (!pt.isWaiting()) {
-                Envelope envelope = pt.getEnvelope();
-                if (envelope != null) {
-                    pti.setEnvelopeType(envelope.getType());
-                }
-                pti.setStackTrace(pt.getStackTrace());
+            ptis.add(buildProcessorThreadInfo(pt));
+        }
+        for (ProcessorPool pool : processorPools) {
+            int size = pool.getSize();
+            for (ProcessorThread pt : pool.getThreads()) {
+                StatsResponse.ProcessorThreadInfo pti = buildProcessorThreadInfo(pt);
+                pti.setPoolSize(size);
+                pti.setPoolMinimum(pool.getMinimum());
+                pti.setPoolMaximum(pool.getMaximum());
+                ptis.add(pti);
             }
-            ptis.add(pti);
         }
         resp.setProcessorThreadInfos(ptis.toArray(new StatsResponse.ProcessorThreadInfo[ptis.size()]));
         return resp;
     }
 
+    private StatsResponse.ProcessorThreadInfo buildProcessorThreadInfo(ProcessorThread pt) {
+        StatsResponse.ProcessorThreadInfo pti = new StatsResponse.ProcessorThreadInfo(pt.getName(), pt.isWaiting());
+        pti.setPriority(pt.getServedPriority());
+        if (!pt.isWaiting()) {
+            Envelope envelope = pt.getEnvelope();
+            if (envelope != null) {
+                pti.setEnvelopeType(envelope.getType());
+            }
+            pti.setStackTrace(pt.getStackTrace());
+        }
+        return pti;
+    }
+
+    private List<ProcessorThread> getProcessorThreads() {
+        List<ProcessorThread> out = new ArrayList<>(processorThreads);
+        for (ProcessorPool pool : processorPools) {
+            out.addAll(pool.getThreads());
+        }
+        return out;
+    }
+
+    /**
+     * Return the processor pools serving each priority
+     * @return One pool per priority, or an empty list in virtual execution mode
+     */
+    public List<ProcessorPool> getProcessorPools() {
+        return processorPools;
+    }
+
     public boolean isShuttingDown() {
         return shuttingDown;
     }
@@ -519,8 +1335,22 @@ public class NodeImpl implements Node {
         return managerFactory.createManager(this, T);
     }
 
+    /**
+     * Fold the events since the last tick into every local destination's rate meter.  Runs on the scheduler every
+     * rateInterval milliseconds.
+     */
+    private void tickRates() {
+        for (LocalDestination ld : destinationRegistration.getLocalDestinations()) {
+            ld.getRate().tick();
+        }
+    }
+
     @Override
     public double getCurrentEPS() {
-        return LocalDestination.getCurrentEPS();
+        double out = 0;
+        for (LocalDestination ld : destinationRegistration.getLocalDestinations()) {
+            out += ld.getRate().getOneSecondRate();
+        }
+        return out;
     }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015, Eric A Maginniss
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL ERIC A MAGINNISS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.emaginniss.agni.impl;
+
+import org.emaginniss.agni.Envelope;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Lets one envelope per ordering key into the inbox at a time.  Later envelopes with the same key are held here in
+ * arrival order and released one by one as their predecessors complete, so a key is processed strictly in sequence
+ * while different keys spread across every processor thread.
+ */
+public class OrderingGate {
+
+    private final Map<String, LinkedList<Envelope>> held = new HashMap<>();
+    private int heldCount = 0;
+
+    /**
+     * Admit an envelope or hold it behind the one already in flight for its key
+     * @return True if the envelope is held and must not be enqueued yet
+     */
+    public synchronized boolean hold(String key, Envelope envelope) {
+        LinkedList<Envelope> queue = held.get(key);
+        if (queue == null) {
+            held.put(key, new LinkedList<>());
+            return false;
+        }
+        queue.addLast(envelope);
+        heldCount++;
+        return true;
+    }
+
+    /**
+     * Mark the envelope in flight for a key as complete
+     * @return The next envelope to enqueue for the key, or null if none is waiting
+     */
+    public synchronized Envelope release(String key) {
+        LinkedList<Envelope> queue = held.get(key);
+        if (queue == null) {
+            return null;
+        }
+        if (queue.isEmpty()) {
+            held.remove(key);
+            return null;
+        }
+        heldCount--;
+        return queue.removeFirst();
+    }
+
+    public synchronized int getHeldCount() {
+        return heldCount;
+    }
+
+    public synchronized int getActiveKeyCount() {
+        return held.size();
+    }
+}
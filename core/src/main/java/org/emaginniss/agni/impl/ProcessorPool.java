@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2015, Eric A Maginniss
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL ERIC A MAGINNISS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.emaginniss.agni.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.emaginniss.agni.Node;
+import org.emaginniss.agni.Priority;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The processor threads serving one priority.  An adaptive pool is resized by adjust(), which the node calls once per
+ * interval: it grows while envelopes wait longer than sojournTarget, or while the envelopes its threads may take are
+ * backed up and every thread is busy, and it gives back one thread at a time only after shrinkAfter quiet intervals in
+ * a row.  The gap between the two conditions keeps a pool from flapping around its working size.
+ */
+@Slf4j
+public class ProcessorPool {
+
+    private final ThreadGroup group;
+    private final String namePrefix;
+    private final Node node;
+    private final Priority priority;
+    private final int minimum;
+    private final int maximum;
+    private final long interval;
+    private final long sojournTarget;
+    private final int shrinkAfter;
+    private final List<ProcessorThread> threads = new ArrayList<>();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder sojourn = new LongAdder();
+    private final LongAdder latency = new LongAdder();
+    private int nextId = 0;
+    private int quietIntervals = 0;
+
+    public ProcessorPool(ThreadGroup group, String namePrefix, Node node, Priority priority, int size, int minimum, int maximum, long interval, long sojournTarget, int shrinkAfter) {
+        if (minimum < 1 || maximum < minimum) {
+            throw new RuntimeException("Processor pools need 1 <= minimum <= maximum");
+        }
+        this.group = group;
+        this.namePrefix = namePrefix;
+        this.node = node;
+        this.priority = priority;
+        this.minimum = minimum;
+        this.maximum = maximum;
+        this.interval = TimeUnit.MILLISECONDS.toNanos(interval);
+        this.sojournTarget = TimeUnit.MILLISECONDS.toNanos(sojournTarget);
+        this.shrinkAfter = shrinkAfter;
+        synchronized (this) {
+            for (int i = 0; i < Math.max(minimum, Math.min(maximum, size)); i++) {
+                grow();
+            }
+        }
+    }
+
+    /**
+     * Record one processed envelope
+     * @param sojournNanos How long the envelope waited in the inbox
+     * @param latencyNanos How long the handler took
+     */
+    public void record(long sojournNanos, long latencyNanos) {
+        processed.increment();
+        sojourn.add(sojournNanos);
+        latency.add(latencyNanos);
+    }
+
+    /**
+     * Resize the pool from the measurements taken since the last call
+     * @param queueDepth The number of envelopes waiting in the inbox at this pool's priority or above
+     */
+    public synchronized void adjust(int queueDepth) {
+        long count = processed.sumThenReset();
+        long totalSojourn = sojourn.sumThenReset();
+        long totalLatency = latency.sumThenReset();
+        int size = threads.size();
+        long averageSojourn = count == 0 ? 0 : totalSojourn / count;
+        //Average number of threads that were inside a handler over the interval
+        double busy = (double) totalLatency / interval;
+
+        if (averageSojourn > sojournTarget || (queueDepth > size && busy >= size * 0.9)) {
+            quietIntervals = 0;
+            int target = Math.min(maximum, Math.max(size + 1, (int) Math.ceil(busy * 1.25)));
+            if (target > size) {
+                log.debug("Growing " + priority + " processor pool from " + size + " to " + target + " threads");
+                for (int i = size; i < target; i++) {
+                    grow();
+                }
+            }
+        } else if (size > minimum && averageSojourn < sojournTarget / 2 && busy < (size - 1) * 0.5) {
+            if (++quietIntervals >= shrinkAfter) {
+                quietIntervals = 0;
+                log.debug("Shrinking " + priority + " processor pool from " + size + " to " + (size - 1) + " threads");
+                threads.remove(threads.size() - 1).retire();
+            }
+        } else {
+            quietIntervals = 0;
+        }
+    }
+
+    private void grow() {
+        ProcessorThread pt = new ProcessorThread(group, namePrefix + "[" + priority + "-" + nextId++ + "]", node, priority, this);
+        pt.start();
+        threads.add(pt);
+    }
+
+    public synchronized List<ProcessorThread> getThreads() {
+        return new ArrayList<>(threads);
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public synchronized int getSize() {
+        return threads.size();
+    }
+
+    public int getMinimum() {
+        return minimum;
+    }
+
+    public int getMaximum() {
+        return maximum;
+    }
+
+    public synchronized void shutdown() {
+        for (ProcessorThread pt : threads) {
+            pt.shutdown();
+        }
+    }
+}
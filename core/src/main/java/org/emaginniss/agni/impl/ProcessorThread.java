@@ -33,11 +33,27 @@ import org.emaginniss.agni.Node;
 import org.emaginniss.agni.Priority;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pulls envelopes of one priority out of the inbox and processes them.  When built with an executor the thread only
+ * dispatches: it takes a permit, dequeues an envelope and hands it to the executor, so a handler that blocks holds a
+ * permit rather than one of the node's processor threads.
+ */
 @Slf4j
 public class ProcessorThread extends Thread {
 
+    private static final ThreadLocal<Boolean> HANDLING = new ThreadLocal<>();
+
     private Node node;
     private Priority priority;
+    private Executor executor;
+    private Semaphore permits;
+    private ProcessorPool pool;
+    private final Object retireLock = new Object();
+    private volatile boolean retired = false;
     private boolean shuttingDown = false;
     private boolean waiting = false;
     private Envelope envelope = null;
@@ -48,35 +64,145 @@ public class ProcessorThread extends Thread {
         this.priority = priority;
     }
 
+    public ProcessorThread(ThreadGroup group, String name, Node node, Priority priority, Executor executor, Semaphore permits) {
+        this(group, name, node, priority);
+        this.executor = executor;
+        this.permits = permits;
+    }
+
+    public ProcessorThread(ThreadGroup group, String name, Node node, Priority priority, ProcessorPool pool) {
+        this(group, name, node, priority);
+        this.pool = pool;
+    }
+
     @Override
     public void run() {
         while (true) {
+            if (retired || (permits != null && !acquirePermit())) {
+                return;
+            }
             try {
                 waiting = true;
                 envelope = node.getInbox().dequeue(!shuttingDown, priority);
             } catch (Throwable t) {
-                log.error("Error while retrieving envelope", t);
+                if (!retired) {
+                    log.error("Error while retrieving envelope", t);
+                }
             } finally {
-                waiting = false;
+                synchronized (retireLock) {
+                    waiting = false;
+                    if (retired) {
+                        //Don't let the interrupt meant for an idle thread reach the handler
+                        Thread.interrupted();
+                    }
+                }
             }
 
             if (envelope != null) {
+                if (executor != null) {
+                    dispatch(envelope);
+                } else if (pool != null) {
+                    long start = System.nanoTime();
+                    handle(node, envelope);
+                    pool.record(envelope.getEnqueuedAt() == 0 ? 0 : start - envelope.getEnqueuedAt(), System.nanoTime() - start);
+                } else {
+                    handle(node, envelope);
+                }
+            } else {
+                if (permits != null) {
+                    permits.release();
+                }
+                if (shuttingDown) {
+                    return;
+                }
+            }
+            envelope = null;
+        }
+    }
+
+    private boolean acquirePermit() {
+        waiting = true;
+        try {
+            //Wake up now and then so a node shutting down with every permit in use can still stop its dispatchers
+            while (!permits.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                if (shuttingDown) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        } finally {
+            waiting = false;
+        }
+    }
+
+    private void dispatch(Envelope envelope) {
+        try {
+            executor.execute(() -> {
+                HANDLING.set(Boolean.TRUE);
+                try {
+                    handle(node, envelope);
+                } finally {
+                    HANDLING.remove();
+                    permits.release();
+                }
+            });
+        } catch (Throwable t) {
+            log.error("Error while dispatching envelope, processing it on the dispatcher", t);
+            try {
+                handle(node, envelope);
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    private static void handle(Node node, Envelope envelope) {
+        try {
+            node.process(envelope);
+        } catch (Throwable t) {
+            log.error("Error while processing envelope (" + envelope.getPayload() + " - " + envelope.getDestinationUuid() + ")", t);
+        } finally {
+            if (!envelope.isHandedOff()) {
                 try {
-                    node.process(envelope);
+                    node.getInbox().acknowledge(envelope);
                 } catch (Throwable t) {
-                    log.error("Error while processing envelope (" + envelope.getPayload() + " - " + envelope.getDestinationUuid() + ")", t);
+                    log.error("Error while acknowledging envelope", t);
                 }
-            } else if (shuttingDown) {
-                return;
             }
-            envelope = null;
         }
     }
 
+    /**
+     * Return true if the calling thread is processing an envelope, either as a processor thread or as a task handed
+     * off by one.  Boxes use this to avoid blocking a handler that sends while the inbox is full.
+     * @return True if called from inside a handler
+     */
+    public static boolean isProcessing() {
+        return Thread.currentThread() instanceof ProcessorThread || HANDLING.get() != null;
+    }
+
     public void shutdown() {
         shuttingDown = true;
     }
 
+    /**
+     * Stop this thread once it finishes the envelope it is handling, or straight away if it is idle
+     */
+    public void retire() {
+        synchronized (retireLock) {
+            retired = true;
+            if (waiting) {
+                interrupt();
+            }
+        }
+    }
+
+    public Priority getServedPriority() {
+        return priority;
+    }
+
     public boolean isWaiting() {
         return waiting;
     }
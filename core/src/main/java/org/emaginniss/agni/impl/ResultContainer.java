@@ -32,26 +32,52 @@ import org.emaginniss.agni.PayloadAndAttachments;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class ResultContainer {
 
     private int expected;
     private Map<Destination, PayloadAndAttachments> result = new HashMap<>();
+    private CompletableFuture<Map<Destination, PayloadAndAttachments>> future = new CompletableFuture<>();
 
     public ResultContainer(int expected) {
         this.expected = expected;
     }
 
     public Map<Destination, PayloadAndAttachments> getResult() {
-        return result;
+        synchronized (this) {
+            return new HashMap<>(result);
+        }
+    }
+
+    public CompletableFuture<Map<Destination, PayloadAndAttachments>> getFuture() {
+        return future;
     }
 
     public void registerResult(Destination destination, PayloadAndAttachments payload) {
+        boolean done;
         synchronized (this) {
             result.put(destination, payload);
-            if (result.size() >= expected)  {
-                this.notify();
-            }
+            done = result.size() >= expected;
+        }
+        if (done) {
+            complete();
         }
     }
+
+    /**
+     * Complete the future with whatever results have arrived so far.  Used when the request times out or the node
+     * shuts down before every destination has responded.
+     */
+    public void complete() {
+        future.complete(getResult());
+    }
+
+    public void fail(Throwable t) {
+        future.completeExceptionally(t);
+    }
+
+    public void cancel() {
+        future.cancel(false);
+    }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2015, Eric A Maginniss
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL ERIC A MAGINNISS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.emaginniss.agni.impl;
+
+import org.emaginniss.agni.Destination;
+import org.emaginniss.agni.loadbalancers.LoadBalancer;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The resolved destinations for a payload type and criteria.  The nearest destinations are the ones sharing the
+ * shortest distance, and are the only candidates the load balancer chooses from.
+ */
+public class Route {
+
+    private final Set<Destination> destinations;
+    private final List<Destination> nearest;
+    private final LoadBalancer loadBalancer;
+
+    public Route(@NotNull Set<Destination> destinations, @NotNull List<Destination> nearest, @NotNull LoadBalancer loadBalancer) {
+        this.destinations = destinations;
+        this.nearest = nearest;
+        this.loadBalancer = loadBalancer;
+    }
+
+    @NotNull
+    public Set<Destination> getDestinations() {
+        return destinations;
+    }
+
+    @NotNull
+    public List<Destination> getNearest() {
+        return nearest;
+    }
+
+    @NotNull
+    public LoadBalancer getLoadBalancer() {
+        return loadBalancer;
+    }
+
+    public boolean isEmpty() {
+        return destinations.isEmpty();
+    }
+
+    @NotNull
+    public Destination select() {
+        return nearest.size() == 1 ? nearest.get(0) : loadBalancer.select(nearest);
+    }
+
+    /**
+     * Select a destination for an ordered envelope.  Every envelope with the same ordering key goes to the same
+     * replica, picked by rendezvous hashing so only the keys of a replica that leaves move elsewhere.
+     * @param orderingKey The envelope's ordering key, or null to use the load balancer
+     */
+    @NotNull
+    public Destination select(String orderingKey) {
+        if (orderingKey == null || nearest.size() == 1) {
+            return select();
+        }
+        Destination out = null;
+        int best = 0;
+        for (Destination candidate : nearest) {
+            int score = mix(31 * orderingKey.hashCode() + candidate.getUuid().hashCode());
+            if (out == null || score > best || (score == best && candidate.getUuid().compareTo(out.getUuid()) < 0)) {
+                out = candidate;
+                best = score;
+            }
+        }
+        return out;
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
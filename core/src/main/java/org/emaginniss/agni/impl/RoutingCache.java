@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2015, Eric A Maginniss
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL ERIC A MAGINNISS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.emaginniss.agni.impl;
+
+import org.emaginniss.agni.Criteria;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Maps a payload class or type name plus criteria to the route the path finder produced for it.  Every entry belongs
+ * to a generation; once the caller presents a newer generation the whole table is replaced.  When the table is full
+ * an entry is evicted with the clock algorithm: lookups mark an entry as referenced and the hand clears marks until it
+ * finds one that has not been used since it last went past.
+ */
+public class RoutingCache {
+
+    private final int maximumSize;
+    private final AtomicReference<Routes> routes = new AtomicReference<>(new Routes(-1));
+
+    public RoutingCache(int maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    @Nullable
+    public Route get(long generation, @NotNull Object typeKey, @NotNull Criteria criteria) {
+        Routes current = routes.get();
+        if (current.generation != generation) {
+            return null;
+        }
+        Slot slot = current.lookup.get(new RouteKey(typeKey, criteria));
+        if (slot == null) {
+            return null;
+        }
+        slot.referenced = true;
+        return slot.route;
+    }
+
+    @NotNull
+    public Route put(long generation, @NotNull Object typeKey, @NotNull Criteria criteria, @NotNull Route route) {
+        Routes current = routes.get();
+        while (current.generation < generation) {
+            Routes fresh = new Routes(generation);
+            if (routes.compareAndSet(current, fresh)) {
+                current = fresh;
+            } else {
+                current = routes.get();
+            }
+        }
+        if (current.generation == generation && maximumSize > 0) {
+            while (current.lookup.size() >= maximumSize && current.evictOne()) {
+            }
+            current.lookup.put(new RouteKey(typeKey, new Criteria(criteria)), new Slot(route));
+        }
+        return route;
+    }
+
+    public int size() {
+        return routes.get().lookup.size();
+    }
+
+    private static class Routes {
+        private final long generation;
+        private final Map<RouteKey, Slot> lookup = new ConcurrentHashMap<>();
+        private Iterator<Slot> hand;
+
+        private Routes(long generation) {
+            this.generation = generation;
+        }
+
+        private synchronized boolean evictOne() {
+            for (int i = 0, max = 2 * lookup.size() + 1; i < max; i++) {
+                if (hand == null || !hand.hasNext()) {
+                    hand = lookup.values().iterator();
+                    if (!hand.hasNext()) {
+                        return false;
+                    }
+                }
+                Slot slot = hand.next();
+                if (slot.referenced) {
+                    slot.referenced = false;
+                } else {
+                    hand.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Slot {
+        private final Route route;
+        private volatile boolean referenced;
+
+        private Slot(Route route) {
+            this.route = route;
+        }
+    }
+
+    private static class RouteKey {
+        private final Object typeKey;
+        private final Criteria criteria;
+        private final int hash;
+
+        private RouteKey(Object typeKey, Criteria criteria) {
+            this.typeKey = typeKey;
+            this.criteria = criteria;
+            this.hash = 31 * typeKey.hashCode() + criteria.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof RouteKey)) {
+                return false;
+            }
+            RouteKey other = (RouteKey) o;
+            return hash == other.hash && typeKey.equals(other.typeKey) && criteria.equals(other.criteria);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
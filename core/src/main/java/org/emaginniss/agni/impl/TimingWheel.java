@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2015, Eric A Maginniss
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL ERIC A MAGINNISS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.emaginniss.agni.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.emaginniss.agni.ScheduledDelivery;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hierarchical hashed timing wheel.  Level 0 has one bucket per tick, and each level above it has buckets that span a
+ * whole rotation of the level below.  When a lower level wraps, the matching bucket of the level above is cascaded down,
+ * so every timer is touched at most once per level.  Scheduling and cancelling only append to a queue and are O(1);
+ * the wheel thread places and unlinks timers from those queues at the start of every tick.  Due tasks are handed to
+ * the executor so a slow task cannot hold up the wheel.
+ */
+@Slf4j
+public class TimingWheel {
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tick;
+    private final int bits;
+    private final int mask;
+    private final Bucket[][] buckets;
+    private final long startTime = System.currentTimeMillis();
+    private final Queue<Timer> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timer> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger(0);
+    private final Executor executor;
+    private final Thread thread;
+    private long currentTick = 0;
+    private volatile boolean shutdown = false;
+
+    public TimingWheel(ThreadGroup threadGroup, String name, long tick, int wheelSize, int levels, Executor executor) {
+        if (tick <= 0 || levels <= 0) {
+            throw new RuntimeException("The timing wheel tick and levels must be positive");
+        }
+        this.tick = tick;
+        this.executor = executor;
+        bits = 32 - Integer.numberOfLeadingZeros(Math.max(2, wheelSize) - 1);
+        mask = (1 << bits) - 1;
+        if (bits * levels > 62) {
+            throw new RuntimeException("The timing wheel has too many levels for its size");
+        }
+        buckets = new Bucket[levels][1 << bits];
+        for (Bucket[] level : buckets) {
+            for (int i = 0; i < level.length; i++) {
+                level[i] = new Bucket();
+            }
+        }
+
+        thread = new Thread(threadGroup, this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Run a task once the deadline has passed.  The task runs no earlier than the deadline and, while the wheel keeps
+     * up, no later than one tick after it.
+     * @param deadline Milliseconds since the epoch
+     * @param task The task to hand to the executor
+     * @return A handle that can cancel the task
+     */
+    public Timer schedule(long deadline, Runnable task) {
+        Timer timer = new Timer(deadline, task);
+        pendingCount.incrementAndGet();
+        added.add(timer);
+        return timer;
+    }
+
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while (!shutdown) {
+            long target = (System.currentTimeMillis() - startTime) / tick;
+            drain();
+            while (currentTick < target) {
+                currentTick++;
+                if ((currentTick & mask) == 0 && buckets.length > 1) {
+                    cascade(1);
+                }
+                Bucket bucket = buckets[0][(int) (currentTick & mask)];
+                Timer timer;
+                while ((timer = bucket.poll()) != null) {
+                    expire(timer);
+                }
+            }
+
+            long sleep = startTime + (currentTick + 1) * tick - System.currentTimeMillis();
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(sleep));
+            }
+        }
+    }
+
+    private void drain() {
+        Timer timer;
+        while ((timer = cancelled.poll()) != null) {
+            if (timer.bucket != null) {
+                timer.bucket.remove(timer);
+            }
+        }
+        while ((timer = added.poll()) != null) {
+            if (timer.state.get() == PENDING) {
+                place(timer);
+            }
+        }
+    }
+
+    private void place(Timer timer) {
+        long due = Math.max(0, (timer.deadline - startTime + tick - 1) / tick);
+        long delta = due - currentTick;
+        if (delta <= 0) {
+            expire(timer);
+            return;
+        }
+        for (int level = 0; level < buckets.length; level++) {
+            if (delta < 1L << (bits * (level + 1))) {
+                buckets[level][(int) ((due >>> (bits * level)) & mask)].add(timer);
+                return;
+            }
+        }
+        //Beyond the top level, park it in the last top level bucket to be cascaded and placed again
+        int top = buckets.length - 1;
+        buckets[top][(int) (((currentTick >>> (bits * top)) - 1) & mask)].add(timer);
+    }
+
+    private void cascade(int level) {
+        int index = (int) ((currentTick >>> (bits * level)) & mask);
+        if (index == 0 && level + 1 < buckets.length) {
+            cascade(level + 1);
+        }
+        Bucket bucket = buckets[level][index];
+        Timer timer;
+        while ((timer = bucket.poll()) != null) {
+            place(timer);
+        }
+    }
+
+    private void expire(Timer timer) {
+        if (timer.state.compareAndSet(PENDING, EXPIRED)) {
+            pendingCount.decrementAndGet();
+            try {
+                executor.execute(timer.task);
+            } catch (Throwable t) {
+                log.error("Unable to run timer task", t);
+            }
+        }
+    }
+
+    public class Timer implements ScheduledDelivery {
+
+        private final long deadline;
+        private final Runnable task;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private Bucket bucket;
+        private Timer previous;
+        private Timer next;
+
+        private Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public long getDeliveryTime() {
+            return deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+            pendingCount.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+    }
+
+    /**
+     * Doubly linked list of timers, only touched by the wheel thread
+     */
+    private static class Bucket {
+
+        private Timer head;
+
+        private void add(Timer timer) {
+            timer.bucket = this;
+            timer.previous = null;
+            timer.next = head;
+            if (head != null) {
+                head.previous = timer;
+            }
+            head = timer;
+        }
+
+        private void remove(Timer timer) {
+            if (timer.previous == null) {
+                head = timer.next;
+            } else {
+                timer.previous.next = timer.next;
+            }
+            if (timer.next != null) {
+                timer.next.previous = timer.previous;
+            }
+            timer.bucket = null;
+            timer.previous = null;
+            timer.next = null;
+        }
+
+        private Timer poll() {
+            Timer timer = head;
+            if (timer != null) {
+                remove(timer);
+            }
+            return timer;
+        }
+    }
+}
@@ -51,6 +51,7 @@ public class WhisperHandler {
         new SubscriptionBuilder(this).method("handlePing").uuid("WHISPER_" + node.getUuid() + "_PING").subscribe(node);
         new SubscriptionBuilder(this).method("handleStatsRequest").uuid("WHISPER_" + node.getUuid() + "_STATS_REQUEST").type(StatsRequest.class.getName()).subscribe(node);
         new SubscriptionBuilder(this).method("handleStopRouting").uuid("WHISPER_" + node.getUuid() + "_STOP_ROUTING").subscribe(node);
+        new SubscriptionBuilder(this).method("handleInvalidateCache").uuid("WHISPER_" + node.getUuid() + "_INVALIDATE_CACHE").subscribe(node);
     }
 
     public Envelope buildSubscriptionInfoEnvelope(String previousMessageUuid, String []pathIn, String targetUuid) {
@@ -135,4 +136,11 @@ public class WhisperHandler {
             }
         }
     }
+
+    public void handleInvalidateCache(InvalidateCache msg, Envelope envelope) {
+        //The originating node already dropped its own entries before broadcasting
+        if (checkMessage(msg) && envelope.getPath().length > 1) {
+            node.getNearCache().handle(msg);
+        }
+    }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015, Eric A Maginniss
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL ERIC A MAGINNISS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.emaginniss.agni.loadbalancers;
+
+import org.emaginniss.agni.Destination;
+import org.emaginniss.agni.annotations.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Samples two candidates at random and picks the one with fewer requests in flight from this node
+ */
+@Component("powerOfTwo")
+public class PowerOfTwoChoicesLoadBalancer implements LoadBalancer {
+
+    private Map<String, AtomicInteger> outstanding = new ConcurrentHashMap<>();
+
+    @Override
+    public Destination select(List<Destination> candidates) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(candidates.size());
+        int second = random.nextInt(candidates.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        Destination a = candidates.get(first);
+        Destination b = candidates.get(second);
+        return getOutstanding(a) <= getOutstanding(b) ? a : b;
+    }
+
+    private int getOutstanding(Destination destination) {
+        AtomicInteger count = outstanding.get(destination.getUuid());
+        return count == null ? 0 : count.get();
+    }
+
+    @Override
+    public void requestStarted(Destination destination) {
+        outstanding.computeIfAbsent(destination.getUuid(), k -> new AtomicInteger(0)).incrementAndGet();
+    }
+
+    @Override
+    public void requestCompleted(Destination destination, long elapsedNanos) {
+        AtomicInteger count = outstanding.get(destination.getUuid());
+        if (count != null) {
+            count.decrementAndGet();
+        }
+    }
+}
@@ -47,6 +47,9 @@ public class ManagerInvocationHandler implements InvocationHandler {
         for (Method method : clazz.getMethods()) {
             Annotation [][]paramAnnotationsList = method.getParameterAnnotations();
             ManagerMethod mm = method.getAnnotation(ManagerMethod.class);
+            if (mm != null && method.getAnnotation(Cacheable.class) != null && mm.execute() != Execute.request) {
+                throw new RuntimeException(String.format("Manager %s method %s is Cacheable but does not execute a request", clazz.getName(), method.getName()));
+            }
             if (mm != null && !mm.payloadClass().equals(Object.class)) {
                 log.info(String.format("Checking manager %s method %s", clazz.getName(), method.getName()));
 
@@ -129,6 +132,10 @@ public class ManagerInvocationHandler implements InvocationHandler {
             builder.criteria(mc.key(), mc.value());
         }
         builder.priority(mm.priority());
+        Cacheable cacheable = method.getAnnotation(Cacheable.class);
+        if (cacheable != null) {
+            builder.cacheable(cacheable.ttl(), cacheable.maxEntries());
+        }
 
         switch (execute) {
             case send:
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2015, Eric A Maginniss
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL ERIC A MAGINNISS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.emaginniss.agni.messageboxes;
+
+import org.emaginniss.agni.*;
+import org.emaginniss.agni.annotations.Component;
+import org.emaginniss.agni.impl.ProcessorThread;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Priority ordered message box with limits on envelope count and estimated bytes.  The overflow policy decides what
+ * happens to an envelope that does not fit:
+ * <ul>
+ *     <li>block - wait up to the timeout for room, then reject</li>
+ *     <li>reject - refuse the envelope immediately</li>
+ *     <li>dropOldest - discard the oldest queued envelopes of the same priority to make room, skipping control
+ *     traffic, requests and ordered envelopes; the node is told about each one so it can retire it</li>
+ *     <li>spill - hand the envelope to the spill box, by default fileBacked</li>
+ * </ul>
+ * {@link #enqueue(Envelope)} throws when the envelope is rejected.  Control traffic is always admitted, and processor
+ * threads are never blocked, since they are the ones draining the box.
+ */
+@Component("bounded")
+public class BoundedMessageBox implements MessageBox {
+
+    private final List<ArrayDeque<Envelope>> queues = new ArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final int maximumSize;
+    private final long maximumBytes;
+    private final String overflowPolicy;
+    private final long blockTimeout;
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final Node node;
+    private MessageBox spill;
+    private volatile Runnable listener;
+    private int spillSignals = 0;
+    private volatile int currentSize = 0;
+    private volatile long currentBytes = 0;
+
+    public BoundedMessageBox(Configuration configuration, Node node) {
+        this.node = node;
+        maximumSize = configuration.getInt("maximumSize", 100000);
+        maximumBytes = configuration.getLong("maximumBytes", -1);
+        overflowPolicy = configuration.getString("overflowPolicy", "block");
+        blockTimeout = configuration.getLong("blockTimeout", 30000);
+        for (int i = 0; i < Priority.values().length; i++) {
+            queues.add(new ArrayDeque<>());
+        }
+
+        switch (overflowPolicy) {
+            case "block":
+            case "reject":
+            case "dropOldest":
+                break;
+            case "spill":
+                Configuration spillConfiguration = configuration.getChild("spill");
+                if (!spillConfiguration.has("type")) {
+                    spillConfiguration.getObject().addProperty("type", "fileBacked");
+                }
+                spill = Factory.instantiate(MessageBox.class, spillConfiguration, node);
+                spill.setAvailabilityListener(this::spillAvailable);
+                break;
+            default:
+                throw new RuntimeException("Unknown overflow policy " + overflowPolicy);
+        }
+    }
+
+    @Override
+    public void enqueue(@NotNull Envelope envelope) {
+        try {
+            if (!offer(envelope, blockTimeout)) {
+                throw new RuntimeException("Message box is full");
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean offer(@NotNull Envelope envelope, long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        List<Envelope> discarded = new ArrayList<>(0);
+        lock.lockInterruptibly();
+        try {
+            Outcome outcome = place(envelope, deadline, discarded);
+            if (outcome != Outcome.SPILL) {
+                return outcome == Outcome.ADDED;
+            }
+        } finally {
+            lock.unlock();
+            if (node != null) {
+                for (Envelope oldest : discarded) {
+                    node.dropped(oldest);
+                }
+            }
+        }
+
+        //The spill box does its own locking and may be slow, so the handoff happens outside ours
+        spill.enqueue(envelope);
+        lock.lock();
+        try {
+            spillSignals++;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    private Outcome place(Envelope envelope, long deadline, List<Envelope> discarded) throws InterruptedException {
+        while (true) {
+            if (envelope.isControl()) {
+                add(envelope);
+                return Outcome.ADDED;
+            }
+
+            //Once anything has spilled, newer envelopes follow it so the box stays first in, first out
+            if (spill != null && spill.getCurrentSize() > 0) {
+                return Outcome.SPILL;
+            }
+
+            if (hasRoom(envelope)) {
+                add(envelope);
+                return Outcome.ADDED;
+            }
+
+            switch (overflowPolicy) {
+                case "reject":
+                    dropped.incrementAndGet();
+                    return Outcome.REJECTED;
+                case "dropOldest":
+                    Iterator<Envelope> it = queues.get(envelope.getPriority().getNum()).iterator();
+                    while (it.hasNext() && !hasRoom(envelope)) {
+                        Envelope oldest = it.next();
+                        if (!isDroppable(oldest)) {
+                            continue;
+                        }
+                        it.remove();
+                        currentSize--;
+                        currentBytes -= oldest.getEstimatedSize();
+                        dropped.incrementAndGet();
+                        discarded.add(oldest);
+                    }
+                    if (hasRoom(envelope)) {
+                        add(envelope);
+                        return Outcome.ADDED;
+                    }
+                    dropped.incrementAndGet();
+                    return Outcome.REJECTED;
+                case "spill":
+                    return Outcome.SPILL;
+                default:
+                    if (ProcessorThread.isProcessing()) {
+                        add(envelope);
+                        return Outcome.ADDED;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        dropped.incrementAndGet();
+                        return Outcome.REJECTED;
+                    }
+                    notFull.awaitNanos(remaining);
+            }
+        }
+    }
+
+    /**
+     * Control traffic, requests and ordered envelopes are never discarded to make room: a caller would be left
+     * waiting, or every later envelope with the same ordering key would be held back behind it
+     */
+    private boolean isDroppable(Envelope envelope) {
+        return !envelope.isControl() && !envelope.isResponseExpected() && (envelope.getCriteria() == null || !envelope.getCriteria().containsKey(Envelope.ORDERING_KEY));
+    }
+
+    private boolean hasRoom(Envelope envelope) {
+        if (currentSize == 0) {
+            return true;
+        }
+        return (maximumSize < 0 || currentSize < maximumSize) && (maximumBytes < 0 || currentBytes + envelope.getEstimatedSize() <= maximumBytes);
+    }
+
+    private void add(Envelope envelope) {
+        queues.get(envelope.getPriority().getNum()).addLast(envelope);
+        currentSize++;
+        currentBytes += envelope.getEstimatedSize();
+        notEmpty.signalAll();
+    }
+
+    @Override
+    public Envelope dequeue(boolean wait, Priority priority) throws InterruptedException {
+        while (true) {
+            int signals;
+            lock.lockInterruptibly();
+            try {
+                Envelope out = poll(priority);
+                if (out != null) {
+                    return out;
+                }
+                if (spill == null || spill.getCurrentSize() == 0) {
+                    if (!wait) {
+                        return null;
+                    }
+                    notEmpty.await();
+                    continue;
+                }
+                signals = spillSignals;
+            } finally {
+                lock.unlock();
+            }
+
+            //The spill box may have to go to disk, so producers are not kept waiting on our lock meanwhile
+            Envelope out = spill.dequeue(false, priority);
+            if (out != null || !wait) {
+                return out;
+            }
+            lock.lockInterruptibly();
+            try {
+                if (signals == spillSignals && isEmpty(priority)) {
+                    notEmpty.await();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private Envelope poll(Priority priority) {
+        for (int i = 0; i <= priority.getNum(); i++) {
+            Envelope out = queues.get(i).pollFirst();
+            if (out != null) {
+                currentSize--;
+                currentBytes -= out.getEstimatedSize();
+                notFull.signalAll();
+                return out;
+            }
+        }
+        return null;
+    }
+
+    private boolean isEmpty(Priority priority) {
+        for (int i = 0; i <= priority.getNum(); i++) {
+            if (!queues.get(i).isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void acknowledge(@NotNull Envelope envelope) {
+        if (spill != null) {
+            spill.acknowledge(envelope);
+        }
+    }
+
+    @NotNull
+    @Override
+    public List<Envelope> recover() {
+        return spill == null ? Collections.<Envelope>emptyList() : spill.recover();
+    }
+
+    @Override
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    @Override
+    public long getMaximumBytes() {
+        return maximumBytes;
+    }
+
+    @Override
+    public int getCurrentSize() {
+        return currentSize + (spill == null ? 0 : spill.getCurrentSize());
+    }
+
+    @Override
+    public int getCurrentSize(Priority priority) {
+        int out = 0;
+        lock.lock();
+        try {
+            for (int i = 0; i <= priority.getNum(); i++) {
+                out += queues.get(i).size();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return out + (spill == null ? 0 : spill.getCurrentSize(priority));
+    }
+
+    @Override
+    public int getCurrentMemorySize() {
+        return currentSize + (spill == null ? 0 : spill.getCurrentMemorySize());
+    }
+
+    @Override
+    public long getCurrentBytes() {
+        return currentBytes + (spill == null ? 0 : spill.getCurrentBytes());
+    }
+
+    /**
+     * Return the number of envelopes rejected or discarded because the box was full
+     * @return The count since the box was created
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private void spillAvailable() {
+        lock.lock();
+        try {
+            spillSignals++;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        Runnable current = listener;
+        if (current != null) {
+            current.run();
+        }
+    }
+
+    @Override
+    public void setAvailabilityListener(@NotNull Runnable listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void shutdown() {
+        if (spill != null) {
+            spill.shutdown();
+        }
+    }
+
+    private enum Outcome {
+        ADDED, REJECTED, SPILL
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2015, Eric A Maginniss
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL ERIC A MAGINNISS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.emaginniss.agni.messageboxes;
+
+import org.emaginniss.agni.*;
+import org.emaginniss.agni.annotations.Component;
+import org.emaginniss.agni.impl.LocalDestination;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Last value wins message box for types listed under types.  While an envelope for a destination and coalescing key
+ * is still queued, a newer one with the same key takes its place in the queue instead of being queued behind it.  The
+ * key is the value of the criterion named by key, or the whole type when no key is configured.  Requests and control
+ * traffic are never coalesced, and neither are ordered envelopes, since each of them holds its ordering key until it is
+ * processed.
+ * <p>
+ * The child box only sees the first envelope of each run, so acknowledgements are passed on for that one.  Put this
+ * box above a durable box rather than below it, otherwise the durable box logs envelopes that are never acknowledged.
+ */
+@Component("coalescing")
+public class CoalescingMessageBox implements MessageBox {
+
+    private final Node node;
+    private final MessageBox child;
+    private final Map<String, String> keysByType = new HashMap<>();
+    private final Map<CoalesceKey, Run> latest = new ConcurrentHashMap<>();
+    private final Map<Envelope, Envelope> queuedInPlaceOf = Collections.synchronizedMap(new IdentityHashMap<Envelope, Envelope>());
+    private final AtomicLong coalesced = new AtomicLong(0);
+
+    public CoalescingMessageBox(Configuration configuration, Node node) {
+        this.node = node;
+        child = Factory.instantiate(MessageBox.class, configuration.getChild("child"), node);
+        Map<String, Configuration> types = configuration.getMap("types");
+        for (Map.Entry<String, Configuration> entry : types.entrySet()) {
+            keysByType.put(entry.getKey(), entry.getValue().getString("key", ""));
+        }
+    }
+
+    private CoalesceKey getKey(Envelope envelope) {
+        String criterion = keysByType.get(envelope.getType());
+        if (criterion == null || envelope.isControl() || envelope.isResponseExpected() || isOrdered(envelope)) {
+            return null;
+        }
+        return new CoalesceKey(envelope.getType(), envelope.getDestinationUuid(), "".equals(criterion) ? null : envelope.getCriteria().get(criterion));
+    }
+
+    private boolean isOrdered(Envelope envelope) {
+        String keyName = null;
+        if (node != null && envelope.getDestinationUuid() != null) {
+            Destination destination = node.getDestinationRegistration().getDestination(envelope.getDestinationUuid());
+            if (destination instanceof LocalDestination) {
+                keyName = ((LocalDestination) destination).getOrderingKey();
+            }
+        }
+        return envelope.getCriteria() != null && envelope.getCriteria().containsKey(keyName == null ? Envelope.ORDERING_KEY : keyName);
+    }
+
+    @Override
+    public void enqueue(@NotNull Envelope envelope) {
+        CoalesceKey key = getKey(envelope);
+        if (key == null || !coalesce(key, envelope)) {
+            try {
+                child.enqueue(envelope);
+            } catch (RuntimeException e) {
+                if (key != null) {
+                    endRun(key, envelope);
+                }
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public boolean offer(@NotNull Envelope envelope, long timeout) throws InterruptedException {
+        CoalesceKey key = getKey(envelope);
+        if (key == null) {
+            return child.offer(envelope, timeout);
+        }
+        if (coalesce(key, envelope)) {
+            return true;
+        }
+        boolean offered = false;
+        try {
+            offered = child.offer(envelope, timeout);
+        } finally {
+            if (!offered) {
+                endRun(key, envelope);
+            }
+        }
+        return offered;
+    }
+
+    /**
+     * Record the envelope as the latest for its key
+     * @return True if an envelope with the same key is already queued and the new one will be delivered in its place
+     */
+    private boolean coalesce(CoalesceKey key, Envelope envelope) {
+        boolean[] replaced = new boolean[1];
+        latest.compute(key, (k, run) -> {
+            replaced[0] = run != null;
+            if (run == null) {
+                return new Run(envelope);
+            }
+            run.newest = envelope;
+            return run;
+        });
+        if (replaced[0]) {
+            coalesced.incrementAndGet();
+        }
+        return replaced[0];
+    }
+
+    @Override
+    public Envelope dequeue(boolean wait, Priority priority) throws InterruptedException {
+        Envelope queued = child.dequeue(wait, priority);
+        if (queued == null) {
+            return null;
+        }
+        CoalesceKey key = getKey(queued);
+        if (key == null) {
+            return queued;
+        }
+        Run run = endRun(key, queued);
+        if (run == null || run.newest == queued) {
+            return queued;
+        }
+        queuedInPlaceOf.put(run.newest, queued);
+        return run.newest;
+    }
+
+    /**
+     * Forget the run for a key if the given envelope is the one the child holds for it
+     * @return The run that was ended, or null if the envelope is not queued for the key
+     */
+    private Run endRun(CoalesceKey key, Envelope queued) {
+        Run[] ended = new Run[1];
+        latest.computeIfPresent(key, (k, run) -> {
+            if (run.queued != queued) {
+                return run;
+            }
+            ended[0] = run;
+            return null;
+        });
+        return ended[0];
+    }
+
+    @Override
+    public void acknowledge(@NotNull Envelope envelope) {
+        Envelope queued = queuedInPlaceOf.remove(envelope);
+        if (queued == null) {
+            //A child that discards a queued envelope reports it here without it ever being dequeued
+            CoalesceKey key = getKey(envelope);
+            if (key != null) {
+                endRun(key, envelope);
+            }
+        }
+        child.acknowledge(queued == null ? envelope : queued);
+    }
+
+    @NotNull
+    @Override
+    public List<Envelope> recover() {
+        return child.recover();
+    }
+
+    @Override
+    public int getMaximumSize() {
+        return child.getMaximumSize();
+    }
+
+    @Override
+    public long getMaximumBytes() {
+        return child.getMaximumBytes();
+    }
+
+    @Override
+    public int getCurrentSize() {
+        return child.getCurrentSize();
+    }
+
+    @Override
+    public int getCurrentSize(Priority priority) {
+        return child.getCurrentSize(priority);
+    }
+
+    @Override
+    public int getCurrentMemorySize() {
+        return child.getCurrentMemorySize();
+    }
+
+    @Override
+    public long getCurrentBytes() {
+        return child.getCurrentBytes();
+    }
+
+    /**
+     * Return the number of envelopes that were replaced by a newer one before they were delivered
+     * @return The count since the box was created
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    @Override
+    public void setAvailabilityListener(@NotNull Runnable listener) {
+        child.setAvailabilityListener(listener);
+    }
+
+    @Override
+    public void shutdown() {
+        child.shutdown();
+    }
+
+    /**
+     * The envelope the child holds for a key and the newest one to deliver in its place
+     */
+    private static class Run {
+        private final Envelope queued;
+        private Envelope newest;
+
+        private Run(Envelope queued) {
+            this.queued = queued;
+            this.newest = queued;
+        }
+    }
+
+    private static class CoalesceKey {
+
+        private final String type;
+        private final String destinationUuid;
+        private final String value;
+
+        private CoalesceKey(String type, String destinationUuid, String value) {
+            this.type = type;
+            this.destinationUuid = destinationUuid;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CoalesceKey)) {
+                return false;
+            }
+            CoalesceKey other = (CoalesceKey) o;
+            return type.equals(other.type) && Objects.equals(destinationUuid, other.destinationUuid) && Objects.equals(value, other.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, destinationUuid, value);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2015, Eric A Maginniss
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL ERIC A MAGINNISS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.emaginniss.agni.messageboxes;
+
+import lombok.extern.slf4j.Slf4j;
+import org.emaginniss.agni.*;
+import org.emaginniss.agni.annotations.Component;
+import org.emaginniss.agni.util.EnvelopeInputStream;
+import org.emaginniss.agni.util.EnvelopeOutputStream;
+import org.emaginniss.agni.util.RecordLog;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write-ahead logged message box.  Every envelope sent without expecting a response is appended to a
+ * {@link RecordLog} before it is handed to the child box, and removed from the log once the node has processed and
+ * acknowledged it.  syncMode decides whether producers wait for the fsync, see {@link RecordLog}.  On startup the
+ * log is replayed and unacknowledged envelopes are returned from {@link #recover()}.
+ */
+@Slf4j
+@Component("durable")
+public class DurableMessageBox implements MessageBox {
+
+    private final Node node;
+    private final MessageBox child;
+    private final RecordLog recordLog;
+    private final List<Envelope> recovered = new ArrayList<>();
+
+    public DurableMessageBox(Configuration configuration, Node node) {
+        this.node = node;
+        String storageLocation = configuration.getString("storageLocation", null);
+        if (storageLocation == null) {
+            throw new RuntimeException("The durable message box requires a storageLocation");
+        }
+        child = Factory.instantiate(MessageBox.class, configuration.getChild("child"), node);
+
+        try {
+            recordLog = new RecordLog(Paths.get(storageLocation).resolve("inbox.wal"), configuration);
+            for (byte[] value : recordLog.getRecovered().values()) {
+                recovered.add(new EnvelopeInputStream(new ByteArrayInputStream(value)).read());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        log.info("Recovered " + recovered.size() + " unacknowledged envelopes from " + storageLocation);
+    }
+
+    private boolean isLogged(Envelope envelope) {
+        return !envelope.isControl() && !envelope.isResponseExpected();
+    }
+
+    @Override
+    public void enqueue(@NotNull Envelope envelope) {
+        if (isLogged(envelope)) {
+            log(envelope);
+        }
+        child.enqueue(envelope);
+    }
+
+    @Override
+    public boolean offer(@NotNull Envelope envelope, long timeout) throws InterruptedException {
+        if (!isLogged(envelope)) {
+            return child.offer(envelope, timeout);
+        }
+        log(envelope);
+        if (!child.offer(envelope, timeout)) {
+            acknowledge(envelope);
+            return false;
+        }
+        return true;
+    }
+
+    private void log(Envelope envelope) {
+        if (envelope.getPayload() == null && envelope.getLocalPayload() != null) {
+            //Locally delivered payloads only live on the heap, so they have to be serialized before they are logged
+            envelope.setPayload(node.getSerializer().serialize(envelope.getLocalPayload()));
+        }
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+            new EnvelopeOutputStream(baos).write(envelope);
+            recordLog.put(envelope.getUuid(), baos.toByteArray());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Envelope dequeue(boolean wait, Priority priority) throws InterruptedException {
+        return child.dequeue(wait, priority);
+    }
+
+    @Override
+    public void acknowledge(@NotNull Envelope envelope) {
+        if (isLogged(envelope)) {
+            recordLog.remove(envelope.getUuid());
+        }
+        child.acknowledge(envelope);
+    }
+
+    @NotNull
+    @Override
+    public List<Envelope> recover() {
+        synchronized (recovered) {
+            List<Envelope> out = new ArrayList<>(recovered);
+            recovered.clear();
+            return out;
+        }
+    }
+
+    @Override
+    public int getMaximumSize() {
+        return child.getMaximumSize();
+    }
+
+    @Override
+    public long getMaximumBytes() {
+        return child.getMaximumBytes();
+    }
+
+    @Override
+    public int getCurrentSize() {
+        return child.getCurrentSize();
+    }
+
+    @Override
+    public int getCurrentSize(Priority priority) {
+        return child.getCurrentSize(priority);
+    }
+
+    @Override
+    public int getCurrentMemorySize() {
+        return child.getCurrentMemorySize();
+    }
+
+    @Override
+    public long getCurrentBytes() {
+        return child.getCurrentBytes();
+    }
+
+    @Override
+    public void setAvailabilityListener(@NotNull Runnable listener) {
+        child.setAvailabilityListener(listener);
+    }
+
+    @Override
+    public void shutdown() {
+        recordLog.close();
+        child.shutdown();
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2015, Eric A Maginniss
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL ERIC A MAGINNISS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.emaginniss.agni.messageboxes;
+
+import org.emaginniss.agni.*;
+import org.emaginniss.agni.annotations.Component;
+import org.emaginniss.agni.impl.LocalDestination;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps a mailbox per local destination so that one slow or flooded handler cannot occupy every processor thread.
+ * A destination with at most maxInFlight envelopes being processed at once has its mailbox skipped until one of them is
+ * acknowledged.  maxInFlight defaults to 0, which limits a destination only by the maxConcurrency of its subscription,
+ * so a destination is serialized only when it is configured with a maxInFlight of 1.  Mailboxes with work are served in turn according to the scheduling option:
+ * <ul>
+ *     <li>roundRobin - one envelope from each mailbox in turn</li>
+ *     <li>deficit - deficit round robin, where each turn grants quantum * weight estimated bytes, so mailboxes share
+ *     the processor threads by volume rather than by envelope count</li>
+ * </ul>
+ * maxInFlight and weight can be overridden per message type under destinations.  Control traffic and envelopes passing
+ * through to other nodes share a single mailbox with no in-flight limit.  Note that a handler that makes a request to
+ * its own destination while at its limit will wait until that request times out.
+ */
+@Component("fair")
+public class FairMessageBox implements MessageBox {
+
+    private final Node node;
+    private final List<ArrayDeque<Mailbox>> ready = new ArrayList<>();
+    private final Map<String, Slot> slots = new HashMap<>();
+    private final Map<Envelope, Slot> dispatched = new IdentityHashMap<>();
+    private final Slot sharedSlot = new Slot(null, -1, 1);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition[] notEmpty = new Condition[Priority.values().length];
+    private final boolean deficit;
+    private final long quantum;
+    private final int maxInFlight;
+    private final Map<String, Configuration> destinationConfigurations;
+    private final int[] queuedByPriority = new int[Priority.values().length];
+    private volatile int currentSize = 0;
+    private volatile long currentBytes = 0;
+
+    public FairMessageBox(Configuration configuration, Node node) {
+        this.node = node;
+        String scheduling = configuration.getString("scheduling", "roundRobin");
+        if (!"roundRobin".equals(scheduling) && !"deficit".equals(scheduling)) {
+            throw new RuntimeException("Unknown scheduling " + scheduling);
+        }
+        deficit = "deficit".equals(scheduling);
+        quantum = configuration.getLong("quantum", 1024);
+        maxInFlight = configuration.getInt("maxInFlight", 0);
+        destinationConfigurations = configuration.getMap("destinations");
+        for (int i = 0; i < notEmpty.length; i++) {
+            ready.add(new ArrayDeque<>());
+            notEmpty[i] = lock.newCondition();
+        }
+    }
+
+    @Override
+    public void enqueue(@NotNull Envelope envelope) {
+        lock.lock();
+        try {
+            Slot slot = getSlot(envelope);
+            Mailbox mailbox = slot.getMailbox(envelope.getPriority());
+            mailbox.queue.addLast(envelope);
+            currentSize++;
+            queuedByPriority[envelope.getPriority().getNum()]++;
+            currentBytes += envelope.getEstimatedSize();
+            schedule(mailbox);
+            signal(envelope.getPriority().getNum());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(@NotNull Envelope envelope, long timeout) {
+        enqueue(envelope);
+        return true;
+    }
+
+    private Slot getSlot(Envelope envelope) {
+        if (envelope.isControl() || envelope.getDestinationUuid() == null || !node.getUuid().equals(envelope.getNodeUuid())) {
+            return sharedSlot;
+        }
+        Slot slot = slots.get(envelope.getDestinationUuid());
+        if (slot == null) {
+            Configuration destinationConfiguration = destinationConfigurations.get(envelope.getType());
+            int limit = maxInFlight;
+            double weight = 1;
+            if (destinationConfiguration != null) {
+                limit = destinationConfiguration.getInt("maxInFlight", limit);
+                weight = destinationConfiguration.getDouble("weight", 1);
+            }
+            if (limit <= 0) {
+                limit = getBulkheadLimit(envelope.getDestinationUuid());
+            }
+            slot = new Slot(envelope.getDestinationUuid(), limit, weight);
+            slots.put(slot.destinationUuid, slot);
+        }
+        return slot;
+    }
+
+    private int getBulkheadLimit(String destinationUuid) {
+        Destination destination = node.getDestinationRegistration().getDestination(destinationUuid);
+        if (destination instanceof LocalDestination && ((LocalDestination) destination).getBulkhead() != null) {
+            return ((LocalDestination) destination).getBulkhead().getMaxConcurrency();
+        }
+        return 0;
+    }
+
+    private void schedule(Mailbox mailbox) {
+        if (!mailbox.scheduled && !mailbox.queue.isEmpty() && mailbox.slot.hasCapacity()) {
+            ready.get(mailbox.priority.getNum()).addLast(mailbox);
+            mailbox.scheduled = true;
+        }
+    }
+
+    /**
+     * Wake one consumer of every priority that may take an envelope of the given priority.  Consumers wait on the
+     * condition of the priority they serve, so a consumer that could not take the envelope never swallows the wakeup.
+     */
+    private void signal(int priority) {
+        for (int i = priority; i < notEmpty.length; i++) {
+            notEmpty[i].signal();
+        }
+    }
+
+    @Override
+    public Envelope dequeue(boolean wait, Priority priority) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                for (int i = 0; i <= priority.getNum(); i++) {
+                    Envelope out = pull(ready.get(i));
+                    if (out != null) {
+                        currentSize--;
+                        queuedByPriority[i]--;
+                        currentBytes -= out.getEstimatedSize();
+                        return out;
+                    }
+                }
+                if (!wait) {
+                    return null;
+                }
+                notEmpty[priority.getNum()].await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Envelope pull(ArrayDeque<Mailbox> queue) {
+        while (true) {
+            Mailbox mailbox = queue.peekFirst();
+            if (mailbox == null) {
+                return null;
+            }
+            if (!mailbox.slot.hasCapacity()) {
+                //Parked until one of its envelopes is acknowledged
+                queue.pollFirst();
+                mailbox.scheduled = false;
+                continue;
+            }
+
+            if (deficit) {
+                long size = mailbox.queue.peekFirst().getEstimatedSize();
+                if (mailbox.deficit < size) {
+                    mailbox.deficit += (long) (quantum * mailbox.slot.weight);
+                    queue.addLast(queue.pollFirst());
+                    continue;
+                }
+                mailbox.deficit -= size;
+            }
+
+            Envelope out = mailbox.queue.pollFirst();
+            mailbox.slot.inFlight++;
+            dispatched.put(out, mailbox.slot);
+            if (mailbox.queue.isEmpty()) {
+                queue.pollFirst();
+                mailbox.scheduled = false;
+                mailbox.deficit = 0;
+            } else if (!deficit) {
+                queue.addLast(queue.pollFirst());
+            }
+            return out;
+        }
+    }
+
+    @Override
+    public void acknowledge(@NotNull Envelope envelope) {
+        lock.lock();
+        try {
+            Slot slot = dispatched.remove(envelope);
+            if (slot == null) {
+                return;
+            }
+            slot.inFlight--;
+            boolean idle = slot.inFlight == 0;
+            int highest = -1;
+            for (Mailbox mailbox : slot.mailboxes) {
+                if (mailbox != null) {
+                    schedule(mailbox);
+                    idle &= mailbox.queue.isEmpty();
+                    if (highest < 0 && mailbox.scheduled) {
+                        highest = mailbox.priority.getNum();
+                    }
+                }
+            }
+            if (idle && slot != sharedSlot) {
+                slots.remove(slot.destinationUuid);
+            }
+            if (highest >= 0) {
+                signal(highest);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @NotNull
+    @Override
+    public List<Envelope> recover() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public int getMaximumSize() {
+        return -1;
+    }
+
+    @Override
+    public long getMaximumBytes() {
+        return -1;
+    }
+
+    @Override
+    public int getCurrentSize() {
+        return currentSize;
+    }
+
+    @Override
+    public int getCurrentSize(Priority priority) {
+        lock.lock();
+        try {
+            int out = 0;
+            for (int i = 0; i <= priority.getNum(); i++) {
+                out += queuedByPriority[i];
+            }
+            return out;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getCurrentMemorySize() {
+        return currentSize;
+    }
+
+    @Override
+    public long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    /**
+     * Return the number of destinations that currently have envelopes queued or being processed
+     * @return The mailbox count
+     */
+    public int getActiveDestinationCount() {
+        lock.lock();
+        try {
+            return slots.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setAvailabilityListener(@NotNull Runnable listener) {
+        //Envelopes only ever arrive through enqueue
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    private static class Slot {
+
+        private final String destinationUuid;
+        private final int maxInFlight;
+        private final double weight;
+        private final Mailbox[] mailboxes = new Mailbox[Priority.values().length];
+        private int inFlight = 0;
+
+        private Slot(String destinationUuid, int maxInFlight, double weight) {
+            this.destinationUuid = destinationUuid;
+            this.maxInFlight = maxInFlight;
+            this.weight = weight;
+        }
+
+        private boolean hasCapacity() {
+            return maxInFlight <= 0 || inFlight < maxInFlight;
+        }
+
+        private Mailbox getMailbox(Priority priority) {
+            if (mailboxes[priority.getNum()] == null) {
+                mailboxes[priority.getNum()] = new Mailbox(this, priority);
+            }
+            return mailboxes[priority.getNum()];
+        }
+    }
+
+    private static class Mailbox {
+
+        private final Slot slot;
+        private final Priority priority;
+        private final ArrayDeque<Envelope> queue = new ArrayDeque<>();
+        private boolean scheduled = false;
+        private long deficit = 0;
+
+        private Mailbox(Slot slot, Priority priority) {
+            this.slot = slot;
+            this.priority = priority;
+        }
+    }
+}
@@ -27,10 +27,10 @@
 
 package org.emaginniss.agni.messageboxes;
 
-import org.emaginniss.agni.Configuration;
-import org.emaginniss.agni.Envelope;
-import org.emaginniss.agni.Priority;
+import lombok.extern.slf4j.Slf4j;
+import org.emaginniss.agni.*;
 import org.emaginniss.agni.annotations.Component;
+import org.emaginniss.agni.codecs.Codec;
 import org.emaginniss.agni.util.EnvelopeInputStream;
 import org.emaginniss.agni.util.EnvelopeOutputStream;
 import org.jetbrains.annotations.NotNull;
@@ -38,150 +38,330 @@ import org.jetbrains.annotations.NotNull;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Keeps the newest envelopes in memory and spills the older ones to disk.  All file work happens on a background
+ * spiller thread: once more than maximumSize envelopes, or more than maximumBytes estimated bytes, are waiting in the
+ * write queue it writes the oldest of them out until both lowWatermark and lowWatermarkBytes are met, and once the read queue falls to prefetchThreshold it loads the next spilled file ahead of the
+ * consumers.  Envelopes come out in the order they went in: read queue, prefetched file, spilled files, the batch being
+ * spilled, then the write queue.
+ */
+@Slf4j
 @Component("fileBacked")
 public class FileBackedMessageBox implements MessageBox {
 
     private final LinkedList<Path> storage = new LinkedList<>();
+    private Node node;
+    private Codec codec;
     private String storageLocation;
     private Path storageDir;
     private int maximumSize = 100000;
+    private int lowWatermark;
+    private int prefetchThreshold;
+    private long maximumBytes;
+    private long lowWatermarkBytes;
+    private long writeQueueBytes = 0;
+    private AtomicLong currentBytes = new AtomicLong(0);
     private AtomicInteger currentSize = new AtomicInteger(0);
     private AtomicInteger currentMemorySize = new AtomicInteger(0);
     private LinkedList<Envelope> readQueue = new LinkedList<>();
     private LinkedList<Envelope> writeQueue = new LinkedList<>();
+    private LinkedList<Envelope> prefetched;
+    private List<Envelope> spilling;
+    private boolean loading = false;
+    private boolean loadRequested = false;
+    private boolean shutdown = false;
+    private Thread spiller;
+    private volatile Runnable listener;
 
-    public FileBackedMessageBox(Configuration configuration) {
+    public FileBackedMessageBox(Configuration configuration, Node node) {
+        this.node = node;
         storageLocation = configuration.getString("storageLocation", null);
         maximumSize = configuration.getInt("maximumSize", 50000);
+        lowWatermark = configuration.getInt("lowWatermark", maximumSize / 2);
+        prefetchThreshold = configuration.getInt("prefetchThreshold", maximumSize / 4);
+        maximumBytes = configuration.getLong("maximumBytes", -1);
+        lowWatermarkBytes = configuration.getLong("lowWatermarkBytes", maximumBytes / 2);
+        if (lowWatermark >= maximumSize || (maximumBytes >= 0 && lowWatermarkBytes >= maximumBytes)) {
+            throw new RuntimeException("Low watermarks must be less than the maximums");
+        }
+        codec = Factory.instantiate(Codec.class, configuration.getChild("codec"));
+
+        spiller = new Thread(this::spill, (node == null ? "" : node.getDisplayName() + " - ") + "FileBackedMessageBox - Spiller");
+        spiller.setDaemon(true);
+        spiller.start();
     }
 
     @Override
     public void enqueue(@NotNull Envelope envelope) {
         synchronized (this) {
             writeQueue.addLast(envelope);
+            writeQueueBytes += envelope.getEstimatedSize();
             currentSize.incrementAndGet();
             currentMemorySize.incrementAndGet();
-
-            if (writeQueue.size() > maximumSize) {
-                storeWriteQueue();
-            }
+            currentBytes.addAndGet(envelope.getEstimatedSize());
 
             this.notifyAll();
         }
     }
 
+    @Override
+    public boolean offer(@NotNull Envelope envelope, long timeout) {
+        enqueue(envelope);
+        return true;
+    }
+
     @Override
     public Envelope dequeue(boolean wait, Priority priority) throws InterruptedException {
-        while (true) {
-            synchronized (this) {
-                if (readQueue.size() == 0 && storage.size() == 0 && writeQueue.size() == 0) {
-                    if (wait) {
-                        this.wait();
-                    } else {
-                        return null;
+        synchronized (this) {
+            while (true) {
+                if (readQueue.isEmpty()) {
+                    if (prefetched != null) {
+                        readQueue = prefetched;
+                        prefetched = null;
+                        this.notifyAll();
+                    } else if (!loading && storage.isEmpty()) {
+                        if (spilling != null) {
+                            //Take the batch back before it reaches the disk, the spiller will discard its file
+                            readQueue = new LinkedList<>(spilling);
+                            spilling = null;
+                        } else if (!writeQueue.isEmpty()) {
+                            readQueue = writeQueue;
+                            writeQueue = new LinkedList<>();
+                            writeQueueBytes = 0;
+                        }
+                    } else if (!loading) {
+                        loadRequested = true;
+                        this.notifyAll();
                     }
                 }
 
-                if (readQueue.size() == 0) {
-                    if (storage.size() > 0) {
-                        loadReadQueue();
-                    } else {
-                        readQueue = writeQueue;
-                        writeQueue = new LinkedList<>();
+                if (!readQueue.isEmpty()) {
+                    currentMemorySize.decrementAndGet();
+                    currentSize.decrementAndGet();
+                    Envelope envelope = readQueue.removeFirst();
+                    currentBytes.addAndGet(0 - envelope.getEstimatedSize());
+                    if (readQueue.size() == prefetchThreshold && !storage.isEmpty()) {
+                        this.notifyAll();
                     }
+                    return envelope;
                 }
 
-                if (readQueue.size() > 0) {
-                    currentMemorySize.decrementAndGet();
-                    currentSize.decrementAndGet();
-                    return readQueue.removeFirst();
+                if (!wait) {
+                    //The availability listener tells a polling wrapper once the requested load has finished
+                    return null;
                 }
+                this.wait();
             }
         }
     }
 
-    private void storeWriteQueue() {
-        try {
-            if (storageDir == null) {
-                if (storageLocation == null) {
-                    storageDir = Files.createTempDirectory("messagebox");
+    private boolean needsPrefetch() {
+        //An empty read queue only loads on demand, otherwise a box nobody is draining would pull its spill back in
+        return prefetched == null && !loading && !storage.isEmpty() && (readQueue.isEmpty() ? loadRequested : readQueue.size() <= prefetchThreshold);
+    }
+
+    private boolean needsSpill() {
+        return spilling == null && (writeQueue.size() > maximumSize || (maximumBytes >= 0 && writeQueueBytes > maximumBytes));
+    }
+
+    private void spill() {
+        while (true) {
+            Path loadPath = null;
+            List<Envelope> batch = null;
+            synchronized (this) {
+                while (!shutdown && !needsPrefetch() && !needsSpill()) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (shutdown) {
+                    return;
+                }
+                //Starving consumers come first, otherwise keep memory in check before reading ahead
+                if (needsPrefetch() && (readQueue.isEmpty() || !needsSpill())) {
+                    loadPath = storage.removeFirst();
+                    loading = true;
+                    loadRequested = false;
                 } else {
-                    storageDir = Files.createTempDirectory(new File(storageLocation).toPath(), "messagebox");
+                    batch = new ArrayList<>(Math.max(0, writeQueue.size() - lowWatermark));
+                    while (writeQueue.size() > lowWatermark || (maximumBytes >= 0 && writeQueueBytes > lowWatermarkBytes)) {
+                        Envelope envelope = writeQueue.removeFirst();
+                        writeQueueBytes -= envelope.getEstimatedSize();
+                        batch.add(envelope);
+                    }
+                    spilling = batch;
                 }
             }
 
-            Path outputPath = Files.createTempFile(storageDir, "mb", ".dat");
-            FileOutputStream fos = new FileOutputStream(outputPath.toFile());
-            GZIPOutputStream gzos = new GZIPOutputStream(fos);
-            EnvelopeOutputStream dos = new EnvelopeOutputStream(gzos);
-
-            for (Envelope envelope : writeQueue) {
-                dos.write(envelope);
+            try {
+                if (loadPath != null) {
+                    LinkedList<Envelope> loaded = load(loadPath);
+                    synchronized (this) {
+                        prefetched = loaded;
+                        loading = false;
+                        currentMemorySize.addAndGet(loaded.size());
+                        currentBytes.addAndGet(estimateSize(loaded));
+                        this.notifyAll();
+                    }
+                    notifyListener();
+                } else {
+                    Path outputPath = store(batch);
+                    synchronized (this) {
+                        if (spilling == batch) {
+                            spilling = null;
+                            storage.addLast(outputPath);
+                            currentMemorySize.addAndGet(0 - batch.size());
+                            currentBytes.addAndGet(0 - estimateSize(batch));
+                            outputPath = null;
+                        }
+                        this.notifyAll();
+                    }
+                    if (outputPath != null) {
+                        delete(outputPath);
+                    }
+                }
+            } catch (Throwable t) {
+                log.error("Error while spilling envelopes", t);
+                synchronized (this) {
+                    if (loadPath != null) {
+                        storage.addFirst(loadPath);
+                        loading = false;
+                    } else if (spilling == batch) {
+                        //Keep the envelopes in memory rather than lose them
+                        writeQueue.addAll(0, batch);
+                        writeQueueBytes += estimateSize(batch);
+                        spilling = null;
+                    }
+                    this.notifyAll();
+                }
+                if (loadPath != null) {
+                    //Let a polling wrapper ask for the file again
+                    notifyListener();
+                }
+                try {
+                    //Give a failing disk a moment before trying again
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
             }
+        }
+    }
 
-            dos.close();
-            gzos.close();
-            fos.close();
-
-            currentMemorySize.addAndGet(0 - writeQueue.size());
-            writeQueue.clear();
+    private void notifyListener() {
+        Runnable current = listener;
+        if (current != null) {
+            current.run();
+        }
+    }
 
-            storage.addLast(outputPath);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    private long estimateSize(List<Envelope> envelopes) {
+        long out = 0;
+        for (Envelope envelope : envelopes) {
+            out += envelope.getEstimatedSize();
         }
+        return out;
     }
 
-    private void loadReadQueue() {
-        try {
-            Path outputPath = storage.removeFirst();
-            FileInputStream fis = new FileInputStream(outputPath.toFile());
-            GZIPInputStream gzis = new GZIPInputStream(fis);
-            EnvelopeInputStream dis = new EnvelopeInputStream(gzis);
+    private Path store(List<Envelope> batch) throws IOException {
+        if (storageDir == null) {
+            if (storageLocation == null) {
+                storageDir = Files.createTempDirectory("messagebox");
+            } else {
+                storageDir = Files.createTempDirectory(new File(storageLocation).toPath(), "messagebox");
+            }
+        }
+
+        Path outputPath = Files.createTempFile(storageDir, "mb", ".dat");
+        try (EnvelopeOutputStream dos = new EnvelopeOutputStream(new BufferedOutputStream(codec.compress(new FileOutputStream(outputPath.toFile())), 65536))) {
+            for (Envelope envelope : batch) {
+                if (envelope.getPayload() == null && envelope.getLocalPayload() != null) {
+                    //Locally delivered payloads only live on the heap, so they have to be serialized before spilling
+                    envelope.setPayload(node.getSerializer().serialize(envelope.getLocalPayload()));
+                }
+                dos.write(envelope);
+            }
+        }
+        return outputPath;
+    }
 
-            int count = 0;
+    private LinkedList<Envelope> load(Path inputPath) throws IOException {
+        LinkedList<Envelope> out = new LinkedList<>();
+        try (EnvelopeInputStream dis = new EnvelopeInputStream(new BufferedInputStream(codec.decompress(new FileInputStream(inputPath.toFile())), 65536))) {
             while (true) {
                 try {
-                    readQueue.add(dis.read());
-                    count++;
+                    out.add(dis.read());
                 } catch (EOFException e) {
                     break;
                 }
             }
+        }
+        delete(inputPath);
+        return out;
+    }
 
-            dis.close();
-            gzis.close();
-            fis.close();
+    private void delete(Path path) {
+        if (!path.toFile().delete()) {
+            path.toFile().deleteOnExit();
+        }
+    }
 
-            currentMemorySize.addAndGet(count);
+    @Override
+    public void acknowledge(@NotNull Envelope envelope) {
+    }
 
-            if (!outputPath.toFile().delete()) {
-                outputPath.toFile().deleteOnExit();
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    @NotNull
+    @Override
+    public List<Envelope> recover() {
+        return Collections.emptyList();
     }
 
     public int getMaximumSize() {
         return maximumSize;
     }
 
+    @Override
+    public long getMaximumBytes() {
+        return maximumBytes;
+    }
+
     public int getCurrentSize() {
         return currentSize.get();
     }
 
+    @Override
+    public int getCurrentSize(Priority priority) {
+        return getCurrentSize();
+    }
+
     public int getCurrentMemorySize() {
         return currentMemorySize.get();
     }
 
     @Override
-    public void shutdown() {
+    public long getCurrentBytes() {
+        return currentBytes.get();
+    }
 
+    @Override
+    public void setAvailabilityListener(@NotNull Runnable listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            this.notifyAll();
+        }
     }
 }
@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2015, Eric A Maginniss
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL ERIC A MAGINNISS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.emaginniss.agni.messageboxes;
+
+import lombok.extern.slf4j.Slf4j;
+import org.emaginniss.agni.Configuration;
+import org.emaginniss.agni.Envelope;
+import org.emaginniss.agni.Node;
+import org.emaginniss.agni.Priority;
+import org.emaginniss.agni.annotations.Component;
+import org.emaginniss.agni.util.ByteBufferInputStream;
+import org.emaginniss.agni.util.EnvelopeInputStream;
+import org.emaginniss.agni.util.EnvelopeOutputStream;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Message box that appends encoded envelopes to preallocated memory-mapped segment files and decodes them straight from
+ * the mapping.  The backlog lives in the page cache rather than on the heap.  Fully consumed segments go back to a
+ * free pool for reuse.  Producers only contend with each other on the append lock, and consumers only with each other
+ * on the read lock.
+ */
+@Slf4j
+@Component("mappedLog")
+public class MappedLogMessageBox implements MessageBox {
+
+    private final Node node;
+    private final String storageLocation;
+    private final int segmentSize;
+    private final int maximumFreeSegments;
+    private Path storageDir;
+    private final Deque<Segment> segments = new ConcurrentLinkedDeque<>();
+    private final Queue<Segment> freeSegments = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final Condition notEmpty = readLock.newCondition();
+    private final AtomicInteger waitingConsumers = new AtomicInteger(0);
+    private final AtomicInteger currentSize = new AtomicInteger(0);
+    private Segment tail;
+
+    public MappedLogMessageBox(Configuration configuration, Node node) {
+        this.node = node;
+        storageLocation = configuration.getString("storageLocation", null);
+        segmentSize = configuration.getInt("segmentSize", 64 * 1024 * 1024);
+        maximumFreeSegments = configuration.getInt("maximumFreeSegments", 4);
+    }
+
+    @Override
+    public void enqueue(@NotNull Envelope envelope) {
+        byte[] record = encode(envelope);
+
+        appendLock.lock();
+        try {
+            int needed = 4 + record.length;
+            if (tail == null || tail.capacity - tail.writePosition < needed) {
+                if (tail != null) {
+                    tail.sealed = true;
+                }
+                tail = allocate(needed);
+                segments.addLast(tail);
+            }
+            ByteBuffer out = tail.buffer.duplicate();
+            out.position(tail.writePosition);
+            out.putInt(record.length);
+            out.put(record);
+            tail.writePosition += needed;
+            tail.published = tail.writePosition;
+        } finally {
+            appendLock.unlock();
+        }
+        currentSize.incrementAndGet();
+
+        if (waitingConsumers.get() > 0) {
+            readLock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                readLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public boolean offer(@NotNull Envelope envelope, long timeout) {
+        enqueue(envelope);
+        return true;
+    }
+
+    private byte[] encode(Envelope envelope) {
+        if (envelope.getPayload() == null && envelope.getLocalPayload() != null) {
+            //Locally delivered payloads only live on the heap, so they have to be serialized before they are logged
+            envelope.setPayload(node.getSerializer().serialize(envelope.getLocalPayload()));
+        }
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+            new EnvelopeOutputStream(baos).write(envelope);
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Segment allocate(int needed) {
+        Segment segment = freeSegments.poll();
+        if (segment != null) {
+            if (segment.capacity >= needed) {
+                segment.reset();
+                return segment;
+            }
+            segment.delete();
+        }
+
+        try {
+            if (storageDir == null) {
+                if (storageLocation == null) {
+                    storageDir = Files.createTempDirectory("messagebox");
+                } else {
+                    storageDir = Files.createTempDirectory(new File(storageLocation).toPath(), "messagebox");
+                }
+            }
+            return new Segment(Files.createTempFile(storageDir, "seg", ".log"), Math.max(segmentSize, needed));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Envelope dequeue(boolean wait, Priority priority) throws InterruptedException {
+        readLock.lockInterruptibly();
+        try {
+            while (true) {
+                Envelope out = pull();
+                if (out != null || !wait) {
+                    return out;
+                }
+                waitingConsumers.incrementAndGet();
+                try {
+                    //Check again now that producers know to signal
+                    out = pull();
+                    if (out != null) {
+                        return out;
+                    }
+                    notEmpty.await();
+                } finally {
+                    waitingConsumers.decrementAndGet();
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private Envelope pull() {
+        while (true) {
+            Segment head = segments.peekFirst();
+            if (head == null) {
+                return null;
+            }
+            //Read sealed before published, so a sealed segment is seen with its final published position
+            boolean sealed = head.sealed;
+            int published = head.published;
+            if (head.readPosition < published) {
+                return read(head);
+            }
+            if (!sealed) {
+                return null;
+            }
+            segments.pollFirst();
+            recycle(head);
+        }
+    }
+
+    private Envelope read(Segment segment) {
+        ByteBuffer in = segment.buffer.duplicate();
+        in.position(segment.readPosition);
+        int length = in.getInt();
+        in.limit(in.position() + length);
+        segment.readPosition += 4 + length;
+        currentSize.decrementAndGet();
+        try {
+            return new EnvelopeInputStream(new ByteBufferInputStream(in)).read();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void recycle(Segment segment) {
+        if (segment.capacity == segmentSize && freeSegments.size() < maximumFreeSegments) {
+            freeSegments.add(segment);
+        } else {
+            segment.delete();
+        }
+    }
+
+    @Override
+    public void acknowledge(@NotNull Envelope envelope) {
+    }
+
+    @NotNull
+    @Override
+    public List<Envelope> recover() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public int getMaximumSize() {
+        return -1;
+    }
+
+    @Override
+    public long getMaximumBytes() {
+        return -1;
+    }
+
+    @Override
+    public int getCurrentSize() {
+        return currentSize.get();
+    }
+
+    @Override
+    public int getCurrentSize(Priority priority) {
+        return getCurrentSize();
+    }
+
+    @Override
+    public int getCurrentMemorySize() {
+        return 0;
+    }
+
+    @Override
+    public long getCurrentBytes() {
+        return 0;
+    }
+
+    @Override
+    public void setAvailabilityListener(@NotNull Runnable listener) {
+        //Envelopes only ever arrive through enqueue
+    }
+
+    @Override
+    public void shutdown() {
+        appendLock.lock();
+        readLock.lock();
+        try {
+            for (Segment segment : segments) {
+                segment.delete();
+            }
+            segments.clear();
+            Segment segment;
+            while ((segment = freeSegments.poll()) != null) {
+                segment.delete();
+            }
+            tail = null;
+            currentSize.set(0);
+        } finally {
+            readLock.unlock();
+            appendLock.unlock();
+        }
+    }
+
+    private static class Segment {
+
+        private final Path path;
+        private final RandomAccessFile file;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private int writePosition = 0;
+        private int readPosition = 0;
+        private volatile int published = 0;
+        private volatile boolean sealed = false;
+
+        private Segment(Path path, int capacity) throws IOException {
+            this.path = path;
+            this.capacity = capacity;
+            file = new RandomAccessFile(path.toFile(), "rw");
+            file.setLength(capacity);
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        private void reset() {
+            writePosition = 0;
+            readPosition = 0;
+            published = 0;
+            sealed = false;
+        }
+
+        private void delete() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                log.warn("Unable to close segment " + path, e);
+            }
+            //The mapping is released when the buffer is collected, so fall back to deleting on exit
+            if (!path.toFile().delete()) {
+                path.toFile().deleteOnExit();
+            }
+        }
+    }
+}
@@ -32,13 +32,17 @@ import org.emaginniss.agni.Priority;
 import org.emaginniss.agni.annotations.Component;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Component(value = "memory", isDefault = true)
 public class MemoryMessageBox implements MessageBox {
 
     private AtomicInteger currentSize = new AtomicInteger(0);
+    private AtomicLong currentBytes = new AtomicLong(0);
 
     private LinkedList<Envelope> queue = new LinkedList<>();
 
@@ -47,11 +51,18 @@ public class MemoryMessageBox implements MessageBox {
         synchronized (this) {
             queue.addLast(envelope);
             currentSize.incrementAndGet();
+            currentBytes.addAndGet(envelope.getEstimatedSize());
 
             this.notifyAll();
         }
     }
 
+    @Override
+    public boolean offer(@NotNull Envelope envelope, long timeout) {
+        enqueue(envelope);
+        return true;
+    }
+
     @Override
     public Envelope dequeue(boolean wait, Priority priority) throws InterruptedException {
         synchronized (this) {
@@ -66,24 +77,56 @@ public class MemoryMessageBox implements MessageBox {
 
                 if (queue.size() > 0) {
                     currentSize.decrementAndGet();
-                    return queue.removeFirst();
+                    Envelope out = queue.removeFirst();
+                    currentBytes.addAndGet(0 - out.getEstimatedSize());
+                    return out;
                 }
             }
         }
     }
 
+    @Override
+    public void acknowledge(@NotNull Envelope envelope) {
+    }
+
+    @NotNull
+    @Override
+    public List<Envelope> recover() {
+        return Collections.emptyList();
+    }
+
     public int getMaximumSize() {
         return -1;
     }
 
+    @Override
+    public long getMaximumBytes() {
+        return -1;
+    }
+
     public int getCurrentSize() {
         return currentSize.get();
     }
 
+    @Override
+    public int getCurrentSize(Priority priority) {
+        return getCurrentSize();
+    }
+
     public int getCurrentMemorySize() {
         return currentSize.get();
     }
 
+    @Override
+    public long getCurrentBytes() {
+        return currentBytes.get();
+    }
+
+    @Override
+    public void setAvailabilityListener(@NotNull Runnable listener) {
+        //Envelopes only ever arrive through enqueue
+    }
+
     @Override
     public void shutdown() {
     }
@@ -33,19 +33,72 @@ import org.emaginniss.agni.annotations.ComponentType;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.List;
+
 @ComponentType
 public interface MessageBox {
 
     void enqueue(@NotNull Envelope envelope);
 
+    /**
+     * Enqueue an envelope unless the box is full
+     * @param envelope The envelope to enqueue
+     * @param timeout Milliseconds to wait for room when the box blocks producers
+     * @return False if the box rejected the envelope
+     */
+    boolean offer(@NotNull Envelope envelope, long timeout) throws InterruptedException;
+
     @Nullable
     Envelope dequeue(boolean wait, Priority priority) throws InterruptedException;
 
+    /**
+     * Called once the node has finished with a dequeued envelope, so durable boxes can retire it from their log
+     * @param envelope The envelope that was processed
+     */
+    void acknowledge(@NotNull Envelope envelope);
+
+    /**
+     * Return the envelopes a previous run accepted but never acknowledged.  They are not queued in this box; the node
+     * enqueues them again once a destination for them is registered.
+     * @return The recovered envelopes in their original order
+     */
+    @NotNull
+    List<Envelope> recover();
+
     int getMaximumSize();
 
+    /**
+     * Return the limit on the estimated bytes held by this box
+     * @return The limit in bytes or -1 if the box is not limited by size
+     */
+    long getMaximumBytes();
+
     int getCurrentSize();
 
+    /**
+     * Return the number of envelopes a consumer of the given priority may take.  In a box that keeps priorities apart
+     * these are the envelopes queued at that priority or above; otherwise it is every queued envelope.
+     * @param priority The priority the consumer serves
+     * @return The envelope count
+     */
+    int getCurrentSize(Priority priority);
+
     int getCurrentMemorySize();
 
+    /**
+     * Return the estimated heap retained by the envelopes this box holds in memory, as given by
+     * {@link Envelope#getEstimatedSize()}.  Envelopes that have been spilled to disk or live off heap are not counted.
+     * @return The estimate in bytes
+     */
+    long getCurrentBytes();
+
+    /**
+     * Register a callback for when envelopes become available other than through enqueue, such as a spilled file that
+     * finished loading in the background.  A wrapping box that polls this one without waiting uses it to know when to
+     * look again.
+     * @param listener Called without any of this box's locks held
+     */
+    void setAvailabilityListener(@NotNull Runnable listener);
+
     void shutdown();
 }
@@ -31,6 +31,8 @@ import org.emaginniss.agni.*;
 import org.emaginniss.agni.annotations.Component;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -38,20 +40,36 @@ import java.util.TreeMap;
 public class PriorityMessageBox implements MessageBox {
 
     private Map<Priority, MessageBox> messageBoxes = new TreeMap<>();
+    private volatile Runnable listener;
 
     public PriorityMessageBox(Configuration configuration, Node node) {
         Map<String, Configuration> children = configuration.getMap("children");
         for (Priority priority : Priority.values()) {
             messageBoxes.put(priority, Factory.instantiate(MessageBox.class, children.get(priority.name()), node));
         }
+        for (MessageBox mb : messageBoxes.values()) {
+            mb.setAvailabilityListener(this::childAvailable);
+        }
     }
 
     @Override
     public void enqueue(@NotNull Envelope envelope) {
+        //The child may block when it is bounded, so only hold the monitor for the wakeup
+        messageBoxes.get(envelope.getPriority()).enqueue(envelope);
+        synchronized (this) {
+            this.notifyAll();
+        }
+    }
+
+    @Override
+    public boolean offer(@NotNull Envelope envelope, long timeout) throws InterruptedException {
+        if (!messageBoxes.get(envelope.getPriority()).offer(envelope, timeout)) {
+            return false;
+        }
         synchronized (this) {
-            messageBoxes.get(envelope.getPriority()).enqueue(envelope);
             this.notifyAll();
         }
+        return true;
     }
 
     @Override
@@ -97,6 +115,33 @@ public class PriorityMessageBox implements MessageBox {
         return out;
     }
 
+    @Override
+    public void acknowledge(@NotNull Envelope envelope) {
+        messageBoxes.get(envelope.getPriority()).acknowledge(envelope);
+    }
+
+    @NotNull
+    @Override
+    public List<Envelope> recover() {
+        List<Envelope> out = new ArrayList<>();
+        for (MessageBox mb : messageBoxes.values()) {
+            out.addAll(mb.recover());
+        }
+        return out;
+    }
+
+    @Override
+    public long getMaximumBytes() {
+        long out = 0;
+        for (MessageBox mb : messageBoxes.values()) {
+            if (mb.getMaximumBytes() < 0) {
+                return -1;
+            }
+            out += mb.getMaximumBytes();
+        }
+        return out;
+    }
+
     @Override
     public int getCurrentSize() {
         int out = 0;
@@ -106,6 +151,17 @@ public class PriorityMessageBox implements MessageBox {
         return out;
     }
 
+    @Override
+    public int getCurrentSize(Priority priority) {
+        int out = 0;
+        for (Map.Entry<Priority, MessageBox> e : messageBoxes.entrySet()) {
+            if (e.getKey().getNum() <= priority.getNum()) {
+                out += e.getValue().getCurrentSize(priority);
+            }
+        }
+        return out;
+    }
+
     @Override
     public int getCurrentMemorySize() {
         int out = 0;
@@ -115,6 +171,30 @@ public class PriorityMessageBox implements MessageBox {
         return out;
     }
 
+    @Override
+    public long getCurrentBytes() {
+        long out = 0;
+        for (MessageBox mb : messageBoxes.values()) {
+            out += mb.getCurrentBytes();
+        }
+        return out;
+    }
+
+    private void childAvailable() {
+        synchronized (this) {
+            this.notifyAll();
+        }
+        Runnable current = listener;
+        if (current != null) {
+            current.run();
+        }
+    }
+
+    @Override
+    public void setAvailabilityListener(@NotNull Runnable listener) {
+        this.listener = listener;
+    }
+
     @Override
     public void shutdown() {
         for (MessageBox mb : messageBoxes.values()) {
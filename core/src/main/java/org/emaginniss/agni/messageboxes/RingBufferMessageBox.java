@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2015, Eric A Maginniss
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL ERIC A MAGINNISS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.emaginniss.agni.messageboxes;
+
+import org.emaginniss.agni.Configuration;
+import org.emaginniss.agni.Envelope;
+import org.emaginniss.agni.Priority;
+import org.emaginniss.agni.annotations.Component;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free message box with one bounded ring per priority.  Producers never block: once a ring is full the envelope
+ * goes to an unbounded overflow queue for that priority, and later envelopes follow it there until consumers have
+ * drained the overflow, so each priority stays first in, first out.  Idle consumers spin,
+ * yield or park according to the wait strategy, and an enqueue unparks at most one consumer that can take its priority.
+ */
+@Component("ringBuffer")
+public class RingBufferMessageBox implements MessageBox {
+
+    private final Lane[] lanes = new Lane[Priority.values().length];
+    private final List<Queue<Thread>> idleConsumers = new ArrayList<>();
+    private final LongAdder currentSize = new LongAdder();
+    private final LongAdder currentBytes = new LongAdder();
+    private final String waitStrategy;
+    private final int spinTries;
+    private volatile boolean shutdown = false;
+
+    public RingBufferMessageBox(Configuration configuration) {
+        int capacity = Integer.highestOneBit(Math.max(2, configuration.getInt("capacity", 8192) - 1) << 1);
+        waitStrategy = configuration.getString("waitStrategy", "park");
+        if (!"spin".equals(waitStrategy) && !"yield".equals(waitStrategy) && !"park".equals(waitStrategy)) {
+            throw new RuntimeException("Unknown wait strategy " + waitStrategy);
+        }
+        spinTries = "park".equals(waitStrategy) ? 0 : configuration.getInt("spinTries", 1000);
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(capacity);
+            idleConsumers.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    @Override
+    public void enqueue(@NotNull Envelope envelope) {
+        int num = envelope.getPriority().getNum();
+        lanes[num].offer(envelope);
+        currentSize.increment();
+        currentBytes.add(envelope.getEstimatedSize());
+
+        wakeOne(num);
+    }
+
+    /**
+     * Unpark one idle consumer allowed to take envelopes of the given priority, which is any consumer at that priority
+     * or lower
+     */
+    private void wakeOne(int priority) {
+        for (int i = priority; i < idleConsumers.size(); i++) {
+            Thread consumer = idleConsumers.get(i).poll();
+            if (consumer != null) {
+                LockSupport.unpark(consumer);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public boolean offer(@NotNull Envelope envelope, long timeout) {
+        enqueue(envelope);
+        return true;
+    }
+
+    @Override
+    public Envelope dequeue(boolean wait, Priority priority) throws InterruptedException {
+        int tries = 0;
+        while (true) {
+            Envelope out = pull(priority);
+            if (out != null || !wait || shutdown) {
+                return out;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            if (tries < spinTries) {
+                tries++;
+                if ("yield".equals(waitStrategy)) {
+                    Thread.yield();
+                }
+                continue;
+            }
+
+            //Register before the final check so an enqueue that lands in between is guaranteed to see this thread
+            Thread current = Thread.currentThread();
+            Queue<Thread> idle = idleConsumers.get(priority.getNum());
+            idle.add(current);
+            out = pull(priority);
+            if (out != null) {
+                if (!idle.remove(current)) {
+                    //A producer already took this thread off the idle queue to wake it, pass that wakeup on
+                    wakeOne(priority.getNum());
+                }
+                return out;
+            }
+            LockSupport.park(this);
+            idle.remove(current);
+            tries = 0;
+        }
+    }
+
+    private Envelope pull(Priority priority) {
+        for (int i = 0; i <= priority.getNum(); i++) {
+            Envelope out = lanes[i].poll();
+            if (out != null) {
+                currentSize.decrement();
+                currentBytes.add(0 - out.getEstimatedSize());
+                return out;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void acknowledge(@NotNull Envelope envelope) {
+    }
+
+    @NotNull
+    @Override
+    public List<Envelope> recover() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public int getMaximumSize() {
+        return -1;
+    }
+
+    @Override
+    public long getMaximumBytes() {
+        return -1;
+    }
+
+    @Override
+    public int getCurrentSize() {
+        return currentSize.intValue();
+    }
+
+    @Override
+    public int getCurrentSize(Priority priority) {
+        long out = 0;
+        for (int i = 0; i <= priority.getNum(); i++) {
+            out += lanes[i].size();
+        }
+        return (int) out;
+    }
+
+    @Override
+    public int getCurrentMemorySize() {
+        return currentSize.intValue();
+    }
+
+    @Override
+    public long getCurrentBytes() {
+        return currentBytes.sum();
+    }
+
+    @Override
+    public void setAvailabilityListener(@NotNull Runnable listener) {
+        //Envelopes only ever arrive through enqueue
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        for (Queue<Thread> idle : idleConsumers) {
+            Thread consumer;
+            while ((consumer = idle.poll()) != null) {
+                LockSupport.unpark(consumer);
+            }
+        }
+    }
+
+    /**
+     * Bounded multi-producer/multi-consumer ring.  Each slot carries a sequence number that tells producers and
+     * consumers whose turn it is, so claiming a slot is a single compare-and-set on the tail or head.
+     */
+    private static class Lane {
+
+        private final int mask;
+        private final AtomicReferenceArray<Envelope> buffer;
+        private final AtomicLongArray sequences;
+        private final AtomicLong head = new AtomicLong(0);
+        private final AtomicLong tail = new AtomicLong(0);
+        private final Queue<Envelope> overflow = new ConcurrentLinkedQueue<>();
+        private final AtomicLong overflowSize = new AtomicLong(0);
+
+        private Lane(int capacity) {
+            mask = capacity - 1;
+            buffer = new AtomicReferenceArray<>(capacity);
+            sequences = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        private void offer(Envelope envelope) {
+            if (overflowSize.get() > 0) {
+                addOverflow(envelope);
+                return;
+            }
+            long position = tail.get();
+            while (true) {
+                int index = (int) (position & mask);
+                long difference = sequences.get(index) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        buffer.set(index, envelope);
+                        sequences.set(index, position + 1);
+                        return;
+                    }
+                    position = tail.get();
+                } else if (difference < 0) {
+                    addOverflow(envelope);
+                    return;
+                } else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        private void addOverflow(Envelope envelope) {
+            //Counted before it is added, so later envelopes cannot slip into the ring while this one is on its way
+            overflowSize.incrementAndGet();
+            overflow.add(envelope);
+        }
+
+        private long size() {
+            //Read without stopping producers or consumers, so this is only an estimate
+            return Math.max(0, tail.get() - head.get()) + overflowSize.get();
+        }
+
+        private Envelope poll() {
+            long position = head.get();
+            while (true) {
+                int index = (int) (position & mask);
+                long difference = sequences.get(index) - (position + 1);
+                if (difference == 0) {
+                    if (head.compareAndSet(position, position + 1)) {
+                        Envelope out = buffer.get(index);
+                        buffer.set(index, null);
+                        sequences.set(index, position + mask + 1);
+                        return out;
+                    }
+                    position = head.get();
+                } else if (difference < 0) {
+                    Envelope out = overflow.poll();
+                    if (out != null) {
+                        overflowSize.decrementAndGet();
+                    }
+                    return out;
+                } else {
+                    position = head.get();
+                }
+            }
+        }
+    }
+}
@@ -28,6 +28,9 @@
 package org.emaginniss.agni.messages;
 
 import org.emaginniss.agni.Criteria;
+import org.emaginniss.agni.Priority;
+import org.emaginniss.agni.util.LatencyHistogram;
+import org.emaginniss.agni.util.RateMeter;
 
 import java.util.*;
 
@@ -39,10 +42,15 @@ public class StatsResponse {
     private int messageBoxMaximumSize;
     private int messageBoxCurrentSize;
     private int messageBoxCurrentMemorySize;
+    private long messageBoxMaximumBytes;
+    private long messageBoxCurrentBytes;
     private DestinationInfo[] destinationInfos = new DestinationInfo[0];
     private Map<String, String> connections = new HashMap<>();
     private String[][] knownPaths = new String[0][];
     private ProcessorThreadInfo[] processorThreadInfos = new ProcessorThreadInfo[0];
+    private double currentEPS;
+    private Map<String, RateInfo> typeRates = new TreeMap<>();
+    private Map<String, CacheInfo> caches = new TreeMap<>();
 
     public StatsResponse() {
     }
@@ -104,6 +112,22 @@ public class StatsResponse {
         this.messageBoxCurrentMemorySize = messageBoxCurrentMemorySize;
     }
 
+    public long getMessageBoxMaximumBytes() {
+        return messageBoxMaximumBytes;
+    }
+
+    public void setMessageBoxMaximumBytes(long messageBoxMaximumBytes) {
+        this.messageBoxMaximumBytes = messageBoxMaximumBytes;
+    }
+
+    public long getMessageBoxCurrentBytes() {
+        return messageBoxCurrentBytes;
+    }
+
+    public void setMessageBoxCurrentBytes(long messageBoxCurrentBytes) {
+        this.messageBoxCurrentBytes = messageBoxCurrentBytes;
+    }
+
     public DestinationInfo[] getDestinationInfos() {
         return destinationInfos;
     }
@@ -128,6 +152,42 @@ public class StatsResponse {
         this.knownPaths = knownPaths;
     }
 
+    /**
+     * Return the number of envelopes per second reaching this node's handlers, averaged over the last second
+     * @return Envelopes per second
+     */
+    public double getCurrentEPS() {
+        return currentEPS;
+    }
+
+    public void setCurrentEPS(double currentEPS) {
+        this.currentEPS = currentEPS;
+    }
+
+    /**
+     * Return the rate at which this node handles each message type, summed over its local destinations
+     * @return Rates keyed by message type
+     */
+    public Map<String, RateInfo> getTypeRates() {
+        return typeRates;
+    }
+
+    public void setTypeRates(Map<String, RateInfo> typeRates) {
+        this.typeRates = typeRates;
+    }
+
+    /**
+     * Return the state of this node's near cache for each request type it has cached
+     * @return Cache statistics keyed by message type
+     */
+    public Map<String, CacheInfo> getCaches() {
+        return caches;
+    }
+
+    public void setCaches(Map<String, CacheInfo> caches) {
+        this.caches = caches;
+    }
+
     public ProcessorThreadInfo[] getProcessorThreadInfos() {
         return processorThreadInfos;
     }
@@ -147,6 +207,9 @@ public class StatsResponse {
         private long timesFailed;
         private long totalTimeSpent;
         private long current;
+        private LatencyInfo serviceTime;
+        private LatencyInfo queueDelay;
+        private RateInfo rate;
 
         public DestinationInfo() {
         }
@@ -207,6 +270,134 @@ public class StatsResponse {
         public long getCurrent() {
             return current;
         }
+
+        /**
+         * Return how long the handler took per invocation
+         * @return Latencies in nanoseconds, null for remote destinations
+         */
+        public LatencyInfo getServiceTime() {
+            return serviceTime;
+        }
+
+        public void setServiceTime(LatencyInfo serviceTime) {
+            this.serviceTime = serviceTime;
+        }
+
+        /**
+         * Return how long envelopes waited between reaching this node's inbox and reaching the handler
+         * @return Latencies in nanoseconds, null for remote destinations
+         */
+        public LatencyInfo getQueueDelay() {
+            return queueDelay;
+        }
+
+        public void setQueueDelay(LatencyInfo queueDelay) {
+            this.queueDelay = queueDelay;
+        }
+
+        public RateInfo getRate() {
+            return rate;
+        }
+
+        public void setRate(RateInfo rate) {
+            this.rate = rate;
+        }
+    }
+
+    public static class RateInfo {
+        private long count;
+        private double oneSecondRate;
+        private double oneMinuteRate;
+        private double fiveMinuteRate;
+
+        public RateInfo() {
+        }
+
+        public RateInfo(long count, double oneSecondRate, double oneMinuteRate, double fiveMinuteRate) {
+            this.count = count;
+            this.oneSecondRate = oneSecondRate;
+            this.oneMinuteRate = oneMinuteRate;
+            this.fiveMinuteRate = fiveMinuteRate;
+        }
+
+        public RateInfo(RateMeter meter) {
+            this(meter.getCount(), meter.getOneSecondRate(), meter.getOneMinuteRate(), meter.getFiveMinuteRate());
+        }
+
+        /**
+         * Return the combined rate of this and another meter
+         * @return A new RateInfo
+         */
+        public RateInfo plus(RateInfo other) {
+            return new RateInfo(count + other.count, oneSecondRate + other.oneSecondRate, oneMinuteRate + other.oneMinuteRate, fiveMinuteRate + other.fiveMinuteRate);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getOneSecondRate() {
+            return oneSecondRate;
+        }
+
+        public double getOneMinuteRate() {
+            return oneMinuteRate;
+        }
+
+        public double getFiveMinuteRate() {
+            return fiveMinuteRate;
+        }
+    }
+
+    public static class LatencyInfo {
+        private long count;
+        private double mean;
+        private long p50;
+        private long p90;
+        private long p99;
+        private long p999;
+        private long max;
+
+        public LatencyInfo() {
+        }
+
+        public LatencyInfo(LatencyHistogram histogram) {
+            this.count = histogram.getCount();
+            this.mean = histogram.getMean();
+            this.p50 = histogram.getValueAtPercentile(50);
+            this.p90 = histogram.getValueAtPercentile(90);
+            this.p99 = histogram.getValueAtPercentile(99);
+            this.p999 = histogram.getValueAtPercentile(99.9);
+            this.max = histogram.getMax();
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
     }
 
     public static class ProcessorThreadInfo {
@@ -214,6 +405,10 @@ public class StatsResponse {
         private boolean waiting;
         private String envelopeType;
         private StackTraceElement[] stackTrace = new StackTraceElement[0];
+        private Priority priority;
+        private int poolSize;
+        private int poolMinimum;
+        private int poolMaximum;
 
         public ProcessorThreadInfo() {
         }
@@ -254,7 +449,92 @@ public class StatsResponse {
         public void setStackTrace(StackTraceElement[] stackTrace) {
             this.stackTrace = stackTrace;
         }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public void setPriority(Priority priority) {
+            this.priority = priority;
+        }
+
+        /**
+         * Return the number of threads currently serving this thread's priority, 0 for dispatcher threads
+         * @return The pool size
+         */
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public void setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+        }
+
+        public int getPoolMinimum() {
+            return poolMinimum;
+        }
+
+        public void setPoolMinimum(int poolMinimum) {
+            this.poolMinimum = poolMinimum;
+        }
+
+        public int getPoolMaximum() {
+            return poolMaximum;
+        }
+
+        public void setPoolMaximum(int poolMaximum) {
+            this.poolMaximum = poolMaximum;
+        }
     }
 
 
+
+    public static class CacheInfo {
+        private int size;
+        private int maxEntries;
+        private long hits;
+        private long misses;
+        private long evictions;
+        private long invalidations;
+
+        public CacheInfo() {
+        }
+
+        public CacheInfo(int size, int maxEntries, long hits, long misses, long evictions, long invalidations) {
+            this.size = size;
+            this.maxEntries = maxEntries;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.invalidations = invalidations;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getMaxEntries() {
+            return maxEntries;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * Return the number of entries dropped because they expired or the cache was full
+         * @return The eviction count
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getInvalidations() {
+            return invalidations;
+        }
+    }
 }
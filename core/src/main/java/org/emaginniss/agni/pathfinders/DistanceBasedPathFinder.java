@@ -36,6 +36,7 @@ import org.emaginniss.agni.messages.StopRouting;
 import org.emaginniss.agni.messages.SubscriptionInfo;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -48,6 +49,7 @@ public class DistanceBasedPathFinder implements PathFinder {
     private Lock readLock = lock.readLock();
     private Lock writeLock = lock.writeLock();
     private Map<String, Integer> cache = new HashMap<>();
+    private AtomicLong generation = new AtomicLong(0);
 
     @Override
     public Set<Destination> sortByShortestPath(Set<Destination> in) {
@@ -59,10 +61,7 @@ public class DistanceBasedPathFinder implements PathFinder {
 
             Map<Integer, Set<Destination>> ranking = new TreeMap<>();
             for (Destination destination : in) {
-                Integer length = destination instanceof LocalDestination ? 0 : cache.get(destination.getNodeUuid());
-                if (length == null) {
-                    length = Integer.MAX_VALUE;
-                }
+                int length = getDistanceInternal(destination);
                 if (!ranking.containsKey(length)) {
                     ranking.put(length, new HashSet<Destination>());
                 }
@@ -79,6 +78,21 @@ public class DistanceBasedPathFinder implements PathFinder {
         }
     }
 
+    @Override
+    public int getDistance(Destination destination) {
+        try {
+            readLock.lock();
+            return getDistanceInternal(destination);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private int getDistanceInternal(Destination destination) {
+        Integer length = destination instanceof LocalDestination ? 0 : cache.get(destination.getNodeUuid());
+        return length == null ? Integer.MAX_VALUE : length;
+    }
+
     @Override
     public String findNextNode(Envelope envelope) {
         try {
@@ -152,6 +166,12 @@ public class DistanceBasedPathFinder implements PathFinder {
                 cache.put(targetNodeUuid, paths.iterator().next().length);
             }
         }
+        generation.incrementAndGet();
+    }
+
+    @Override
+    public long getGeneration() {
+        return generation.get();
     }
 
     private static class LengthBasedComparator implements Comparator<String[]> {
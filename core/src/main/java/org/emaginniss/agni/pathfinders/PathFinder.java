@@ -42,6 +42,11 @@ public interface PathFinder {
 
     Set<Destination> sortByShortestPath(Set<Destination> in);
 
+    /**
+     * Return the number of hops to a destination, 0 for local destinations and Integer.MAX_VALUE when no path is known
+     */
+    int getDistance(Destination destination);
+
     String findNextNode(Envelope envelope);
 
     void addNodePath(String []path);
@@ -55,4 +60,11 @@ public interface PathFinder {
     void handle(RemoveLink removeLink);
 
     Set<String> handle(StopRouting msg);
+
+    /**
+     * Return a counter that changes every time the known paths change, so callers can tell when a sorted destination
+     * list is stale
+     * @return The current generation
+     */
+    long getGeneration();
 }
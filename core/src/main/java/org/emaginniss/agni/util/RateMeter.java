@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2015, Eric A Maginniss
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL ERIC A MAGINNISS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.emaginniss.agni.util;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counts events on a striped counter and keeps exponentially weighted moving averages of their rate over 1 second,
+ * 1 minute and 5 minutes.  Marking only touches the counter; the owner calls tick() periodically, usually once a
+ * second, to fold the latest count into the averages.
+ */
+public class RateMeter {
+
+    private final LongAdder count = new LongAdder();
+    private final LongSupplier clock;
+    private long lastCount = 0;
+    private long lastTick;
+    private boolean initialized = false;
+    private volatile double oneSecondRate = 0;
+    private volatile double oneMinuteRate = 0;
+    private volatile double fiveMinuteRate = 0;
+
+    public RateMeter() {
+        this(System::nanoTime);
+    }
+
+    /**
+     * @param clock Source of nanosecond timestamps
+     */
+    public RateMeter(LongSupplier clock) {
+        this.clock = clock;
+        lastTick = clock.getAsLong();
+    }
+
+    public void mark() {
+        count.increment();
+    }
+
+    public void mark(long events) {
+        count.add(events);
+    }
+
+    /**
+     * Fold the events since the last tick into the averages.  Both the instant rate and how far each average decays
+     * follow the actual elapsed time, so the averages keep their windows whatever the tick interval.
+     */
+    public synchronized void tick() {
+        long now = clock.getAsLong();
+        long current = count.sum();
+        double seconds = Math.max(1e-3, (now - lastTick) / 1e9);
+        double instant = (current - lastCount) / seconds;
+        lastCount = current;
+        lastTick = now;
+        if (initialized) {
+            oneSecondRate += alpha(seconds, 1) * (instant - oneSecondRate);
+            oneMinuteRate += alpha(seconds, 60) * (instant - oneMinuteRate);
+            fiveMinuteRate += alpha(seconds, 300) * (instant - fiveMinuteRate);
+        } else {
+            oneSecondRate = instant;
+            oneMinuteRate = instant;
+            fiveMinuteRate = instant;
+            initialized = true;
+        }
+    }
+
+    private static double alpha(double seconds, double window) {
+        return 1 - Math.exp(-seconds / window);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getOneSecondRate() {
+        return oneSecondRate;
+    }
+
+    public double getOneMinuteRate() {
+        return oneMinuteRate;
+    }
+
+    public double getFiveMinuteRate() {
+        return fiveMinuteRate;
+    }
+}
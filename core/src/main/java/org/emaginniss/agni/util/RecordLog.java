@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2015, Eric A Maginniss
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL ERIC A MAGINNISS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.emaginniss.agni.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.emaginniss.agni.Configuration;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of keyed records, used as a write-ahead log.  Each record is [byte kind][int length][int crc32][body]
+ * where a put body is [short key length][key][value] and a remove body is the key.  A single writer thread drains
+ * whatever callers have queued, writes it in one go and syncs according to syncMode:
+ * <ul>
+ *     <li>batch - fsync each written batch and hold {@link #put(String, byte[])} until its record is on disk</li>
+ *     <li>interval - fsync at most every syncInterval milliseconds without holding callers</li>
+ *     <li>none - leave flushing to the operating system</li>
+ * </ul>
+ * Opening the log replays it up to the first torn or corrupt record and rewrites it with only the live records.  The
+ * log is rewritten again whenever it grows past compactThreshold bytes and is more than half dead records.
+ */
+@Slf4j
+public class RecordLog implements Closeable {
+
+    private static final byte PUT_RECORD = 1;
+    private static final byte REMOVE_RECORD = 2;
+
+    private final Path logPath;
+    private final String syncMode;
+    private final long syncInterval;
+    private final long compactThreshold;
+    private final Map<String, byte[]> live = new LinkedHashMap<>();
+    private final Map<String, byte[]> recovered;
+    private final ReentrantLock batchLock = new ReentrantLock();
+    private final Condition batchReady = batchLock.newCondition();
+    private final Condition batchDurable = batchLock.newCondition();
+    private List<Record> pendingRecords = new ArrayList<>();
+    private long queuedSequence = 0;
+    private long durableSequence = 0;
+    private long liveBytes = 0;
+    private FileChannel channel;
+    private volatile boolean shutdown = false;
+    private volatile Throwable failure;
+    private Thread writer;
+
+    public RecordLog(Path logPath, Configuration configuration) throws IOException {
+        this.logPath = logPath;
+        syncMode = configuration.getString("syncMode", "batch");
+        if (!"batch".equals(syncMode) && !"interval".equals(syncMode) && !"none".equals(syncMode)) {
+            throw new RuntimeException("Unknown sync mode " + syncMode);
+        }
+        syncInterval = configuration.getLong("syncInterval", 10);
+        compactThreshold = configuration.getLong("compactThreshold", 64L * 1024 * 1024);
+
+        Files.createDirectories(logPath.toAbsolutePath().getParent());
+        replay();
+        recovered = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : live.entrySet()) {
+            byte[] body = entry.getValue();
+            recovered.put(entry.getKey(), Arrays.copyOfRange(body, 2 + ByteBuffer.wrap(body).getShort(), body.length));
+        }
+        compact();
+
+        writer = new Thread(this::write, "RecordLog[" + logPath + "] - Writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Return the records that were live when the log was opened
+     * @return The values by key, in the order they were first written
+     */
+    public Map<String, byte[]> getRecovered() {
+        return Collections.unmodifiableMap(recovered);
+    }
+
+    public void put(String key, byte[] value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(2 + keyBytes.length + value.length);
+        body.putShort((short) keyBytes.length);
+        body.put(keyBytes);
+        body.put(value);
+
+        long sequence = append(new Record(PUT_RECORD, key, body.array()));
+        if ("batch".equals(syncMode)) {
+            batchLock.lock();
+            try {
+                while (durableSequence < sequence && !shutdown && failure == null) {
+                    batchDurable.awaitUninterruptibly();
+                }
+            } finally {
+                batchLock.unlock();
+            }
+        }
+        if (failure != null) {
+            throw new RuntimeException("Unable to write to " + logPath, failure);
+        }
+    }
+
+    public void remove(String key) {
+        append(new Record(REMOVE_RECORD, key, key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private long append(Record record) {
+        batchLock.lock();
+        try {
+            pendingRecords.add(record);
+            batchReady.signal();
+            return ++queuedSequence;
+        } finally {
+            batchLock.unlock();
+        }
+    }
+
+    private void write() {
+        long syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncInterval);
+        long lastSync = System.nanoTime();
+        boolean dirty = false;
+        try {
+            while (true) {
+                List<Record> batch;
+                long sequence;
+                batchLock.lock();
+                try {
+                    if (pendingRecords.isEmpty()) {
+                        if (shutdown) {
+                            break;
+                        }
+                        batchReady.await(syncInterval, TimeUnit.MILLISECONDS);
+                    }
+                    batch = pendingRecords;
+                    pendingRecords = new ArrayList<>();
+                    sequence = queuedSequence;
+                } finally {
+                    batchLock.unlock();
+                }
+
+                if (!batch.isEmpty()) {
+                    writeRecords(channel, batch);
+                    dirty = true;
+                }
+                if (dirty && ("batch".equals(syncMode) || ("interval".equals(syncMode) && System.nanoTime() - lastSync >= syncIntervalNanos))) {
+                    channel.force(false);
+                    lastSync = System.nanoTime();
+                    dirty = false;
+                }
+                if (!batch.isEmpty()) {
+                    batchLock.lock();
+                    try {
+                        durableSequence = sequence;
+                        batchDurable.signalAll();
+                    } finally {
+                        batchLock.unlock();
+                    }
+                }
+
+                if (channel.size() > compactThreshold && channel.size() > 2 * liveBytes) {
+                    compact();
+                    dirty = false;
+                }
+            }
+            if (dirty && !"none".equals(syncMode)) {
+                channel.force(false);
+            }
+            channel.close();
+        } catch (Throwable t) {
+            log.error("Record log writer failed", t);
+            failure = t;
+            batchLock.lock();
+            try {
+                batchDurable.signalAll();
+            } finally {
+                batchLock.unlock();
+            }
+        }
+    }
+
+    private void writeRecords(FileChannel out, Collection<Record> records) throws IOException {
+        int size = 0;
+        for (Record record : records) {
+            size += 9 + record.body.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        CRC32 crc = new CRC32();
+        for (Record record : records) {
+            crc.reset();
+            crc.update(record.body);
+            buffer.put(record.kind);
+            buffer.putInt(record.body.length);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(record.body);
+            apply(record);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private void apply(Record record) {
+        if (record.kind == PUT_RECORD) {
+            byte[] previous = live.put(record.key, record.body);
+            liveBytes += record.body.length - (previous == null ? 0 : previous.length);
+        } else {
+            byte[] previous = live.remove(record.key);
+            liveBytes -= previous == null ? 0 : previous.length;
+        }
+    }
+
+    private void replay() throws IOException {
+        if (!Files.exists(logPath)) {
+            return;
+        }
+
+        long remaining = Files.size(logPath);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath)))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int kind = in.read();
+                if (kind == -1) {
+                    break;
+                }
+                byte[] body;
+                int checksum;
+                try {
+                    int length = in.readInt();
+                    checksum = in.readInt();
+                    remaining -= 9;
+                    //A torn tail can hold any length, so never trust one the rest of the file cannot satisfy
+                    if ((kind != PUT_RECORD && kind != REMOVE_RECORD) || length < 0 || length > remaining) {
+                        log.warn("Ignoring corrupt records at the end of " + logPath);
+                        break;
+                    }
+                    body = new byte[length];
+                    in.readFully(body);
+                    remaining -= length;
+                } catch (EOFException e) {
+                    log.warn("Ignoring torn record at the end of " + logPath);
+                    break;
+                }
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("Ignoring corrupt records at the end of " + logPath);
+                    break;
+                }
+                if (kind == PUT_RECORD) {
+                    ByteBuffer buffer = ByteBuffer.wrap(body);
+                    byte[] keyBytes = new byte[buffer.getShort()];
+                    buffer.get(keyBytes);
+                    apply(new Record(PUT_RECORD, new String(keyBytes, StandardCharsets.UTF_8), body));
+                } else {
+                    apply(new Record(REMOVE_RECORD, new String(body, StandardCharsets.UTF_8), body));
+                }
+            }
+        }
+        log.info("Recovered " + live.size() + " live records from " + logPath);
+    }
+
+    /**
+     * Rewrite the log with only the live records and switch appends over to it
+     */
+    private void compact() throws IOException {
+        Path compactPath = logPath.resolveSibling(logPath.getFileName() + ".compact");
+        List<Record> records = new ArrayList<>();
+        for (Map.Entry<String, byte[]> entry : live.entrySet()) {
+            records.add(new Record(PUT_RECORD, entry.getKey(), entry.getValue()));
+        }
+        try (FileChannel out = FileChannel.open(compactPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeRecords(out, records);
+            out.force(true);
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        Files.move(compactPath, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(logPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public void close() {
+        batchLock.lock();
+        try {
+            shutdown = true;
+            batchReady.signal();
+            batchDurable.signalAll();
+        } finally {
+            batchLock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Record {
+
+        private final byte kind;
+        private final String key;
+        private final byte[] body;
+
+        private Record(byte kind, String key, byte[] body) {
+            this.kind = kind;
+            this.key = key;
+            this.body = body;
+        }
+    }
+}
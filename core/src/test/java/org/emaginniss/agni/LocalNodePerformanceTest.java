@@ -27,12 +27,31 @@
 
 package org.emaginniss.agni;
 
+import com.google.gson.JsonParser;
+import com.sun.management.ThreadMXBean;
 import org.emaginniss.agni.annotations.Subscribe;
+import org.emaginniss.agni.attachments.Attachments;
+import org.emaginniss.agni.impl.DestinationRegistration;
+import org.emaginniss.agni.impl.HandlerInvoker;
+import org.emaginniss.agni.impl.HandlerInvokers;
+import org.emaginniss.agni.impl.LocalDestination;
 import org.emaginniss.agni.impl.NodeImpl;
+import org.emaginniss.agni.impl.TimingWheel;
+import org.emaginniss.agni.messageboxes.MessageBox;
+import org.emaginniss.agni.messages.AddDestination;
+import org.emaginniss.agni.messages.SubscriptionInfo;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class LocalNodePerformanceTest {
@@ -164,4 +183,393 @@ public class LocalNodePerformanceTest {
             System.out.println("multiThreadRequestTest MPS = " + ((double)messageTotal / (end - start)) * 1000.0);
         }
     }
+
+    @Test
+    public void broadcastFanOutTest() throws Exception {
+        final int envelopeTotal = 20000;
+        List<String> payload = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            payload.add("Broadcast payload entry " + i);
+        }
+        ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        for (int fanOut : new int[]{1, 10, 100, 500}) {
+            try (Node node = new NodeImpl()) {
+                final AtomicLong counter = new AtomicLong(0);
+                for (int i = 0; i < fanOut; i++) {
+                    node.register(new Object() {
+                        @Subscribe(typeName = "Message1")
+                        public void handle() {
+                            counter.incrementAndGet();
+                        }
+                    });
+                }
+                int broadcastTotal = envelopeTotal / fanOut;
+                long startCpu = threadMXBean.getCurrentThreadCpuTime();
+                long startAllocated = threadMXBean.getThreadAllocatedBytes(threadId);
+                for (int i = 0; i < broadcastTotal; i++) {
+                    new AgniBuilder(payload).type("Message1").broadcast(node);
+                }
+                long cpu = threadMXBean.getCurrentThreadCpuTime() - startCpu;
+                long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - startAllocated;
+                while (counter.get() < broadcastTotal * fanOut) {
+                    Thread.sleep(10);
+                }
+                System.out.println("broadcastFanOutTest fanOut = " + fanOut + " CPU ns/envelope = " + (cpu / (broadcastTotal * fanOut)) + " bytes/envelope = " + (allocated / (broadcastTotal * fanOut)));
+            }
+        }
+    }
+
+    @Test
+    public void remoteDestinationFlapTest() throws Exception {
+        final int destinationTotal = 20000;
+        try (NodeImpl node = new NodeImpl()) {
+            final AtomicLong counter = new AtomicLong(0);
+            node.register(new Object() {
+                @Subscribe(typeName = "Message1")
+                public void handle() {
+                    counter.incrementAndGet();
+                }
+            });
+            DestinationRegistration destinationRegistration = node.getDestinationRegistration();
+            int localTotal = destinationRegistration.getAll().size();
+            final AtomicBoolean running = new AtomicBoolean(true);
+            final AtomicLong slowestLookup = new AtomicLong(0);
+            Thread sender = new Thread() {
+                @Override
+                public void run() {
+                    while (running.get()) {
+                        long start = System.nanoTime();
+                        node.getDestinations(new String[]{"Message1"}, new Criteria(), false);
+                        long elapsed = System.nanoTime() - start;
+                        if (elapsed > slowestLookup.get()) {
+                            slowestLookup.set(elapsed);
+                        }
+                    }
+                }
+            };
+            sender.start();
+
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < destinationTotal; i++) {
+                destinationRegistration.handle(new AddDestination(new Destination("remote" + i, "remoteNode" + (i % 10), "remote" + i, "Remote" + (i % 100), new Criteria())));
+            }
+            long added = System.currentTimeMillis();
+            destinationRegistration.handleLostNodes(Collections.singleton("remoteNode0"));
+            long lost = System.currentTimeMillis();
+
+            //One type with every destination in the same buckets, which must not cost more per add as it grows
+            for (int i = 0; i < destinationTotal; i++) {
+                destinationRegistration.handle(new AddDestination(new Destination("hot" + i, "remoteNode1", "hot" + i, "Hot", i % 2 == 0 ? new Criteria() : new Criteria().add("region", "east"))));
+            }
+            long hot = System.currentTimeMillis();
+
+            running.set(false);
+            sender.join();
+            Assert.assertEquals(2 * destinationTotal - destinationTotal / 10, destinationRegistration.getAll().size() - localTotal);
+            Assert.assertEquals(destinationTotal, node.getDestinations(new String[]{"Hot"}, new Criteria().add("region", "east"), false).size());
+            System.out.println("remoteDestinationFlapTest add ms = " + (added - start) + " lost node ms = " + (lost - added) + " single type add ms = " + (hot - lost) + " slowest lookup us = " + slowestLookup.get() / 1000);
+        }
+    }
+
+    @Test
+    public void criteriaMatchTest() throws Exception {
+        final int lookupTotal = 10000;
+        for (int destinationTotal : new int[]{10, 1000, 100000}) {
+            try (NodeImpl node = new NodeImpl()) {
+                SubscriptionInfo subscriptionInfo = new SubscriptionInfo();
+                for (int i = 0; i < destinationTotal; i++) {
+                    subscriptionInfo.getDestinations().add(new Destination("remote" + i, "remoteNode", "remote" + i, "Message1", new Criteria().add("tenant", "tenant" + i)));
+                }
+                node.getDestinationRegistration().handle(subscriptionInfo);
+                Set<Destination> all = new HashSet<>(subscriptionInfo.getDestinations());
+
+                long start = System.nanoTime();
+                for (int i = 0; i < lookupTotal; i++) {
+                    Assert.assertEquals(1, node.getDestinations(new String[]{"Message1"}, new Criteria().add("tenant", "tenant" + (i % destinationTotal)), false).size());
+                }
+                long indexed = System.nanoTime() - start;
+
+                int scanTotal = Math.max(1, lookupTotal * 10 / destinationTotal);
+                start = System.nanoTime();
+                for (int i = 0; i < scanTotal; i++) {
+                    Criteria criteria = new Criteria().add("tenant", "tenant" + (i % destinationTotal));
+                    int found = 0;
+                    for (Destination destination : all) {
+                        if (destination.matches(criteria)) {
+                            found++;
+                        }
+                    }
+                    Assert.assertEquals(1, found);
+                }
+                long scanned = System.nanoTime() - start;
+                System.out.println("criteriaMatchTest destinations = " + destinationTotal + " indexed ns/lookup = " + (indexed / lookupTotal) + " scan ns/lookup = " + (scanned / scanTotal));
+            }
+        }
+    }
+
+    @Test
+    public void messageBoxProducerTest() throws Exception {
+        final int envelopeTotal = 320000;
+        final int consumerTotal = 8;
+        final Envelope[] envelopes = new Envelope[envelopeTotal];
+        for (int i = 0; i < envelopes.length; i++) {
+            envelopes[i] = new Envelope("Message1", "java.lang.String", "", Priority.values()[i % Priority.values().length], new Attachments(), new Criteria(), false);
+        }
+        try (Node node = new NodeImpl()) {
+            for (String type : new String[]{"memory", "priority", "ringBuffer"}) {
+                for (final int producerTotal : new int[]{1, 8, 64}) {
+                    final MessageBox messageBox = Factory.instantiate(MessageBox.class, new Configuration(new JsonParser().parse("{ 'type': '" + type + "' }").getAsJsonObject()), node);
+                    final AtomicLong counter = new AtomicLong(0);
+                    Thread[] consumers = new Thread[consumerTotal];
+                    for (int i = 0; i < consumers.length; i++) {
+                        final Priority priority = Priority.values()[i % Priority.values().length];
+                        consumers[i] = new Thread() {
+                            @Override
+                            public void run() {
+                                try {
+                                    while (counter.get() < envelopeTotal) {
+                                        if (messageBox.dequeue(false, Priority.LOWEST) != null) {
+                                            counter.incrementAndGet();
+                                        } else if (messageBox.dequeue(true, priority) != null) {
+                                            counter.incrementAndGet();
+                                        }
+                                    }
+                                } catch (InterruptedException e) {
+                                    //Done
+                                }
+                            }
+                        };
+                    }
+                    Thread[] producers = new Thread[producerTotal];
+                    for (int i = 0; i < producers.length; i++) {
+                        final int offset = i * (envelopeTotal / producerTotal);
+                        producers[i] = new Thread() {
+                            @Override
+                            public void run() {
+                                for (int i = 0; i < envelopeTotal / producerTotal; i++) {
+                                    messageBox.enqueue(envelopes[offset + i]);
+                                }
+                            }
+                        };
+                    }
+                    long start = System.currentTimeMillis();
+                    for (Thread consumer : consumers) {
+                        consumer.start();
+                    }
+                    for (Thread producer : producers) {
+                        producer.start();
+                    }
+                    for (Thread producer : producers) {
+                        producer.join();
+                    }
+                    while (counter.get() < envelopeTotal) {
+                        Thread.sleep(1);
+                    }
+                    long end = System.currentTimeMillis();
+                    for (Thread consumer : consumers) {
+                        consumer.interrupt();
+                    }
+                    messageBox.shutdown();
+                    System.out.println("messageBoxProducerTest " + type + " producers = " + producerTotal + " MPS = " + ((double) envelopeTotal / (end - start)) * 1000.0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void mappedLogBacklogTest() throws Exception {
+        final int envelopeTotal = 1000000;
+        final int reportEvery = envelopeTotal / 5;
+        try (Node node = new NodeImpl()) {
+            MessageBox messageBox = Factory.instantiate(MessageBox.class, new Configuration(new JsonParser().parse("{ 'type': 'mappedLog' }").getAsJsonObject()), node);
+            Envelope envelope = new Envelope("Message1", "java.lang.String", "\"Backlog payload\"", Priority.MEDIUM, new Attachments(), new Criteria(), false);
+            long start = System.nanoTime();
+            for (int i = 1; i <= envelopeTotal; i++) {
+                messageBox.enqueue(envelope);
+                if (i % reportEvery == 0) {
+                    System.out.println("mappedLogBacklogTest backlog = " + i + " enqueue ns/envelope = " + (System.nanoTime() - start) / reportEvery);
+                    start = System.nanoTime();
+                }
+            }
+            Assert.assertEquals(envelopeTotal, messageBox.getCurrentSize());
+            for (int i = 1; i <= envelopeTotal; i++) {
+                Assert.assertNotNull(messageBox.dequeue(false, Priority.LOWEST));
+                if (i % reportEvery == 0) {
+                    System.out.println("mappedLogBacklogTest remaining = " + (envelopeTotal - i) + " dequeue ns/envelope = " + (System.nanoTime() - start) / reportEvery);
+                    start = System.nanoTime();
+                }
+            }
+            Assert.assertNull(messageBox.dequeue(false, Priority.LOWEST));
+            messageBox.shutdown();
+        }
+    }
+
+    @Test
+    public void fileBackedSpillTest() throws Exception {
+        final int envelopeTotal = 500000;
+        try (Node node = new NodeImpl()) {
+            for (String codec : new String[]{"none", "gzip", "deflate", "lz"}) {
+                MessageBox messageBox = Factory.instantiate(MessageBox.class, new Configuration(new JsonParser().parse("{ 'type': 'fileBacked', 'maximumSize': 20000, 'codec': { 'type': '" + codec + "' } }").getAsJsonObject()), node);
+                Envelope envelope = new Envelope("Message1", "java.lang.String", "\"Spilled payload that repeats itself, repeats itself, repeats itself\"", Priority.MEDIUM, new Attachments(), new Criteria(), false);
+                long worst = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < envelopeTotal; i++) {
+                    long before = System.nanoTime();
+                    messageBox.enqueue(envelope);
+                    worst = Math.max(worst, System.nanoTime() - before);
+                }
+                long enqueueNanos = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < envelopeTotal; i++) {
+                    Assert.assertNotNull(messageBox.dequeue(true, Priority.LOWEST));
+                }
+                long dequeueNanos = System.nanoTime() - start;
+                messageBox.shutdown();
+                System.out.println("fileBackedSpillTest codec = " + codec + " enqueue ns/envelope = " + enqueueNanos / envelopeTotal + " worst enqueue us = " + worst / 1000 + " dequeue ns/envelope = " + dequeueNanos / envelopeTotal);
+            }
+        }
+    }
+
+    @Test
+    public void timingWheelTest() throws Exception {
+        final int timerTotal = 1000000;
+        final AtomicLong fired = new AtomicLong(0);
+        TimingWheel wheel = new TimingWheel(null, "TimingWheelTest", 10, 512, 4, Runnable::run);
+        Runnable task = fired::incrementAndGet;
+        Random random = new Random(1);
+        long now = System.currentTimeMillis();
+        long[] deadlines = new long[timerTotal];
+        for (int i = 0; i < timerTotal; i++) {
+            deadlines[i] = now + 3000 + random.nextInt(1000);
+        }
+        TimingWheel.Timer[] timers = new TimingWheel.Timer[timerTotal];
+        long start = System.nanoTime();
+        for (int i = 0; i < timerTotal; i++) {
+            timers[i] = wheel.schedule(deadlines[i], task);
+        }
+        System.out.println("timingWheelTest schedule ns/timer = " + (System.nanoTime() - start) / timerTotal);
+        start = System.nanoTime();
+        for (int i = 0; i < timerTotal; i += 2) {
+            timers[i].cancel();
+        }
+        System.out.println("timingWheelTest cancel ns/timer = " + (System.nanoTime() - start) / (timerTotal / 2));
+        for (int i = 0; i < 1000 && fired.get() < timerTotal / 2; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(timerTotal / 2, fired.get());
+        Assert.assertEquals(0, wheel.getPendingCount());
+        wheel.shutdown();
+    }
+
+    @Test
+    public void executionModeTest() throws Exception {
+        final int messageTotal = 5000;
+        final int threadTotal = 500;
+        for (String mode : new String[]{"threads", "virtual"}) {
+            Configuration conf = new Configuration(new JsonParser().parse("{ 'executionMode': '" + mode + "' }").getAsJsonObject());
+            try (Node node = new NodeImpl(conf)) {
+                final AtomicLong counter = new AtomicLong(0);
+                node.register(new Object() {
+                    @Subscribe(typeName = "Blocking")
+                    public String handle() throws InterruptedException {
+                        //Stands in for a JDBC call or a nested request
+                        Thread.sleep(5);
+                        counter.incrementAndGet();
+                        return "";
+                    }
+                });
+                final Thread[] threads = new Thread[threadTotal];
+                for (int i = 0; i < threads.length; i++) {
+                    threads[i] = new Thread() {
+                        @Override
+                        public void run() {
+                            for (int i = 0; i < (messageTotal / threads.length); i++) {
+                                new AgniBuilder("").type("Blocking").request(node);
+                            }
+                        }
+                    };
+                }
+                long start = System.currentTimeMillis();
+                for (Thread thread : threads) {
+                    thread.start();
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                long end = System.currentTimeMillis();
+                Assert.assertEquals(messageTotal, counter.get());
+                System.out.println("executionModeTest " + mode + " MPS = " + ((double) messageTotal / (end - start)) * 1000.0);
+            }
+        }
+    }
+
+    @Test
+    public void handlerInvokeTest() throws Throwable {
+        final int iterations = 5000000;
+        InvokeTargets target = new InvokeTargets();
+        Envelope envelope = new Envelope("Invoke", String.class.getName(), null, Priority.MEDIUM, new Attachments(), new Criteria(), false);
+        for (String name : new String[]{"zero", "one", "three"}) {
+            Method method = null;
+            for (Method candidate : InvokeTargets.class.getMethods()) {
+                if (candidate.getName().equals(name)) {
+                    method = candidate;
+                }
+            }
+            HandlerInvoker invoker = HandlerInvokers.create(target, method);
+            LocalDestination ld = new LocalDestination(null, "node", name, "Invoke", new Criteria(), target, method);
+            Object[] args = new Object[method.getParameterCount()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = i == 0 ? "payload" : i == 1 ? envelope.getAttachments() : envelope.getCriteria();
+            }
+
+            long reflective = 0;
+            long generated = 0;
+            long destination = 0;
+            //The first round only warms the paths up
+            for (int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    //What LocalDestination.invoke used to do for every envelope
+                    List<Object> params = new ArrayList<>();
+                    for (Class paramType : method.getParameterTypes()) {
+                        params.add(paramType == Attachments.class ? envelope.getAttachments() : paramType == Criteria.class ? envelope.getCriteria() : "payload");
+                    }
+                    method.invoke(target, params.toArray(new Object[params.size()]));
+                }
+                reflective = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    invoker.invoke(args);
+                }
+                generated = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    ld.invoke(envelope, "payload");
+                }
+                destination = System.nanoTime() - start;
+            }
+            System.out.println("handlerInvokeTest " + name + " ns/op: reflective = " + ((double) reflective / iterations) + ", invoker = " + ((double) generated / iterations) + ", LocalDestination.invoke = " + ((double) destination / iterations));
+        }
+        Assert.assertTrue(target.calls > 0);
+    }
+
+    public static class InvokeTargets {
+        private long calls = 0;
+
+        public void zero() {
+            calls++;
+        }
+
+        public Object one(String in) {
+            calls++;
+            return in;
+        }
+
+        public Object three(String in, Attachments attachments, Criteria criteria) {
+            calls++;
+            return in;
+        }
+    }
 }
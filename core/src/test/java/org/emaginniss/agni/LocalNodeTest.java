@@ -27,15 +27,47 @@
 
 package org.emaginniss.agni;
 
+import com.google.gson.JsonParser;
 import org.emaginniss.agni.annotations.Criterion;
 import org.emaginniss.agni.annotations.Subscribe;
+import org.emaginniss.agni.attachments.Attachments;
 import org.emaginniss.agni.impl.NodeImpl;
+import org.emaginniss.agni.impl.ProcessorPool;
+import org.emaginniss.agni.impl.Route;
+import org.emaginniss.agni.impl.RoutingCache;
+import org.emaginniss.agni.loadbalancers.RoundRobinLoadBalancer;
+import org.emaginniss.agni.messageboxes.BoundedMessageBox;
+import org.emaginniss.agni.messageboxes.FairMessageBox;
+import org.emaginniss.agni.messageboxes.MessageBox;
+import org.emaginniss.agni.messages.StatsResponse;
+import org.emaginniss.agni.util.LatencyHistogram;
+import org.emaginniss.agni.util.RateMeter;
+import org.emaginniss.agni.util.RecordLog;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.*;
 
@@ -123,6 +155,34 @@ public class LocalNodeTest {
         }
     }
 
+    @Test
+    public void testCriteriaRegister3() throws Exception {
+        try (Node node = new NodeImpl()) {
+            node.register(new Object() {
+                @Subscribe(typeClass = String.class, criteria = { @Criterion(key = "x", value = "y"), @Criterion(key = "w", value = "v")})
+                public void handleString1() {
+                    //Do nothing
+                }
+
+                @Subscribe(typeClass = String.class, criteria = { @Criterion(key = "x", value = "z")})
+                public void handleString2() {
+                    //Do nothing
+                }
+
+                @Subscribe(typeClass = String.class)
+                public void handleString3() {
+                    //Do nothing
+                }
+            });
+            assertEquals(1, node.getDestinations(new String[]{String.class.getName()}, null, true).size());
+            assertEquals(1, node.getDestinations(new String[]{String.class.getName()}, new Criteria().add("x", "y"), true).size());
+            assertEquals(2, node.getDestinations(new String[]{String.class.getName()}, new Criteria().add("x", "y").add("w", "v"), true).size());
+            assertEquals(2, node.getDestinations(new String[]{String.class.getName()}, new Criteria().add("x", "*").add("w", "u"), true).size());
+            assertEquals(3, node.getDestinations(new String[]{String.class.getName()}, new Criteria().add("x", "*").add("w", "*"), true).size());
+            assertEquals(2, node.getDestinations(new String[]{String.class.getName()}, new Criteria().add("x", "z").add("q", "r"), true).size());
+        }
+    }
+
     @Test
     public void testUnregister() throws Exception {
         try (Node node = new NodeImpl()) {
@@ -257,4 +317,1509 @@ public class LocalNodeTest {
             }
         }
     }
+
+    @Test
+    public void testRequestAsync() throws Exception {
+        try (Node node = new NodeImpl()) {
+            Object obj = new Object() {
+                @Subscribe(typeClass = Integer.class)
+                public int handleInt(int in) {
+                    return in;
+                }
+            };
+            node.register(obj);
+            List<CompletableFuture<PayloadAndAttachments>> futures = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                futures.add(node.requestAsync(i, null, null, null, Priority.MEDIUM, 30000l));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals(i, futures.get(i).get().getPayload());
+            }
+        }
+    }
+
+    @Test
+    public void testRequestAllAsync() throws Exception {
+        try (Node node = new NodeImpl()) {
+            Object obj = new Object() {
+                @Subscribe(typeClass = Integer.class)
+                public int handleInt1(int in) {
+                    return in;
+                }
+
+                @Subscribe(typeClass = Integer.class)
+                public int handleInt2(int in) {
+                    return in;
+                }
+            };
+            node.register(obj);
+            List<CompletableFuture<Map<Destination, PayloadAndAttachments>>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(node.requestAllAsync(i, null, null, null, Priority.MEDIUM, 30000l));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Map<Destination, PayloadAndAttachments> out = futures.get(i).get();
+                assertEquals(2, out.size());
+                for (PayloadAndAttachments p : out.values()) {
+                    assertEquals(i, p.getPayload());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRequestAsyncTimeout() throws Exception {
+        try (Node node = new NodeImpl()) {
+            Object obj = new Object() {
+                @Subscribe(typeClass = Integer.class)
+                public int handleInt(int in) throws InterruptedException {
+                    Thread.sleep(1000);
+                    return in;
+                }
+            };
+            node.register(obj);
+            assertNull(node.requestAsync(1, null, null, null, Priority.MEDIUM, 100l).get());
+        }
+    }
+
+    @Test
+    public void testAsyncRequestFailuresAndCancellation() throws Exception {
+        try (NodeImpl node = new NodeImpl()) {
+            CompletableFuture<PayloadAndAttachments> none = node.requestAsync("x", "Nobody", null, null, null, null);
+            assertTrue(none.isCompletedExceptionally());
+            try {
+                none.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof NoRecipientException);
+            }
+
+            final CountDownLatch release = new CountDownLatch(1);
+            node.register(new Object() {
+                @Subscribe(typeName = "Stuck")
+                public String handle(String in) throws InterruptedException {
+                    release.await();
+                    return in;
+                }
+            });
+            CompletableFuture<PayloadAndAttachments> one = node.requestAsync("a", "Stuck", null, null, null, 30000L);
+            CompletableFuture<Map<Destination, PayloadAndAttachments>> all = node.requestAllAsync("b", "Stuck", null, null, null, 30000L);
+            assertEquals(2, node.getPendingRequestCount());
+            assertTrue(one.cancel(false));
+            assertTrue(all.cancel(false));
+            assertEquals(0, node.getPendingRequestCount());
+            release.countDown();
+        }
+
+        NodeImpl closed = new NodeImpl();
+        closed.close();
+        assertTrue(closed.requestAsync("x", "Nobody", null, null, null, null).isCompletedExceptionally());
+        assertTrue(closed.requestAllAsync("x", "Nobody", null, null, null, null).isCompletedExceptionally());
+    }
+
+    @Test
+    public void testAsyncRequestRejectedByInbox() throws Exception {
+        Configuration conf = new Configuration(new JsonParser().parse("{ 'threadCount': 1, 'inbox': { 'type': 'bounded', 'maximumSize': 1, 'overflowPolicy': 'reject' }}").getAsJsonObject());
+        try (NodeImpl node = new NodeImpl(conf)) {
+            final CountDownLatch blocked = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            node.register(new Object() {
+                @Subscribe(typeName = "Blocker")
+                public void block() throws InterruptedException {
+                    blocked.countDown();
+                    release.await();
+                }
+
+                @Subscribe(typeName = "Echo")
+                public String echo(String in) {
+                    return in;
+                }
+            });
+            Thread.sleep(200);
+            new AgniBuilder("").type("Blocker").priority(Priority.LOWEST).send(node);
+            assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+            CompletableFuture<PayloadAndAttachments> queued = new AgniBuilder("a").type("Echo").priority(Priority.LOWEST).requestAsync(node);
+            CompletableFuture<PayloadAndAttachments> rejected = new AgniBuilder("b").type("Echo").priority(Priority.LOWEST).requestAsync(node);
+            assertTrue(rejected.isCompletedExceptionally());
+            assertEquals(1, node.getPendingRequestCount());
+            release.countDown();
+            assertEquals("a", queued.get(10, TimeUnit.SECONDS).getPayload());
+        }
+    }
+
+    @Test
+    public void testLocalDelivery() throws Exception {
+        Configuration conf = new Configuration(new JsonParser().parse("{ 'localDelivery': { 'type': 'reference' }}").getAsJsonObject());
+        try (Node node = new NodeImpl(conf)) {
+            final List<Object> received = new CopyOnWriteArrayList<>();
+            Object obj = new Object() {
+                @Subscribe(typeName = "Message1")
+                public void handle1(List in) {
+                    received.add(in);
+                }
+
+                @Subscribe(typeName = "Message1")
+                public void handle2(List in) {
+                    received.add(in);
+                }
+            };
+            node.register(obj);
+            List<String> payload = new ArrayList<>();
+            node.send(payload, "Message1", null, null, Priority.MEDIUM);
+            node.broadcast(payload, "Message1", null, null, Priority.MEDIUM);
+            Thread.sleep(1000);
+            assertEquals(3, received.size());
+            for (Object in : received) {
+                assertSame(payload, in);
+            }
+        }
+    }
+
+    @Test
+    public void testRoutingCacheInvalidation() throws Exception {
+        try (Node node = new NodeImpl()) {
+            final AtomicLong counter = new AtomicLong(0);
+            Object first = new Object() {
+                @Subscribe(typeName = "Message1")
+                public void handle() {
+                    counter.incrementAndGet();
+                }
+            };
+            node.register(first);
+            new AgniBuilder("").type("Message1").broadcast(node);
+            Thread.sleep(100);
+            assertEquals(1, counter.get());
+
+            node.register(new Object() {
+                @Subscribe(typeName = "Message1")
+                public void handle() {
+                    counter.incrementAndGet();
+                }
+            });
+            new AgniBuilder("").type("Message1").broadcast(node);
+            Thread.sleep(100);
+            assertEquals(3, counter.get());
+
+            node.unsubscribe(first, null);
+            new AgniBuilder("").type("Message1").broadcast(node);
+            Thread.sleep(100);
+            assertEquals(4, counter.get());
+        }
+    }
+
+    @Test
+    public void testRoutingCacheEviction() throws Exception {
+        RoutingCache cache = new RoutingCache(2);
+        Route route = new Route(Collections.emptySet(), Collections.emptyList(), new RoundRobinLoadBalancer());
+        Criteria a = new Criteria().add("k", "a");
+        Criteria b = new Criteria().add("k", "b");
+        Criteria c = new Criteria().add("k", "c");
+        cache.put(1, "T", a, route);
+        cache.put(1, "T", b, route);
+        assertNotNull(cache.get(1, "T", a));
+        cache.put(1, "T", c, route);
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get(1, "T", a));
+        assertNull(cache.get(1, "T", b));
+        assertNotNull(cache.get(1, "T", c));
+
+        for (int i = 0; i < 100; i++) {
+            cache.put(1, "T", new Criteria().add("k", "" + i), route);
+        }
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get(1, "T", new Criteria().add("k", "99")));
+    }
+
+    @Test
+    public void testRoutingCacheIgnoresOrderingKeys() throws Exception {
+        try (NodeImpl node = new NodeImpl()) {
+            final AtomicInteger received = new AtomicInteger(0);
+            node.register(new Object() {
+                @Subscribe(typeName = "Keyed")
+                public void handleKeyed(Integer in) {
+                    received.incrementAndGet();
+                }
+
+                @Subscribe(typeName = "Account", orderingKey = "account")
+                public void handleAccount(Integer in) {
+                    received.incrementAndGet();
+                }
+            });
+            for (int i = 0; i < 100; i++) {
+                new AgniBuilder(i).type("Keyed").orderingKey("" + i).send(node);
+                new AgniBuilder(i).type("Account").criteria("account", "" + i).send(node);
+            }
+            for (int i = 0; i < 500 && received.get() < 200; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(200, received.get());
+            assertTrue(node.getRoutingCache().size() < 10);
+        }
+    }
+
+    @Test
+    public void testLoadBalancing() throws Exception {
+        try (Node node = new NodeImpl()) {
+            final AtomicLong counter1 = new AtomicLong(0);
+            final AtomicLong counter2 = new AtomicLong(0);
+            node.register(new Object() {
+                @Subscribe(typeName = "Message1")
+                public String handle1() {
+                    counter1.incrementAndGet();
+                    return "";
+                }
+
+                @Subscribe(typeName = "Message1")
+                public String handle2() {
+                    counter2.incrementAndGet();
+                    return "";
+                }
+            });
+            for (int i = 0; i < 100; i++) {
+                new AgniBuilder("").type("Message1").request(node);
+            }
+            assertEquals(100, counter1.get() + counter2.get());
+            assertTrue(counter1.get() >= 25);
+            assertTrue(counter2.get() >= 25);
+        }
+    }
+
+    @Test
+    public void testLoadBalancerPerSubscription() throws Exception {
+        try (Node node = new NodeImpl()) {
+            final AtomicLong counter1 = new AtomicLong(0);
+            final AtomicLong counter2 = new AtomicLong(0);
+            node.register(new Object() {
+                @Subscribe(typeName = "Message1", loadBalancer = "powerOfTwo")
+                public String handle1() {
+                    counter1.incrementAndGet();
+                    return "";
+                }
+
+                @Subscribe(typeName = "Message1", loadBalancer = "powerOfTwo")
+                public String handle2() {
+                    counter2.incrementAndGet();
+                    return "";
+                }
+            });
+            for (int i = 0; i < 100; i++) {
+                new AgniBuilder("").type("Message1").request(node);
+            }
+            assertEquals(100, counter1.get() + counter2.get());
+            assertTrue(counter1.get() > 0);
+            assertTrue(counter2.get() > 0);
+        }
+    }
+
+    @Test
+    public void testRingBufferInbox() throws Exception {
+        Configuration conf = new Configuration(new JsonParser().parse("{ 'inbox': { 'type': 'ringBuffer', 'capacity': 16 }}").getAsJsonObject());
+        try (Node node = new NodeImpl(conf)) {
+            final AtomicLong counter = new AtomicLong(0);
+            node.register(new Object() {
+                @Subscribe(typeName = "Message1")
+                public void handle() {
+                    counter.incrementAndGet();
+                }
+
+                @Subscribe(typeName = "Message2")
+                public String handle2(String in) {
+                    return in + "!";
+                }
+            });
+            for (int i = 0; i < 1000; i++) {
+                new AgniBuilder("").type("Message1").send(node);
+            }
+            assertEquals("Howdy!", new AgniBuilder("Howdy").type("Message2").requestAsync(node).get().getPayload());
+            Thread.sleep(500);
+            assertEquals(1000, counter.get());
+        }
+    }
+
+    @Test
+    public void testRingBufferOverflowOrdering() throws Exception {
+        MessageBox box = Factory.instantiate(MessageBox.class, new Configuration(new JsonParser().parse("{ 'type': 'ringBuffer', 'capacity': 4 }").getAsJsonObject()));
+        List<Envelope> envelopes = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            envelopes.add(new Envelope("Message1", "java.lang.String", "" + i, Priority.MEDIUM, null, null, false));
+        }
+        //The fifth goes to the overflow, and the sixth must follow it there even though a ring slot has freed up
+        for (int i = 0; i < 5; i++) {
+            box.enqueue(envelopes.get(i));
+        }
+        assertSame(envelopes.get(0), box.dequeue(false, Priority.MEDIUM));
+        box.enqueue(envelopes.get(5));
+        for (int i = 1; i < 6; i++) {
+            assertSame(envelopes.get(i), box.dequeue(false, Priority.MEDIUM));
+        }
+        assertNull(box.dequeue(false, Priority.MEDIUM));
+
+        //Once the overflow has drained the ring is used again
+        box.enqueue(envelopes.get(0));
+        assertSame(envelopes.get(0), box.dequeue(false, Priority.MEDIUM));
+        box.shutdown();
+    }
+
+    @Test
+    public void testBoundedInbox() throws Exception {
+        Configuration conf = new Configuration(new JsonParser().parse("{ 'inbox': { 'type': 'bounded', 'maximumSize': 5, 'overflowPolicy': 'reject' }}").getAsJsonObject());
+        try (Node node = new NodeImpl(conf)) {
+            final CountDownLatch release = new CountDownLatch(1);
+            final AtomicLong counter = new AtomicLong(0);
+            node.register(new Object() {
+                @Subscribe(typeName = "Message1")
+                public void handle() throws InterruptedException {
+                    release.await();
+                    counter.incrementAndGet();
+                }
+            });
+            int accepted = 0;
+            for (int i = 0; i < 100; i++) {
+                if (new AgniBuilder("").type("Message1").priority(Priority.LOWEST).trySend(node, 0)) {
+                    accepted++;
+                }
+            }
+            assertTrue(accepted < 100);
+            release.countDown();
+            Thread.sleep(500);
+            assertEquals(accepted, counter.get());
+        }
+    }
+
+    @Test
+    public void testBoundedInboxDropOldest() throws Exception {
+        BoundedMessageBox box = new BoundedMessageBox(new Configuration(new JsonParser().parse("{ 'maximumSize': 2, 'overflowPolicy': 'dropOldest' }").getAsJsonObject()), null);
+        Envelope e1 = new Envelope("Message1", "java.lang.String", "1", Priority.MEDIUM, null, null, false);
+        Envelope e2 = new Envelope("Message1", "java.lang.String", "2", Priority.MEDIUM, null, null, false);
+        Envelope e3 = new Envelope("Message1", "java.lang.String", "3", Priority.MEDIUM, null, null, false);
+        box.enqueue(e1);
+        box.enqueue(e2);
+        box.enqueue(e3);
+        assertEquals(2, box.getCurrentSize());
+        assertEquals(1, box.getDroppedCount());
+        assertSame(e2, box.dequeue(false, Priority.LOWEST));
+        assertSame(e3, box.dequeue(false, Priority.LOWEST));
+        assertNull(box.dequeue(false, Priority.LOWEST));
+    }
+
+    @Test
+    public void testBoundedInboxDropOldestSkipsProtected() throws Exception {
+        BoundedMessageBox box = new BoundedMessageBox(new Configuration(new JsonParser().parse("{ 'maximumSize': 3, 'overflowPolicy': 'dropOldest' }").getAsJsonObject()), null);
+        Envelope request = new Envelope("Message1", "java.lang.String", "1", Priority.MEDIUM, null, new Criteria(), true);
+        Envelope ordered = new Envelope("Message1", "java.lang.String", "2", Priority.MEDIUM, null, new Criteria().add(Envelope.ORDERING_KEY, "k"), false);
+        Envelope plain1 = new Envelope("Message1", "java.lang.String", "3", Priority.MEDIUM, null, new Criteria(), false);
+        Envelope plain2 = new Envelope("Message1", "java.lang.String", "4", Priority.MEDIUM, null, new Criteria(), false);
+        box.enqueue(request);
+        box.enqueue(ordered);
+        box.enqueue(plain1);
+        box.enqueue(plain2);
+        assertEquals(1, box.getDroppedCount());
+        assertSame(request, box.dequeue(false, Priority.LOWEST));
+        assertSame(ordered, box.dequeue(false, Priority.LOWEST));
+        assertSame(plain2, box.dequeue(false, Priority.LOWEST));
+        assertNull(box.dequeue(false, Priority.LOWEST));
+    }
+
+    @Test
+    public void testBoundedInboxAdmitsControlAheadOfSpill() throws Exception {
+        try (Node node = new NodeImpl()) {
+            BoundedMessageBox box = new BoundedMessageBox(new Configuration(new JsonParser().parse("{ 'maximumSize': 1, 'overflowPolicy': 'spill', 'spill': { 'maximumSize': 50 } }").getAsJsonObject()), node);
+            Envelope first = new Envelope("Message1", "java.lang.String", "1", Priority.MEDIUM, null, new Criteria(), false);
+            Envelope spilled = new Envelope("Message1", "java.lang.String", "2", Priority.MEDIUM, null, new Criteria(), false);
+            Envelope response = new Envelope("Message1", "java.lang.String", "3", Priority.MEDIUM, null, new Criteria(), false);
+            response.setResponseToUuid(first.getUuid());
+            box.enqueue(first);
+            box.enqueue(spilled);
+            box.enqueue(response);
+            assertSame(first, box.dequeue(false, Priority.LOWEST));
+            assertSame(response, box.dequeue(false, Priority.LOWEST));
+            assertSame(spilled, box.dequeue(false, Priority.LOWEST));
+            assertNull(box.dequeue(false, Priority.LOWEST));
+            box.shutdown();
+        }
+    }
+
+    @Test
+    public void testBoundedInboxDropOldestReleasesOrdering() throws Exception {
+        Configuration conf = new Configuration(new JsonParser().parse("{ 'threadCount': 1, 'inbox': { 'type': 'bounded', 'maximumSize': 2, 'overflowPolicy': 'dropOldest' }}").getAsJsonObject());
+        try (Node node = new NodeImpl(conf)) {
+            final CountDownLatch blocked = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            final List<String> accounts = new CopyOnWriteArrayList<>();
+            node.register(new Object() {
+                @Subscribe(typeName = "Blocker")
+                public void block() throws InterruptedException {
+                    blocked.countDown();
+                    release.await();
+                }
+
+                @Subscribe(typeName = "Account", orderingKey = "account")
+                public void account(String in) {
+                    accounts.add(in);
+                }
+
+                @Subscribe(typeName = "Other")
+                public void other() {
+                }
+            });
+            Thread.sleep(200);
+            new AgniBuilder("").type("Blocker").priority(Priority.LOWEST).send(node);
+            assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+            //The second update waits at the ordering gate behind the first, which the inbox then drops
+            new AgniBuilder("1").type("Account").criteria("account", "A").priority(Priority.LOWEST).send(node);
+            new AgniBuilder("2").type("Account").criteria("account", "A").priority(Priority.LOWEST).send(node);
+            new AgniBuilder("").type("Other").priority(Priority.LOWEST).send(node);
+            new AgniBuilder("").type("Other").priority(Priority.LOWEST).send(node);
+            release.countDown();
+
+            for (int i = 0; i < 500 && accounts.isEmpty(); i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(Collections.singletonList("2"), accounts);
+        }
+    }
+
+    @Test
+    public void testRejectedOrderedEnvelopeReleasesKey() throws Exception {
+        Configuration conf = new Configuration(new JsonParser().parse("{ 'threadCount': 1, 'inbox': { 'type': 'bounded', 'maximumSize': 1, 'overflowPolicy': 'reject' }}").getAsJsonObject());
+        try (Node node = new NodeImpl(conf)) {
+            final CountDownLatch blocked = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            final List<String> accounts = new CopyOnWriteArrayList<>();
+            node.register(new Object() {
+                @Subscribe(typeName = "Blocker")
+                public void block() throws InterruptedException {
+                    blocked.countDown();
+                    release.await();
+                }
+
+                @Subscribe(typeName = "Account", orderingKey = "account")
+                public void account(String in) {
+                    accounts.add(in);
+                }
+            });
+            Thread.sleep(200);
+            new AgniBuilder("").type("Blocker").priority(Priority.LOWEST).send(node);
+            assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+            new AgniBuilder("1").type("Account").criteria("account", "A").priority(Priority.LOWEST).send(node);
+            try {
+                new AgniBuilder("2").type("Account").criteria("account", "B").priority(Priority.LOWEST).send(node);
+                fail();
+            } catch (RuntimeException e) {
+                assertEquals("Message box is full", e.getMessage());
+            }
+            release.countDown();
+            for (int i = 0; i < 500 && accounts.isEmpty(); i++) {
+                Thread.sleep(10);
+            }
+
+            //The rejected envelope must not leave its key looking in flight
+            new AgniBuilder("3").type("Account").criteria("account", "B").priority(Priority.LOWEST).send(node);
+            for (int i = 0; i < 500 && accounts.size() < 2; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(Arrays.asList("1", "3"), accounts);
+        }
+    }
+
+    @Test
+    public void testOrderingKeySticksToOneReplica() throws Exception {
+        List<Destination> replicas = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            replicas.add(new Destination("d" + i, "n" + i, "d" + i, "Account", new Criteria()));
+        }
+        Route route = new Route(new HashSet<>(replicas), replicas, new RoundRobinLoadBalancer());
+        Route shrunk = new Route(new HashSet<>(replicas.subList(0, 2)), replicas.subList(0, 2), new RoundRobinLoadBalancer());
+        Set<Destination> used = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            Destination selected = route.select("key" + i);
+            assertSame(selected, route.select("key" + i));
+            used.add(selected);
+            //Only the keys of the replica that went away move
+            if (selected != replicas.get(2)) {
+                assertSame(selected, shrunk.select("key" + i));
+            }
+        }
+        assertEquals(3, used.size());
+    }
+
+    @Test
+    public void testMappedLogInbox() throws Exception {
+        Configuration conf = new Configuration(new JsonParser().parse("{ 'inbox': { 'type': 'mappedLog', 'segmentSize': 4096 }}").getAsJsonObject());
+        try (Node node = new NodeImpl(conf)) {
+            final AtomicLong counter = new AtomicLong(0);
+            node.register(new Object() {
+                @Subscribe(typeName = "Message1")
+                public void handle(String in) {
+                    if (in.startsWith("Message")) {
+                        counter.incrementAndGet();
+                    }
+                }
+
+                @Subscribe(typeName = "Message2")
+                public String handle2(String in) {
+                    return in + "!";
+                }
+            });
+            for (int i = 0; i < 1000; i++) {
+                new AgniBuilder("Message " + i).type("Message1").attachment("att1", new byte[100]).send(node);
+            }
+            assertEquals("Howdy!", new AgniBuilder("Howdy").type("Message2").request(node).getPayload());
+            Thread.sleep(500);
+            assertEquals(1000, counter.get());
+        }
+    }
+
+    @Test
+    public void testDurableInboxReplay() throws Exception {
+        Path storage = Files.createTempDirectory("durable");
+        Configuration conf = new Configuration(new JsonParser().parse("{ 'inbox': { 'type': 'durable', 'storageLocation': '" + storage.toString().replace("\\", "/") + "' }}").getAsJsonObject());
+        final CountDownLatch stuck = new CountDownLatch(1);
+        try {
+            Node node1 = new NodeImpl(conf);
+            node1.register(new Object() {
+                @Subscribe(typeName = "Durable1")
+                public void handle(String in) throws InterruptedException {
+                    stuck.await();
+                }
+            });
+            for (int i = 0; i < 5; i++) {
+                new AgniBuilder("Message " + i).type("Durable1").send(node1);
+            }
+            node1.shutdown();
+
+            try (Node node2 = new NodeImpl(conf)) {
+                final List<String> received = new CopyOnWriteArrayList<>();
+                node2.register(new Object() {
+                    @Subscribe(typeName = "Durable1")
+                    public void handle(String in) {
+                        received.add(in);
+                    }
+                });
+                for (int i = 0; i < 50 && received.size() < 5; i++) {
+                    Thread.sleep(100);
+                }
+                assertEquals(5, received.size());
+                assertTrue(received.contains("Message 3"));
+            }
+
+            try (Node node3 = new NodeImpl(conf)) {
+                assertTrue(node3.getInbox().recover().isEmpty());
+            }
+        } finally {
+            stuck.countDown();
+        }
+    }
+
+    @Test
+    public void testFileBackedSpillOrdering() throws Exception {
+        try (Node node = new NodeImpl()) {
+            for (String codec : new String[]{"none", "gzip", "deflate", "lz"}) {
+                MessageBox messageBox = Factory.instantiate(MessageBox.class, new Configuration(new JsonParser().parse("{ 'type': 'fileBacked', 'maximumSize': 1000, 'codec': { 'type': '" + codec + "' } }").getAsJsonObject()), node);
+                List<String> uuids = new ArrayList<>();
+                int next = 0;
+                for (int i = 0; i < 20000; i++) {
+                    Envelope envelope = new Envelope("Message1", "java.lang.String", "\"Message " + i + "\"", Priority.MEDIUM, new Attachments(), new Criteria(), false);
+                    uuids.add(envelope.getUuid());
+                    messageBox.enqueue(envelope);
+                    if (i % 3 == 0) {
+                        assertEquals(uuids.get(next++), messageBox.dequeue(true, Priority.MEDIUM).getUuid());
+                    }
+                }
+                while (next < uuids.size()) {
+                    Envelope envelope = messageBox.dequeue(true, Priority.MEDIUM);
+                    assertEquals(uuids.get(next), envelope.getUuid());
+                    assertEquals("\"Message " + next + "\"", envelope.getPayload());
+                    next++;
+                }
+                assertNull(messageBox.dequeue(false, Priority.MEDIUM));
+                assertEquals(0, messageBox.getCurrentSize());
+                messageBox.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testFileBackedNestedSpill() throws Exception {
+        try (Node node = new NodeImpl()) {
+            String[] configurations = new String[]{
+                    "{ 'type': 'priority', 'children': { 'MEDIUM': { 'type': 'fileBacked', 'maximumSize': 50 } } }",
+                    "{ 'type': 'bounded', 'maximumSize': 10, 'overflowPolicy': 'spill', 'spill': { 'maximumSize': 50 } }"
+            };
+            for (String configuration : configurations) {
+                MessageBox messageBox = Factory.instantiate(MessageBox.class, new Configuration(new JsonParser().parse(configuration).getAsJsonObject()), node);
+                List<String> uuids = new ArrayList<>();
+                for (int i = 0; i < 200; i++) {
+                    Envelope envelope = new Envelope("Message1", "java.lang.String", "\"Message " + i + "\"", Priority.MEDIUM, new Attachments(), new Criteria(), false);
+                    uuids.add(envelope.getUuid());
+                    messageBox.enqueue(envelope);
+                }
+                for (int i = 0; i < 250 && messageBox.getCurrentMemorySize() == 200; i++) {
+                    Thread.sleep(20);
+                }
+                assertTrue(configuration, messageBox.getCurrentMemorySize() < 200);
+
+                //The wrapping box only polls its child, so the child's loader has to wake it once a spilled file is back
+                ExecutorService consumer = Executors.newSingleThreadExecutor();
+                try {
+                    List<String> drained = consumer.submit(() -> {
+                        List<String> out = new ArrayList<>();
+                        for (int i = 0; i < uuids.size(); i++) {
+                            out.add(messageBox.dequeue(true, Priority.LOWEST).getUuid());
+                        }
+                        return out;
+                    }).get(30, TimeUnit.SECONDS);
+                    assertEquals(configuration, uuids, drained);
+                } finally {
+                    consumer.shutdownNow();
+                }
+                assertNull(messageBox.dequeue(false, Priority.LOWEST));
+                assertEquals(0, messageBox.getCurrentSize());
+                messageBox.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testRecordLogIgnoresGarbageLength() throws Exception {
+        Path storage = Files.createTempDirectory("recordlog");
+        Path logPath = storage.resolve("test.wal");
+        try (RecordLog recordLog = new RecordLog(logPath, new Configuration())) {
+            recordLog.put("a", new byte[]{1, 2, 3});
+        }
+        for (int length : new int[]{-5, Integer.MAX_VALUE}) {
+            //A torn append: the header survived but its length is garbage
+            ByteBuffer tail = ByteBuffer.allocate(9);
+            tail.put((byte) 1);
+            tail.putInt(length);
+            tail.putInt(0);
+            Files.write(logPath, tail.array(), StandardOpenOption.APPEND);
+            try (RecordLog recordLog = new RecordLog(logPath, new Configuration())) {
+                assertEquals(1, recordLog.getRecovered().size());
+                assertArrayEquals(new byte[]{1, 2, 3}, recordLog.getRecovered().get("a"));
+            }
+        }
+    }
+
+    @Test
+    public void testFairInbox() throws Exception {
+        Configuration conf = new Configuration(new JsonParser().parse("{ 'threadCount': 2, 'inbox': { 'type': 'fair', 'scheduling': 'deficit', 'destinations': { 'Slow': { 'maxInFlight': 1 }}}}").getAsJsonObject());
+        try (Node node = new NodeImpl(conf)) {
+            final AtomicInteger slowRunning = new AtomicInteger(0);
+            final AtomicInteger slowMaxRunning = new AtomicInteger(0);
+            final AtomicInteger slowDone = new AtomicInteger(0);
+            final CountDownLatch fastDone = new CountDownLatch(20);
+            node.register(new Object() {
+                @Subscribe(typeName = "Slow")
+                public void handleSlow(String in) throws InterruptedException {
+                    slowMaxRunning.accumulateAndGet(slowRunning.incrementAndGet(), Math::max);
+                    Thread.sleep(100);
+                    slowRunning.decrementAndGet();
+                    slowDone.incrementAndGet();
+                }
+
+                @Subscribe(typeName = "Fast")
+                public void handleFast(String in) {
+                    fastDone.countDown();
+                }
+            });
+            for (int i = 0; i < 50; i++) {
+                new AgniBuilder("Slow " + i).type("Slow").send(node);
+            }
+            for (int i = 0; i < 20; i++) {
+                new AgniBuilder("Fast " + i).type("Fast").send(node);
+            }
+            //Behind a shared FIFO these would wait for the slow handler to work through its backlog
+            assertTrue(fastDone.await(30, TimeUnit.SECONDS));
+            assertTrue(slowDone.get() < 25);
+            assertEquals(1, slowMaxRunning.get());
+        }
+    }
+
+    @Test
+    public void testFairInboxConcurrentByDefault() throws Exception {
+        Configuration conf = new Configuration(new JsonParser().parse("{ 'threadCount': 2, 'inbox': { 'type': 'fair' }}").getAsJsonObject());
+        try (Node node = new NodeImpl(conf)) {
+            final CountDownLatch running = new CountDownLatch(2);
+            final AtomicInteger overlapped = new AtomicInteger(0);
+            final CountDownLatch done = new CountDownLatch(2);
+            node.register(new Object() {
+                @Subscribe(typeName = "Parallel")
+                public void handle(String in) throws InterruptedException {
+                    running.countDown();
+                    if (running.await(5, TimeUnit.SECONDS)) {
+                        overlapped.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            });
+            new AgniBuilder("One").type("Parallel").send(node);
+            new AgniBuilder("Two").type("Parallel").send(node);
+            //Only a destination configured with a maxInFlight of 1 is serialized
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(2, overlapped.get());
+        }
+    }
+
+    @Test
+    public void testFairInboxPriorityWakeup() throws Exception {
+        final FairMessageBox box = new FairMessageBox(new Configuration(), null);
+        ExecutorService consumers = Executors.newFixedThreadPool(2);
+        CompletableFuture<Envelope> highest = CompletableFuture.supplyAsync(() -> dequeue(box, Priority.HIGHEST), consumers);
+        Thread.sleep(100);
+        CompletableFuture<Envelope> medium = CompletableFuture.supplyAsync(() -> dequeue(box, Priority.MEDIUM), consumers);
+        Thread.sleep(100);
+
+        //The longest waiter only serves HIGHEST, so it must not be the one that hears about a MEDIUM envelope
+        Envelope envelope = new Envelope("Message1", "java.lang.String", "1", Priority.MEDIUM, null, null, false);
+        box.enqueue(envelope);
+        assertSame(envelope, medium.get(10, TimeUnit.SECONDS));
+        assertFalse(highest.isDone());
+
+        Envelope urgent = new Envelope("Message1", "java.lang.String", "2", Priority.HIGHEST, null, null, false);
+        box.enqueue(urgent);
+        assertSame(urgent, highest.get(10, TimeUnit.SECONDS));
+        consumers.shutdown();
+    }
+
+    private static Envelope dequeue(MessageBox box, Priority priority) {
+        try {
+            return box.dequeue(true, priority);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testInboxSizeByPriority() throws Exception {
+        try (NodeImpl node = new NodeImpl()) {
+            for (String type : new String[]{"priority", "ringBuffer", "bounded", "fair"}) {
+                MessageBox messageBox = Factory.instantiate(MessageBox.class, new Configuration(new JsonParser().parse("{ 'type': '" + type + "' }").getAsJsonObject()), node);
+                for (int i = 0; i < 5; i++) {
+                    messageBox.enqueue(new Envelope("Message1", "java.lang.String", "\"Low " + i + "\"", Priority.LOWEST, new Attachments(), new Criteria(), false));
+                }
+                messageBox.enqueue(new Envelope("Message1", "java.lang.String", "\"High\"", Priority.HIGH, new Attachments(), new Criteria(), false));
+                //A backlog at a lower priority says nothing about the threads serving a higher one
+                assertEquals(type, 0, messageBox.getCurrentSize(Priority.HIGHEST));
+                assertEquals(type, 1, messageBox.getCurrentSize(Priority.HIGH));
+                assertEquals(type, 6, messageBox.getCurrentSize(Priority.LOWEST));
+                messageBox.acknowledge(messageBox.dequeue(false, Priority.HIGH));
+                assertEquals(type, 0, messageBox.getCurrentSize(Priority.HIGH));
+                assertEquals(type, 5, messageBox.getCurrentSize(Priority.LOWEST));
+                messageBox.shutdown();
+            }
+            MessageBox memory = Factory.instantiate(MessageBox.class, new Configuration(new JsonParser().parse("{ 'type': 'memory' }").getAsJsonObject()), node);
+            memory.enqueue(new Envelope("Message1", "java.lang.String", "\"Low\"", Priority.LOWEST, new Attachments(), new Criteria(), false));
+            //Any consumer may take any envelope from a box that ignores priority
+            assertEquals(1, memory.getCurrentSize(Priority.HIGHEST));
+            memory.shutdown();
+        }
+    }
+
+    @Test
+    public void testInboxByteAccounting() throws Exception {
+        try (NodeImpl node = new NodeImpl()) {
+            for (String type : new String[]{"memory", "priority", "ringBuffer", "bounded", "fair", "fileBacked"}) {
+                MessageBox messageBox = Factory.instantiate(MessageBox.class, new Configuration(new JsonParser().parse("{ 'type': '" + type + "', 'maximumBytes': 200000, 'lowWatermarkBytes': 100000 }").getAsJsonObject()), node);
+                List<Envelope> envelopes = new ArrayList<>();
+                long total = 0;
+                for (int i = 0; i < 15; i++) {
+                    Attachments attachments = new Attachments();
+                    attachments.addByteArrayAttachment("data", new byte[10000]);
+                    Envelope envelope = new Envelope("Message1", "java.lang.String", "\"Message " + i + "\"", Priority.MEDIUM, attachments, new Criteria(), false);
+                    total += envelope.getEstimatedSize();
+                    envelopes.add(envelope);
+                    messageBox.enqueue(envelope);
+                }
+                assertTrue(type, total > 150000);
+                assertEquals(type, total, messageBox.getCurrentBytes());
+
+                for (int i = 0; i < envelopes.size(); i++) {
+                    Envelope envelope = messageBox.dequeue(true, Priority.LOWEST);
+                    messageBox.acknowledge(envelope);
+                }
+                assertEquals(type, 0, messageBox.getCurrentBytes());
+                messageBox.shutdown();
+            }
+
+            MessageBox spilling = Factory.instantiate(MessageBox.class, new Configuration(new JsonParser().parse("{ 'type': 'fileBacked', 'maximumBytes': 50000, 'lowWatermarkBytes': 20000 }").getAsJsonObject()), node);
+            for (int i = 0; i < 100; i++) {
+                Attachments attachments = new Attachments();
+                attachments.addByteArrayAttachment("data", new byte[10000]);
+                spilling.enqueue(new Envelope("Message1", "java.lang.String", "\"Message " + i + "\"", Priority.MEDIUM, attachments, new Criteria(), false));
+            }
+            for (int i = 0; i < 50 && spilling.getCurrentBytes() > 100000; i++) {
+                Thread.sleep(20);
+            }
+            assertTrue(spilling.getCurrentBytes() <= 100000);
+            assertEquals(100, spilling.getCurrentSize());
+            for (int i = 0; i < 100; i++) {
+                assertNotNull(spilling.dequeue(true, Priority.MEDIUM));
+            }
+            assertEquals(0, spilling.getCurrentBytes());
+            spilling.shutdown();
+
+            assertEquals(node.getInbox().getCurrentBytes(), node.buildStatsResponse().getMessageBoxCurrentBytes());
+        }
+    }
+
+    @Test
+    public void testScheduledDeliveryIntoFullInbox() throws Exception {
+        Configuration conf = new Configuration(new JsonParser().parse("{ 'threadCount': 1, 'inbox': { 'type': 'bounded', 'maximumSize': 1, 'overflowPolicy': 'block' }}").getAsJsonObject());
+        try (Node node = new NodeImpl(conf)) {
+            final CountDownLatch blocked = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch later = new CountDownLatch(1);
+            node.register(new Object() {
+                @Subscribe(typeName = "Blocker")
+                public void block() throws InterruptedException {
+                    blocked.countDown();
+                    release.await();
+                }
+
+                @Subscribe(typeName = "Echo")
+                public String echo(String in) {
+                    return in;
+                }
+
+                @Subscribe(typeName = "Later")
+                public void later() {
+                    later.countDown();
+                }
+            });
+            Thread.sleep(200);
+            new AgniBuilder("").type("Blocker").priority(Priority.LOWEST).send(node);
+            assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+            //The request fills the inbox, so the scheduled envelope finds no room when it comes due
+            CompletableFuture<PayloadAndAttachments> request = new AgniBuilder("a").type("Echo").priority(Priority.LOWEST).timeout(300L).requestAsync(node);
+            ScheduledDelivery delivery = new AgniBuilder("").type("Later").priority(Priority.LOWEST).sendAt(node, System.currentTimeMillis());
+
+            //Waiting for room must not hold up the request timeouts that share the scheduler thread
+            assertNull(request.get(5, TimeUnit.SECONDS));
+            assertFalse(delivery.isCancelled());
+            release.countDown();
+            assertTrue(later.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testSendAfter() throws Exception {
+        try (Node node = new NodeImpl()) {
+            final List<String> received = new CopyOnWriteArrayList<>();
+            node.register(new Object() {
+                @Subscribe(typeName = "Later")
+                public void handle(String in) {
+                    received.add(in);
+                }
+            });
+            long start = System.currentTimeMillis();
+            ScheduledDelivery delivery = new AgniBuilder("First").type("Later").sendAfter(node, 300, TimeUnit.MILLISECONDS);
+            ScheduledDelivery cancelled = new AgniBuilder("Cancelled").type("Later").sendAfter(node, 300, TimeUnit.MILLISECONDS);
+            new AgniBuilder("Second").type("Later").sendAt(node, start + 150);
+            assertTrue(cancelled.cancel());
+            assertFalse(cancelled.cancel());
+            assertTrue(cancelled.isCancelled());
+            assertTrue(delivery.getDeliveryTime() >= start + 300);
+
+            Thread.sleep(100);
+            assertTrue(received.isEmpty());
+            for (int i = 0; i < 50 && received.size() < 2; i++) {
+                Thread.sleep(20);
+            }
+            assertTrue(System.currentTimeMillis() - start >= 300);
+            assertEquals(2, received.size());
+            assertEquals("Second", received.get(0));
+            assertEquals("First", received.get(1));
+            assertFalse(delivery.cancel());
+            Thread.sleep(100);
+            assertEquals(2, received.size());
+        }
+    }
+
+    @Test
+    public void testDurableSendAfter() throws Exception {
+        Path storage = Files.createTempDirectory("timers");
+        Configuration conf = new Configuration(new JsonParser().parse("{ 'timers': { 'storageLocation': '" + storage.toString().replace("\\", "/") + "' }}").getAsJsonObject());
+        Node node1 = new NodeImpl(conf);
+        node1.register(new Object() {
+            @Subscribe(typeName = "Durable2")
+            public void handle(String in) {
+            }
+        });
+        new AgniBuilder("Now").type("Durable2").sendAfter(node1, 200, TimeUnit.MILLISECONDS);
+        new AgniBuilder("Later").type("Durable2").sendAfter(node1, 2, TimeUnit.SECONDS);
+        new AgniBuilder("Never").type("Durable2").sendAfter(node1, 2, TimeUnit.SECONDS).cancel();
+        Thread.sleep(500);
+        node1.shutdown();
+
+        try (Node node2 = new NodeImpl(conf)) {
+            final List<String> received = new CopyOnWriteArrayList<>();
+            node2.register(new Object() {
+                @Subscribe(typeName = "Durable2")
+                public void handle(String in) {
+                    received.add(in);
+                }
+            });
+            Thread.sleep(500);
+            assertTrue(received.isEmpty());
+            for (int i = 0; i < 100 && received.isEmpty(); i++) {
+                Thread.sleep(20);
+            }
+            Thread.sleep(200);
+            assertEquals(1, received.size());
+            assertEquals("Later", received.get(0));
+        }
+    }
+
+    @Test
+    public void testCoalescingInbox() throws Exception {
+        Configuration conf = new Configuration(new JsonParser().parse("{ 'threadCount': 1, 'inbox': { 'type': 'coalescing', 'types': { 'Price': { 'key': 'symbol' } } }}").getAsJsonObject());
+        try (Node node = new NodeImpl(conf)) {
+            final CountDownLatch release = new CountDownLatch(1);
+            final AtomicInteger calls = new AtomicInteger(0);
+            final Map<String, Integer> newest = new ConcurrentHashMap<>();
+            node.register(new Object() {
+                @Subscribe(typeName = "Price")
+                public void handle(String in, Criteria criteria) throws InterruptedException {
+                    release.await();
+                    calls.incrementAndGet();
+                    newest.merge(criteria.get("symbol"), Integer.parseInt(in), Math::max);
+                }
+            });
+            for (int i = 0; i < 1000; i++) {
+                new AgniBuilder("" + i).type("Price").criteria("symbol", i % 2 == 0 ? "ABC" : "XYZ").send(node);
+            }
+            release.countDown();
+            for (int i = 0; i < 50 && !(Integer.valueOf(998).equals(newest.get("ABC")) && Integer.valueOf(999).equals(newest.get("XYZ"))); i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(998, (int) newest.get("ABC"));
+            assertEquals(999, (int) newest.get("XYZ"));
+            //Processor threads of every priority may have picked one up before the rest were coalesced
+            assertTrue(calls.get() < 20);
+        }
+    }
+
+    @Test
+    public void testCoalescingInboxForgetsUnqueuedEnvelopes() throws Exception {
+        try (Node node = new NodeImpl()) {
+            for (String policy : new String[]{"reject", "dropOldest"}) {
+                MessageBox box = Factory.instantiate(MessageBox.class, new Configuration(new JsonParser().parse("{ 'type': 'coalescing', 'types': { 'Price': { 'key': 'symbol' } }, 'child': { 'type': 'bounded', 'maximumSize': 1, 'overflowPolicy': '" + policy + "' } }").getAsJsonObject()), node);
+                Envelope first = new Envelope("Price", "java.lang.String", "1", Priority.MEDIUM, null, new Criteria().add("symbol", "ABC"), false);
+                Envelope other = new Envelope("Other", "java.lang.String", "", Priority.MEDIUM, null, new Criteria(), false);
+                Envelope second = new Envelope("Price", "java.lang.String", "2", Priority.MEDIUM, null, new Criteria().add("symbol", "ABC"), false);
+                if (policy.equals("reject")) {
+                    box.enqueue(other);
+                    try {
+                        box.enqueue(first);
+                        fail();
+                    } catch (RuntimeException e) {
+                        assertEquals("Message box is full", e.getMessage());
+                    }
+                } else {
+                    box.enqueue(first);
+                    box.enqueue(other);
+                    //The node passes a discarded envelope back through the inbox's acknowledge
+                    box.acknowledge(first);
+                }
+                assertSame(policy, other, box.dequeue(false, Priority.LOWEST));
+
+                //Nothing is queued for the key any more, so the next price must not coalesce into the lost one
+                box.enqueue(second);
+                assertSame(policy, second, box.dequeue(false, Priority.LOWEST));
+                assertNull(policy, box.dequeue(false, Priority.LOWEST));
+                box.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testCoalescingInboxWithOrderingKeys() throws Exception {
+        Configuration conf = new Configuration(new JsonParser().parse("{ 'threadCount': 1, 'inbox': { 'type': 'coalescing', 'types': { 'Price': { 'key': 'symbol' } } }}").getAsJsonObject());
+        try (Node node = new NodeImpl(conf)) {
+            //One processor thread per priority, all of them able to take the envelopes below
+            final CountDownLatch blocked = new CountDownLatch(Priority.values().length);
+            final CountDownLatch release = new CountDownLatch(1);
+            final List<String> received = new CopyOnWriteArrayList<>();
+            node.register(new Object() {
+                @Subscribe(typeName = "Blocker")
+                public void block() throws InterruptedException {
+                    blocked.countDown();
+                    release.await();
+                }
+
+                @Subscribe(typeName = "Price")
+                public void handle(String in) {
+                    received.add(in);
+                }
+            });
+            for (int i = 0; i < Priority.values().length; i++) {
+                new AgniBuilder("").type("Blocker").send(node);
+            }
+            assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+            //Same coalescing key but different ordering keys, and a third update waiting behind the first
+            new AgniBuilder("1").type("Price").criteria("symbol", "ABC").orderingKey("ok1").send(node);
+            new AgniBuilder("2").type("Price").criteria("symbol", "ABC").orderingKey("ok2").send(node);
+            new AgniBuilder("3").type("Price").criteria("symbol", "ABC").orderingKey("ok1").send(node);
+            release.countDown();
+
+            for (int i = 0; i < 500 && received.size() < 3; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(3, received.size());
+            assertTrue(received.indexOf("1") < received.indexOf("3"));
+        }
+    }
+
+    @Test
+    public void testVirtualExecutionNestedRequests() throws Exception {
+        Configuration conf = new Configuration(new JsonParser().parse("{ 'executionMode': 'virtual', 'maxConcurrency': 50 }").getAsJsonObject());
+        try (Node node = new NodeImpl(conf)) {
+            final Node inner = node;
+            node.register(new Object() {
+                @Subscribe(typeName = "Outer")
+                public String handleOuter(String in) {
+                    return (String) new AgniBuilder(in).type("Inner").request(inner).getPayload();
+                }
+
+                @Subscribe(typeName = "Inner")
+                public String handleInner(String in) throws InterruptedException {
+                    Thread.sleep(50);
+                    return in + "!";
+                }
+            });
+            List<CompletableFuture<Object>> results = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                final String payload = "Request" + i;
+                results.add(CompletableFuture.supplyAsync(() -> new AgniBuilder(payload).type("Outer").request(node).getPayload()));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals("Request" + i + "!", results.get(i).get(10, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    @Test
+    public void testAdaptivePools() throws Exception {
+        Configuration conf = new Configuration(new JsonParser().parse("{ 'threadCount': 1, 'pools': { 'adaptive': true, 'minimum': 1, 'maximum': 6, 'interval': 50, 'sojournTarget': 5, 'shrinkAfter': 2 }}").getAsJsonObject());
+        try (NodeImpl node = new NodeImpl(conf)) {
+            final AtomicInteger counter = new AtomicInteger(0);
+            node.register(new Object() {
+                @Subscribe(typeName = "Slow")
+                public void handle() throws InterruptedException {
+                    Thread.sleep(10);
+                    counter.incrementAndGet();
+                }
+            });
+            for (int i = 0; i < 300; i++) {
+                new AgniBuilder("").type("Slow").send(node);
+            }
+            int largest = 0;
+            for (int i = 0; i < 1500 && counter.get() < 300; i++) {
+                for (ProcessorPool pool : node.getProcessorPools()) {
+                    largest = Math.max(largest, pool.getSize());
+                }
+                Thread.sleep(20);
+            }
+            assertEquals(300, counter.get());
+            assertTrue(largest > 1);
+
+            //Once the backlog is gone every pool drifts back down to its minimum
+            boolean shrunk = false;
+            for (int i = 0; i < 250 && !shrunk; i++) {
+                Thread.sleep(20);
+                shrunk = true;
+                for (ProcessorPool pool : node.getProcessorPools()) {
+                    shrunk &= pool.getSize() == 1;
+                }
+            }
+            assertTrue(shrunk);
+            StatsResponse stats = node.buildStatsResponse();
+            assertEquals(Priority.values().length, stats.getProcessorThreadInfos().length);
+            for (StatsResponse.ProcessorThreadInfo info : stats.getProcessorThreadInfos()) {
+                assertNotNull(info.getPriority());
+                assertEquals(1, info.getPoolSize());
+                assertEquals(6, info.getPoolMaximum());
+            }
+        }
+    }
+
+    @Test
+    public void testBulkheads() throws Exception {
+        Configuration conf = new Configuration(new JsonParser().parse("{ 'threadCount': 2, 'executors': { 'downstream': { 'threadCount': 3 } } }").getAsJsonObject());
+        try (Node node = new NodeImpl(conf)) {
+            final AtomicInteger slowRunning = new AtomicInteger(0);
+            final AtomicInteger slowPeak = new AtomicInteger(0);
+            final AtomicInteger slowDone = new AtomicInteger(0);
+            final AtomicInteger pooledPeak = new AtomicInteger(0);
+            final AtomicInteger pooledRunning = new AtomicInteger(0);
+            final Set<String> pooledThreads = ConcurrentHashMap.newKeySet();
+            final CountDownLatch fastDone = new CountDownLatch(50);
+            node.register(new Object() {
+                @Subscribe(typeName = "Slow", maxConcurrency = 2)
+                public void handleSlow() throws InterruptedException {
+                    slowPeak.accumulateAndGet(slowRunning.incrementAndGet(), Math::max);
+                    Thread.sleep(100);
+                    slowRunning.decrementAndGet();
+                    slowDone.incrementAndGet();
+                }
+
+                @Subscribe(typeName = "Pooled", executor = "downstream")
+                public String handlePooled(String in) throws InterruptedException {
+                    pooledPeak.accumulateAndGet(pooledRunning.incrementAndGet(), Math::max);
+                    pooledThreads.add(Thread.currentThread().getName());
+                    Thread.sleep(50);
+                    pooledRunning.decrementAndGet();
+                    return in;
+                }
+
+                @Subscribe(typeName = "Fast")
+                public void handleFast() {
+                    fastDone.countDown();
+                }
+            });
+            for (int i = 0; i < 20; i++) {
+                new AgniBuilder("").type("Slow").send(node);
+            }
+            List<CompletableFuture<PayloadAndAttachments>> pooled = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                pooled.add(new AgniBuilder("Pooled" + i).type("Pooled").requestAsync(node));
+            }
+            for (int i = 0; i < 50; i++) {
+                new AgniBuilder("").type("Fast").send(node);
+            }
+
+            //The capped subscriptions queue up behind their limits without starving the fast handler
+            assertTrue(fastDone.await(1, TimeUnit.SECONDS));
+            assertTrue(slowDone.get() < 20);
+            for (int i = 0; i < pooled.size(); i++) {
+                assertEquals("Pooled" + i, pooled.get(i).get(10, TimeUnit.SECONDS).getPayload());
+            }
+            for (int i = 0; i < 200 && slowDone.get() < 20; i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(20, slowDone.get());
+            assertEquals(2, slowPeak.get());
+            assertTrue(pooledPeak.get() <= 3);
+            for (String name : pooledThreads) {
+                assertTrue(name, name.contains("downstream["));
+            }
+        }
+    }
+
+    @Test
+    public void testBatchHandlers() throws Exception {
+        try (Node node = new NodeImpl()) {
+            final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+            final AtomicInteger received = new AtomicInteger(0);
+            node.register(new Object() {
+                @Subscribe(typeName = "Audit", batchSize = 50, maxBatchDelayMs = 20)
+                public List<String> handle(List<String> in, List<Criteria> criteria) {
+                    batchSizes.add(in.size());
+                    received.addAndGet(in.size());
+                    List<String> out = new ArrayList<>();
+                    for (int i = 0; i < in.size(); i++) {
+                        out.add(in.get(i).toUpperCase() + criteria.get(i).get("n"));
+                    }
+                    return out;
+                }
+
+                @Subscribe(batchSize = 10)
+                public void handleNumbers(List<Integer> in) {
+                    received.addAndGet(in.size());
+                }
+            });
+            for (int i = 0; i < 200; i++) {
+                new AgniBuilder("a").type("Audit").send(node);
+            }
+            for (int i = 0; i < 200 && received.get() < 200; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(200, received.get());
+            assertTrue(batchSizes.size() < 200);
+
+            //A partial batch goes out after the delay and every request still gets its own response
+            List<CompletableFuture<PayloadAndAttachments>> responses = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                responses.add(new AgniBuilder("b").type("Audit").criteria(new Criteria().add("n", "" + i)).requestAsync(node));
+            }
+            for (int i = 0; i < responses.size(); i++) {
+                assertEquals("B" + i, responses.get(i).get(5, TimeUnit.SECONDS).getPayload());
+            }
+
+            for (int i = 0; i < 25; i++) {
+                new AgniBuilder(i).send(node);
+            }
+            for (int i = 0; i < 200 && received.get() < 228; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(228, received.get());
+        }
+    }
+
+    @Test
+    public void testOrderingKeys() throws Exception {
+        try (Node node = new NodeImpl()) {
+            final Map<String, List<Integer>> seen = new ConcurrentHashMap<>();
+            final Set<String> active = ConcurrentHashMap.newKeySet();
+            final AtomicInteger running = new AtomicInteger(0);
+            final AtomicInteger peak = new AtomicInteger(0);
+            final AtomicInteger overlaps = new AtomicInteger(0);
+            final AtomicInteger done = new AtomicInteger(0);
+            node.register(new Object() {
+                @Subscribe(typeName = "Keyed")
+                public void handleKeyed(Integer in, Criteria criteria) throws InterruptedException {
+                    handle("keyed-" + criteria.get(Envelope.ORDERING_KEY), in);
+                }
+
+                @Subscribe(typeName = "Account", orderingKey = "account")
+                public void handleAccount(Integer in, Criteria criteria) throws InterruptedException {
+                    handle("account-" + criteria.get("account"), in);
+                }
+
+                private void handle(String key, Integer in) throws InterruptedException {
+                    if (!active.add(key)) {
+                        overlaps.incrementAndGet();
+                    }
+                    peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    Thread.sleep(1);
+                    seen.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(in);
+                    running.decrementAndGet();
+                    active.remove(key);
+                    done.incrementAndGet();
+                }
+            });
+            for (int i = 0; i < 50; i++) {
+                for (int k = 0; k < 5; k++) {
+                    new AgniBuilder(i).type("Keyed").orderingKey("" + k).send(node);
+                    new AgniBuilder(i).type("Account").criteria("account", "" + k).send(node);
+                }
+            }
+            for (int i = 0; i < 1000 && done.get() < 500; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(500, done.get());
+            assertEquals(0, overlaps.get());
+            assertTrue(peak.get() > 1);
+            assertEquals(10, seen.size());
+            for (List<Integer> values : seen.values()) {
+                assertEquals(50, values.size());
+                for (int i = 0; i < values.size(); i++) {
+                    assertEquals(i, (int) values.get(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGeneratedInvokers() throws Exception {
+        try (Node node = new NodeImpl()) {
+            InvokedHandlers handlers = new InvokedHandlers();
+            node.register(handlers);
+            new AgniBuilder("").type("Ping").send(node);
+            assertEquals("Howdy!", new AgniBuilder("Howdy").type("Echo").request(node).getPayload());
+            assertEquals("Howdy x=y", new AgniBuilder("Howdy").type("Describe").criteria("x", "y").request(node).getPayload());
+            try {
+                new AgniBuilder("").type("Fail").request(node);
+                fail();
+            } catch (RuntimeException e) {
+                assertTrue(e.getCause() instanceof IllegalAccessException);
+            }
+            for (int i = 0; i < 100 && handlers.pings.get() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, handlers.pings.get());
+        }
+    }
+
+    public static class InvokedHandlers {
+        private final AtomicInteger pings = new AtomicInteger(0);
+
+        @Subscribe(typeName = "Ping")
+        public void ping() {
+            pings.incrementAndGet();
+        }
+
+        @Subscribe(typeName = "Echo")
+        public String echo(String in) {
+            return in + "!";
+        }
+
+        @Subscribe(typeName = "Describe")
+        public String describe(String in, Attachments attachments, Criteria criteria) {
+            return in + " x=" + criteria.get("x");
+        }
+
+        @Subscribe(typeName = "Fail")
+        public void fail() throws IllegalAccessException {
+            throw new IllegalAccessException("Howdy");
+        }
+    }
+
+    @Test
+    public void testLatencyHistograms() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 100000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000000, histogram.getMax());
+        assertEquals(50000000, histogram.getValueAtPercentile(50), 50000000 * 0.02);
+        assertEquals(99000000, histogram.getValueAtPercentile(99), 99000000 * 0.02);
+        assertEquals(99900000, histogram.getValueAtPercentile(99.9), 99900000 * 0.02);
+        assertEquals(100000000, histogram.getValueAtPercentile(100));
+
+        try (NodeImpl node = new NodeImpl()) {
+            node.register(new Object() {
+                @Subscribe(typeName = "Timed")
+                public String handle(String in) throws InterruptedException {
+                    Thread.sleep("slow".equals(in) ? 20 : 2);
+                    return in;
+                }
+            });
+            for (int i = 0; i < 100; i++) {
+                new AgniBuilder(i == 0 ? "slow" : "fast").type("Timed").requestAsync(node).get(5, TimeUnit.SECONDS);
+            }
+            StatsResponse.DestinationInfo info = null;
+            for (StatsResponse.DestinationInfo candidate : node.buildStatsResponse().getDestinationInfos()) {
+                if ("Timed".equals(candidate.getType())) {
+                    info = candidate;
+                }
+            }
+            assertNotNull(info);
+            assertEquals(100, info.getServiceTime().getCount());
+            assertTrue(info.getServiceTime().getP50() >= TimeUnit.MILLISECONDS.toNanos(2));
+            assertTrue(info.getServiceTime().getP50() < TimeUnit.MILLISECONDS.toNanos(15));
+            assertTrue(info.getServiceTime().getMax() >= TimeUnit.MILLISECONDS.toNanos(20));
+            assertTrue(info.getServiceTime().getP90() <= info.getServiceTime().getP99());
+            assertEquals(100, info.getQueueDelay().getCount());
+            assertTrue(info.getTotalTimeSpent() >= 200);
+        }
+    }
+
+    @Test
+    public void testRateMeters() throws Exception {
+        Configuration conf = new Configuration(new JsonParser().parse("{ 'rateInterval': 50 }").getAsJsonObject());
+        try (NodeImpl node = new NodeImpl(conf); NodeImpl other = new NodeImpl()) {
+            final AtomicInteger counter = new AtomicInteger(0);
+            node.register(new Object() {
+                @Subscribe(typeName = "Metered")
+                public void handle() {
+                    counter.incrementAndGet();
+                }
+            });
+            for (int i = 0; i < 500; i++) {
+                new AgniBuilder("").type("Metered").send(node);
+            }
+            for (int i = 0; i < 100 && counter.get() < 500; i++) {
+                Thread.sleep(10);
+            }
+            //Once a tick has seen the events the averages only decay towards zero, never reach it
+            for (int i = 0; i < 500 && node.buildStatsResponse().getTypeRates().get("Metered").getFiveMinuteRate() == 0; i++) {
+                Thread.sleep(10);
+            }
+            StatsResponse stats = node.buildStatsResponse();
+            StatsResponse.RateInfo rate = stats.getTypeRates().get("Metered");
+            assertNotNull(rate);
+            assertEquals(500, rate.getCount());
+            assertTrue(rate.getOneSecondRate() > 0);
+            assertTrue(rate.getOneMinuteRate() > 0);
+            assertTrue(rate.getFiveMinuteRate() > 0);
+            assertTrue(stats.getCurrentEPS() > 0);
+
+            //Meters belong to their node, not to the JVM
+            assertNull(other.buildStatsResponse().getTypeRates().get("Metered"));
+            assertEquals(0, other.getCurrentEPS(), 0);
+        }
+    }
+
+    @Test
+    public void testRateMeterWindowsFollowElapsedTime() throws Exception {
+        final AtomicLong now = new AtomicLong(0);
+        RateMeter meter = new RateMeter(now::get);
+        meter.mark(100);
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        meter.tick();
+        assertEquals(1000, meter.getOneMinuteRate(), 1e-6);
+
+        //A minute of idle 100ms ticks decays the one minute average by a factor of e, as a minute of 1s ticks would
+        for (int i = 0; i < 600; i++) {
+            now.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+            meter.tick();
+        }
+        assertEquals(1000 * Math.exp(-1), meter.getOneMinuteRate(), 1e-6);
+        assertEquals(1000 * Math.exp(-0.2), meter.getFiveMinuteRate(), 1e-6);
+    }
+
+    @Test
+    public void testNearCache() throws Exception {
+        try (NodeImpl node = new NodeImpl()) {
+            final AtomicInteger lookups = new AtomicInteger(0);
+            final CountDownLatch ready = new CountDownLatch(1);
+            node.register(new Object() {
+                @Subscribe(typeName = "Lookup")
+                public String lookup(String key) {
+                    return key + lookups.incrementAndGet();
+                }
+
+                @Subscribe(typeName = "SlowLookup")
+                public String slowLookup(String key) throws InterruptedException {
+                    ready.await();
+                    return key;
+                }
+
+                @Subscribe(typeName = "Update")
+                public void update(String key) {
+                    node.invalidate("Lookup", new Criteria().add("region", key));
+                }
+            });
+
+            assertEquals("a1", new AgniBuilder("a").type("Lookup").cacheable(60000, 2).request(node).getPayload());
+            assertEquals("a1", new AgniBuilder("a").type("Lookup").cacheable(60000, 2).request(node).getPayload());
+            assertEquals("b2", new AgniBuilder("b").type("Lookup").cacheable(60000, 2).request(node).getPayload());
+            assertEquals("a3", new AgniBuilder("a").type("Lookup").criteria("region", "east").cacheable(60000, 2).request(node).getPayload());
+            assertEquals(3, lookups.get());
+
+            //Uncached requests always reach the handler
+            assertEquals("a4", new AgniBuilder("a").type("Lookup").request(node).getPayload());
+
+            //The third distinct key pushed out the least recently used one
+            assertEquals("a5", new AgniBuilder("a").type("Lookup").cacheable(60000, 2).request(node).getPayload());
+            assertEquals("a3", new AgniBuilder("a").type("Lookup").criteria("region", "east").cacheable(60000, 2).request(node).getPayload());
+
+            //A handler invalidates only the entries matching its criteria, and this node drops them before broadcasting
+            new AgniBuilder("east").type("Update").send(node);
+            for (int i = 0; i < 100 && node.buildStatsResponse().getCaches().get("Lookup").getInvalidations() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals("a6", new AgniBuilder("a").type("Lookup").criteria("region", "east").cacheable(60000, 2).request(node).getPayload());
+            assertEquals("a5", new AgniBuilder("a").type("Lookup").cacheable(60000, 2).request(node).getPayload());
+
+            StatsResponse.CacheInfo info = node.buildStatsResponse().getCaches().get("Lookup");
+            assertEquals(2, info.getSize());
+            assertEquals(2, info.getMaxEntries());
+            assertEquals(3, info.getHits());
+            assertEquals(5, info.getMisses());
+            assertEquals(2, info.getEvictions());
+            assertEquals(1, info.getInvalidations());
+
+            //Entries expire after their ttl
+            assertEquals("c7", new AgniBuilder("c").type("Lookup").cacheable(50, 2).request(node).getPayload());
+            assertEquals("c7", new AgniBuilder("c").type("Lookup").cacheable(50, 2).request(node).getPayload());
+            Thread.sleep(100);
+            assertEquals("c8", new AgniBuilder("c").type("Lookup").cacheable(50, 2).request(node).getPayload());
+
+            //A request that timed out is not taken as the answer, and asynchronous requests use the cache too
+            assertNull(new AgniBuilder("d").type("SlowLookup").timeout(50L).cacheable(60000, 2).requestAsync(node).get());
+            ready.countDown();
+            assertEquals("d", new AgniBuilder("d").type("SlowLookup").cacheable(60000, 2).requestAsync(node).get().getPayload());
+            assertEquals("d", new AgniBuilder("d").type("SlowLookup").cacheable(60000, 2).requestAsync(node).get().getPayload());
+            assertEquals(1, node.buildStatsResponse().getCaches().get("SlowLookup").getHits());
+        }
+    }
 }
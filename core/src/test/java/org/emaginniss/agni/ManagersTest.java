@@ -29,6 +29,7 @@ package org.emaginniss.agni;
 
 import org.emaginniss.agni.annotations.Criterion;
 import org.emaginniss.agni.annotations.Subscribe;
+import org.emaginniss.agni.managers.Cacheable;
 import org.emaginniss.agni.managers.ManagerCriterion;
 import org.emaginniss.agni.managers.Inject;
 import org.emaginniss.agni.managers.ManagerMethod;
@@ -72,6 +73,10 @@ public class ManagersTest {
 
         @ManagerMethod(execute = Execute.broadcast)
         void send(@Payload Message2 message2);
+
+        @Cacheable(ttl = 60000)
+        @ManagerMethod(payloadClass = Message1.class)
+        String lookup(@Inject("field1") String field1, @ManagerCriterion("crit1") String target);
     }
 
     @Test
@@ -125,6 +130,12 @@ public class ManagersTest {
         assertEquals(1, hitCountA.get());
         assertEquals(1, hitCountB.get());
         assertEquals(2, hitCountC.get());
+
+        assertEquals("Howdy1", m1.lookup("f1", "A"));
+        assertEquals("Howdy1", m1.lookup("f1", "A"));
+        assertEquals(2, hitCountA.get());
+        assertEquals("Howdy2", m1.lookup("f1", "B"));
+        assertEquals(2, hitCountB.get());
     }
 
 }